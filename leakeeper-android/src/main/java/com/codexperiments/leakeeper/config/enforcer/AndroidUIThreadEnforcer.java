@@ -3,12 +3,15 @@ package com.codexperiments.leakeeper.config.enforcer;
 import android.os.Looper;
 import com.codexperiments.leakeeper.CallbackException;
 
+/**
+ * Allows calls from the UI-Thread only. UI-Thread is resolved once, which is cheaper than looking up the current Looper.
+ */
 public class AndroidUIThreadEnforcer implements ThreadEnforcer {
-    private final Looper mUILooper = Looper.getMainLooper();
+    private final Thread mUIThread = Looper.getMainLooper().getThread();
 
     @Override
     public void enforce() {
-        if (Looper.myLooper() != mUILooper) {
+        if (Thread.currentThread() != mUIThread) {
             throw new CallbackException("Must be executed from the UI-Thread only.");
         }
     }
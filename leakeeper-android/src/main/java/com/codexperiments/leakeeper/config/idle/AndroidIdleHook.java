@@ -0,0 +1,46 @@
+package com.codexperiments.leakeeper.config.idle;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs tasks when the message queue of the current Looper becomes idle. A single IdleHandler is registered for all the tasks
+ * scheduled during the same turn. Must be used from a Looper thread only (e.g. the UI-Thread).
+ */
+public class AndroidIdleHook implements IdleHook, MessageQueue.IdleHandler {
+    private List<Runnable> mTasks = new ArrayList<>();
+    private List<Runnable> mIdleTasks = new ArrayList<>();
+    private boolean mRegistered = false;
+
+    @Override
+    public void schedule(Runnable pTask) {
+        mTasks.add(pTask);
+        if (!mRegistered) {
+            Looper.myQueue().addIdleHandler(this);
+            mRegistered = true;
+        }
+    }
+
+    @Override
+    public boolean queueIdle() {
+        List<Runnable> tasks = mTasks;
+        mTasks = mIdleTasks;
+        boolean completed = false;
+        try {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            completed = true;
+        } finally {
+            tasks.clear();
+            mIdleTasks = tasks;
+            // Stay registered if tasks have been scheduled meanwhile. They are run on the next idle point. If a task fails,
+            // handler is removed by the queue and registered again on the next schedule().
+            mRegistered = completed && !mTasks.isEmpty();
+        }
+        return mRegistered;
+    }
+}
@@ -6,9 +6,10 @@ import android.os.Build;
 import android.text.TextUtils;
 
 /**
- * Example configuration that handles basic Android components: Activity and Fragments.
+ * Example configuration that handles basic Android components: Activity and Fragments. Fragments with an Id are identified by
+ * this int Id, which is looked up without boxing.
  */
-public class AndroidEmitterResolver implements EmitterResolver {
+public class AndroidEmitterResolver implements IntEmitterResolver {
     private final Class<?> mFragmentClass;
     private final Class<?> mFragmentCompatClass;
 
@@ -40,6 +41,16 @@ public class AndroidEmitterResolver implements EmitterResolver {
         return null;
     }
 
+    @Override
+    public int resolveEmitterIntId(Object pEmitter) {
+        if (mFragmentClass != null && mFragmentClass.isInstance(pEmitter)) {
+            return resolveFragmentIntId((android.app.Fragment) pEmitter);
+        } else if (mFragmentCompatClass != null && mFragmentCompatClass.isInstance(pEmitter)) {
+            return resolveFragmentIntId((android.support.v4.app.Fragment) pEmitter);
+        }
+        return NO_INT_ID;
+    }
+
     /**
      * Typically, an Android Activity is identified by its class type: if we start a task X in an activity of type A, navigate to
      * an Activity of type B and finally go back to an activity of type A (which could have been recreated meanwhile), then we
@@ -61,8 +72,9 @@ public class AndroidEmitterResolver implements EmitterResolver {
      */
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     protected Object resolveFragmentId(android.app.Fragment pFragment) {
-        if (pFragment.getId() > 0) {
-            return pFragment.getId();
+        int fragmentIntId = resolveFragmentIntId(pFragment);
+        if (fragmentIntId != NO_INT_ID) {
+            return fragmentIntId;
         } else if (pFragment.getTag() != null && !TextUtils.isEmpty(pFragment.getTag())) {
             return pFragment.getTag();
         } else {
@@ -74,12 +86,32 @@ public class AndroidEmitterResolver implements EmitterResolver {
      * Same as the homonym method but for fragments from the compatiblity library.
      */
     protected Object resolveFragmentId(android.support.v4.app.Fragment pFragment) {
-        if (pFragment.getId() > 0) {
-            return pFragment.getId();
+        int fragmentIntId = resolveFragmentIntId(pFragment);
+        if (fragmentIntId != NO_INT_ID) {
+            return fragmentIntId;
         } else if (pFragment.getTag() != null && !TextUtils.isEmpty(pFragment.getTag())) {
             return pFragment.getTag();
         } else {
             return pFragment.getClass();
         }
     }
+
+    /**
+     * Int Id of a Fragment, which takes precedence over the Id given by resolveFragmentId(). Override both methods to identify
+     * fragments differently.
+     *
+     * @param pFragment Fragment to find the Id of.
+     * @return Fragment Id if not 0 or else NO_INT_ID.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    protected int resolveFragmentIntId(android.app.Fragment pFragment) {
+        return (pFragment.getId() > 0) ? pFragment.getId() : NO_INT_ID;
+    }
+
+    /**
+     * Same as the homonym method but for fragments from the compatiblity library.
+     */
+    protected int resolveFragmentIntId(android.support.v4.app.Fragment pFragment) {
+        return (pFragment.getId() > 0) ? pFragment.getId() : NO_INT_ID;
+    }
 }
@@ -0,0 +1,27 @@
+package com.codexperiments.leakeeper.dispatcher;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Event loop of an Android Looper. Each posted task is a single message, thus a CallbackDispatcher sends one message per batch.
+ */
+public class LooperEventLoop implements EventLoop {
+    private final Handler mHandler;
+
+    /**
+     * Loop of the UI-Thread.
+     */
+    public static LooperEventLoop mainThread() {
+        return new LooperEventLoop(Looper.getMainLooper());
+    }
+
+    public LooperEventLoop(Looper pLooper) {
+        mHandler = new Handler(pLooper);
+    }
+
+    @Override
+    public void post(Runnable pTask) {
+        mHandler.post(pTask);
+    }
+}
@@ -0,0 +1,174 @@
+package com.codexperiments.leakeeper.rxjava;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.action.CallbackAction1;
+import rx.Observer;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers items of high-rate streams (e.g. sensors) to the wrapped observer in batches: items received from any thread are
+ * queued and drained on the given scheduler (e.g. AndroidSchedulers.mainThread()), all those queued since the last drain being
+ * delivered while emitters are referenced once. Emitters are dereferenced between batches.
+ * <p/>
+ * Backpressure is respected: at most one batch of items is requested from upstream, and more items are requested only as they
+ * are delivered.
+ * <p/>
+ * Emitters being unavailable is considered temporary (e.g. while an activity is recreated after a configuration change): items
+ * are dropped and as many are requested from upstream to replace them, so that the stream goes on once emitters are back. A
+ * terminal notification is dropped too, after which nothing is delivered. However, if emitters can never be available again
+ * (manager closed or unmanaged emitter garbage collected, see CallbackContainer.isAbandoned()), this subscriber unsubscribes and
+ * nothing is delivered anymore. This is the same policy as LeakSafeSubscriber for Reactive Streams.
+ */
+public class LeakSafeBatchSubscriber<T> extends Subscriber<T> {
+    private static final Object NULL_ITEM = new Object();
+    private static final CallbackAction1<Observer<?>, LeakSafeBatchSubscriber<?>> DELIVER_BATCH
+            = new CallbackAction1<Observer<?>, LeakSafeBatchSubscriber<?>>() {
+        @Override
+        public void run(Observer<?> pObserver, LeakSafeBatchSubscriber<?> pSubscriber) {
+            pSubscriber.deliverBatch(pObserver);
+        }
+    };
+
+    private final CallbackContainer<Observer<? extends Object>> mContainer;
+    private final Scheduler.Worker mWorker;
+    private final int mBatchSize;
+    private final Queue<Object> mQueue;
+    // Number of drain requests not processed yet. Only the request which increments it from 0 schedules a drain.
+    private final AtomicInteger mDrainRequests;
+    private final Action0 mDrain;
+    private volatile boolean mDone;
+    private volatile Throwable mError;
+    private volatile boolean mTerminated; // Set from the scheduler only. Read by onNext() to drop items received afterwards.
+    private int mDelivered; // Accessed from the scheduler only.
+
+    public static <T, TObserver extends Observer<T>> Subscriber<T> wrap(TObserver pObserver, CallbackManager<Observer<?>> pCallbackManager,
+                                                                        Scheduler pScheduler, int pBatchSize) {
+        return new LeakSafeBatchSubscriber<>(pCallbackManager.wrap(pObserver), pScheduler, pBatchSize);
+    }
+
+    /**
+     * @param pContainer  Container of the observer notifications are delivered to.
+     * @param pScheduler  Scheduler on which notifications are delivered, usually a single thread (e.g. the UI-Thread).
+     * @param pBatchSize  Maximum number of items delivered at once, which is also the number of items requested in advance.
+     */
+    public LeakSafeBatchSubscriber(CallbackContainer<Observer<? extends Object>> pContainer, Scheduler pScheduler, int pBatchSize) {
+        if (pBatchSize <= 0) throw new IllegalArgumentException("Batch size must be strictly positive");
+
+        mContainer = pContainer;
+        mWorker = pScheduler.createWorker();
+        mBatchSize = pBatchSize;
+        mQueue = new ConcurrentLinkedQueue<>();
+        mDrainRequests = new AtomicInteger();
+        mDrain = new Action0() {
+            @Override
+            public void call() {
+                drain();
+            }
+        };
+        mDone = false;
+        mError = null;
+        mTerminated = false;
+        mDelivered = 0;
+        add(mWorker);
+    }
+
+    @Override
+    public void onStart() {
+        request(mBatchSize);
+    }
+
+    @Override
+    public void onNext(T pItem) {
+        if (mTerminated) return;
+        mQueue.offer((pItem != null) ? pItem : NULL_ITEM);
+        scheduleDrain();
+    }
+
+    @Override
+    public void onCompleted() {
+        mDone = true;
+        scheduleDrain();
+    }
+
+    @Override
+    public void onError(Throwable pError) {
+        mError = pError;
+        mDone = true;
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (mDrainRequests.getAndIncrement() == 0) mWorker.schedule(mDrain);
+    }
+
+    /**
+     * Deliver one batch and schedule another drain if items are still queued, so that emitters are dereferenced and other tasks
+     * of the scheduler get a chance to run between batches.
+     */
+    private void drain() {
+        int drainRequests = mDrainRequests.get();
+        while (true) {
+            mDelivered = 0;
+            if (!mContainer.invoke(DELIVER_BATCH, this)) dropBatch();
+            if (mTerminated) return;
+            if (mDelivered > 0) request(mDelivered);
+
+            if (!mQueue.isEmpty()) {
+                mWorker.schedule(mDrain);
+                return;
+            }
+            drainRequests = mDrainRequests.addAndGet(-drainRequests);
+            if (drainRequests == 0) return;
+        }
+    }
+
+    /**
+     * Called while emitters are referenced.
+     */
+    @SuppressWarnings("unchecked")
+    private void deliverBatch(Observer<?> pObserver) {
+        Observer<Object> observer = (Observer<Object>) pObserver;
+        // Done flag must be read before the queue to be sure no item is missed.
+        boolean done = mDone;
+        Object item;
+        while ((mDelivered < mBatchSize) && ((item = mQueue.poll()) != null)) {
+            ++mDelivered;
+            observer.onNext((item != NULL_ITEM) ? item : null);
+        }
+        if (done && mQueue.isEmpty()) {
+            terminate();
+            if (mError != null) observer.onError(mError);
+            else observer.onCompleted();
+        }
+    }
+
+    /**
+     * Called when emitters are not available. Dropped items are counted as delivered, so that they are requested again from
+     * upstream, unless emitters never come back.
+     */
+    private void dropBatch() {
+        if (mContainer.isAbandoned()) {
+            mQueue.clear();
+            terminate();
+            return;
+        }
+
+        boolean done = mDone;
+        while ((mDelivered < mBatchSize) && (mQueue.poll() != null)) {
+            ++mDelivered;
+        }
+        if (done && mQueue.isEmpty()) terminate();
+    }
+
+    private void terminate() {
+        mTerminated = true;
+        unsubscribe();
+    }
+}
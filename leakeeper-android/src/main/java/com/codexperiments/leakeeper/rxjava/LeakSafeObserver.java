@@ -2,52 +2,64 @@ package com.codexperiments.leakeeper.rxjava;
 
 import com.codexperiments.leakeeper.CallbackContainer;
 import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.action.CallbackAction;
+import com.codexperiments.leakeeper.action.CallbackAction1;
 import rx.Observer;
 
+/**
+ * Notifications are delivered to the wrapped observer while its emitters are referenced. They are dropped if its emitters are not
+ * available anymore (e.g. if an emitter has been unmanaged).
+ */
 public class LeakSafeObserver<T> implements Observer<T> {
-    private final Observer<T> mObserver;
+    private static final CallbackAction1<Observer<?>, Object> ON_NEXT = new CallbackAction1<Observer<?>, Object>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run(Observer<?> pObserver, Object pValue) {
+            ((Observer<Object>) pObserver).onNext(pValue);
+        }
+    };
+    private static final CallbackAction<Observer<?>> ON_COMPLETED = new CallbackAction<Observer<?>>() {
+        @Override
+        public void run(Observer<?> pObserver) {
+            pObserver.onCompleted();
+        }
+    };
+    private static final CallbackAction1<Observer<?>, Throwable> ON_ERROR = new CallbackAction1<Observer<?>, Throwable>() {
+        @Override
+        public void run(Observer<?> pObserver, Throwable pError) {
+            pObserver.onError(pError);
+        }
+    };
+
     private final CallbackContainer<Observer<? extends Object>> mContainer;
 
     public static <T, TObserver extends Observer<T>> Observer<T> wrap(TObserver pObserver, CallbackManager<Observer<?>> pCallbackManager) {
-        return new LeakSafeObserver<>(pObserver, pCallbackManager.wrap(pObserver));
+        return new LeakSafeObserver<T>(pCallbackManager.wrap(pObserver));
     }
 
     public static <T, TObserver extends Observer<T>> Observer<T> wrap2(TObserver pObserver, CallbackManager<Observer<?>> pCallbackManager) {
         return pObserver;
     }
 
-    public LeakSafeObserver(Observer<T> pObserver, CallbackContainer<Observer<? extends Object>> pContainer) {
-        mObserver = pObserver;
+    /**
+     * @param pContainer Container of the wrapped observer, to which notifications are delivered.
+     */
+    public LeakSafeObserver(CallbackContainer<Observer<? extends Object>> pContainer) {
         mContainer = pContainer;
     }
 
     @Override
     public void onNext(T t) {
-        mContainer.referenceEmitter(false);
-        try {
-            mObserver.onNext(t);
-        } finally {
-            mContainer.dereferenceEmitter();
-        }
+        mContainer.invoke(ON_NEXT, t);
     }
 
     @Override
     public void onCompleted() {
-        mContainer.referenceEmitter(false);
-        try {
-            mObserver.onCompleted();
-        } finally {
-            mContainer.dereferenceEmitter();
-        }
+        mContainer.invoke(ON_COMPLETED);
     }
 
     @Override
     public void onError(Throwable error) {
-        mContainer.referenceEmitter(false);
-        try {
-            mObserver.onError(error);
-        } finally {
-            mContainer.dereferenceEmitter();
-        }
+        mContainer.invoke(ON_ERROR, error);
     }
 }
@@ -0,0 +1,115 @@
+package com.codexperiments.leakeeper.benchmark;
+
+import com.codexperiments.leakeeper.config.factory.LockFactory;
+import com.codexperiments.leakeeper.config.factory.MultiThreadLockFactory;
+import com.codexperiments.leakeeper.config.factory.SingleThreadLockFactory;
+import com.codexperiments.leakeeper.internal.WeakIdentityMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the map used by CallbackManager to find back containers of parent callbacks, configured as in singleThreaded,
+ * multiThreaded and sharded managers. Values are kept strongly reachable during the whole benchmark. Single-threaded variants
+ * compare all configurations, while maxThreads variants compare thread-safe configurations only (singleThreaded map is not
+ * thread-safe). Run with -t to measure other thread counts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContainerMapBenchmark {
+    @Benchmark
+    public Object get(MapState pState) {
+        return pState.get();
+    }
+
+    @Benchmark
+    public Object put(MapState pState) {
+        return pState.put();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object get_maxThreads(ConcurrentMapState pState) {
+        return pState.get();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object put_maxThreads(ConcurrentMapState pState) {
+        return pState.put();
+    }
+
+
+    @State(Scope.Benchmark)
+    public static class MapState extends AbstractMapState {
+        @Param({Fixtures.SINGLE_THREADED, Fixtures.MULTI_THREADED, Fixtures.SHARDED})
+        public String mManagerType;
+
+        @Setup
+        public void setUp() {
+            fill(mManagerType);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ConcurrentMapState extends AbstractMapState {
+        @Param({Fixtures.MULTI_THREADED, Fixtures.SHARDED})
+        public String mConcurrentManagerType;
+
+        @Setup
+        public void setUp() {
+            fill(mConcurrentManagerType);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public abstract static class AbstractMapState {
+        @Param({"64", "4096"})
+        public int mSize;
+
+        private Value[] mValues;
+        private WeakIdentityMap<Object, Value> mMap;
+
+        void fill(String pManagerType) {
+            LockFactory lockFactory = Fixtures.SINGLE_THREADED.equals(pManagerType) ? new SingleThreadLockFactory()
+                                                                                    : new MultiThreadLockFactory();
+            int shardCount = Fixtures.SHARDED.equals(pManagerType) ? Runtime.getRuntime().availableProcessors() : 1;
+            mMap = new WeakIdentityMap<Object, Value>(64 * shardCount, shardCount, lockFactory) {
+                @Override
+                protected Object keyOf(Value pValue) {
+                    return pValue.mKey;
+                }
+            };
+
+            mValues = new Value[mSize];
+            for (int i = 0; i < mSize; ++i) {
+                mValues[i] = new Value(new Object());
+                mMap.put(mValues[i].mKey, mValues[i]);
+            }
+        }
+
+        Object get() {
+            return mMap.get(mValues[ThreadLocalRandom.current().nextInt(mSize)].mKey);
+        }
+
+        Object put() {
+            Value value = mValues[ThreadLocalRandom.current().nextInt(mSize)];
+            return mMap.put(value.mKey, value);
+        }
+    }
+
+    /**
+     * Like a container, a value references its key.
+     */
+    private static final class Value {
+        private final Object mKey;
+
+        Value(Object pKey) {
+            mKey = pKey;
+        }
+    }
+}
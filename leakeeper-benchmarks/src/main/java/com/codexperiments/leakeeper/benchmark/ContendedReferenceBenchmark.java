@@ -0,0 +1,39 @@
+package com.codexperiments.leakeeper.benchmark;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Callback;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Emitter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Same as ReferenceBenchmark but the same callback is invoked concurrently from several threads, which requires a multiThreaded
+ * manager. Run with -t to measure other thread counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class ContendedReferenceBenchmark {
+    private CallbackContainer<Callback> mContainer;
+
+    @Setup
+    public void setUp() {
+        CallbackManager<Callback> manager = Fixtures.newManager(Fixtures.MULTI_THREADED);
+        Emitter emitter = new Emitter("emitter");
+        manager.manage(emitter);
+        mContainer = manager.wrap(emitter.newInnerCallback());
+    }
+
+    @Benchmark
+    public boolean reference_inner() {
+        boolean referenced = mContainer.referenceEmitter(true);
+        if (referenced) mContainer.dereferenceEmitter();
+        return referenced;
+    }
+}
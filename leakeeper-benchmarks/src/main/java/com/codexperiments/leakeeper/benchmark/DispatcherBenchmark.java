@@ -0,0 +1,93 @@
+package com.codexperiments.leakeeper.benchmark;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.action.CallbackAction;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Callback;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Emitter;
+import com.codexperiments.leakeeper.dispatcher.CallbackDispatcher;
+import com.codexperiments.leakeeper.dispatcher.EventLoop;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures delivery of a burst of results to callbacks of the same emitter during one loop turn: one invoke() per result
+ * (dispatch_none, as with one post per result) against a CallbackDispatcher batch. The loop is run inline by the benchmark
+ * thread to measure delivery overhead only. Results are given per delivery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatcherBenchmark {
+    private static final int BURST_SIZE = 16;
+    private static final CallbackAction<Callback> RUN = new CallbackAction<Callback>() {
+        @Override
+        public void run(Callback pCallback) {
+            pCallback.run();
+        }
+    };
+
+    @Param({Fixtures.SINGLE_THREADED, Fixtures.MULTI_THREADED})
+    public String mManagerType;
+
+    private CallbackContainer<Callback>[] mContainers;
+    private InlineEventLoop mEventLoop;
+    private CallbackDispatcher mDispatcher;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        CallbackManager<Callback> manager = Fixtures.newManager(mManagerType);
+        Emitter emitter = new Emitter("emitter");
+        manager.manage(emitter);
+
+        // A few callbacks receive several results each.
+        mContainers = new CallbackContainer[4];
+        for (int i = 0; i < mContainers.length; ++i) {
+            mContainers[i] = manager.wrap(emitter.newInnerCallback());
+        }
+        mEventLoop = new InlineEventLoop();
+        mDispatcher = new CallbackDispatcher(mEventLoop);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public void dispatch_none(Blackhole pBlackhole) {
+        for (int i = 0; i < BURST_SIZE; ++i) {
+            pBlackhole.consume(mContainers[i % mContainers.length].invoke(RUN));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public void dispatch_batch() {
+        for (int i = 0; i < BURST_SIZE; ++i) {
+            mDispatcher.dispatch(mContainers[i % mContainers.length], RUN);
+        }
+        mEventLoop.runTurn();
+    }
+
+
+    private static final class InlineEventLoop implements EventLoop {
+        private final Queue<Runnable> mTasks = new ArrayDeque<>();
+
+        @Override
+        public void post(Runnable pTask) {
+            mTasks.offer(pTask);
+        }
+
+        void runTurn() {
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.codexperiments.leakeeper.benchmark;
+
+import com.codexperiments.leakeeper.benchmark.Fixtures.Emitter;
+import com.codexperiments.leakeeper.internal.EmitterId;
+import com.codexperiments.leakeeper.internal.EmitterRef;
+import com.codexperiments.leakeeper.internal.EmitterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares emitter lookups in the EmitterRegistry, for each kind of Id, with the generic path (a map indexed by EmitterId
+ * allocated on each lookup). Ids are those returned by AndroidEmitterResolver: activity class, fragment Id or fragment Tag. Ids
+ * are boxed once during setup to measure lookups only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmitterRegistryBenchmark {
+    private static final int ID_COUNT = 16;
+    private static final int RESOURCE_ID = 0x7f0a0000;
+
+    @Param({"class", "integer", "string"})
+    public String mIdType;
+
+    private Object[] mIds;
+    private EmitterRegistry mRegistry;
+    private Map<EmitterId, EmitterRef> mGenericRegistry;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        Emitter emitter = new Emitter("emitter");
+        mRegistry = EmitterRegistry.singleThreaded(64);
+        mGenericRegistry = new HashMap<>(64);
+        // Registry is filled with Tags in any case, then with the Ids looked up.
+        for (int i = 0; i < ID_COUNT; ++i) {
+            register("tag" + i, emitter);
+        }
+
+        switch (mIdType) {
+            case "class":
+                // Only one Id per emitter class can be the class itself.
+                mIds = new Object[] { Emitter.class };
+                break;
+            case "integer":
+                mIds = new Object[ID_COUNT];
+                for (int i = 0; i < ID_COUNT; ++i) mIds[i] = RESOURCE_ID + i;
+                break;
+            case "string":
+                mIds = new Object[ID_COUNT];
+                for (int i = 0; i < ID_COUNT; ++i) mIds[i] = "tag" + i;
+                break;
+            default:
+                throw new IllegalArgumentException(mIdType);
+        }
+        for (Object id : mIds) {
+            register(id, emitter);
+        }
+    }
+
+    private void register(Object pId, Emitter pEmitter) {
+        mRegistry.register(Emitter.class, pId, pEmitter);
+        mGenericRegistry.put(new EmitterId(Emitter.class, pId), new EmitterRef(pEmitter));
+    }
+
+    @Benchmark
+    public EmitterRef find() {
+        return mRegistry.find(Emitter.class, nextId());
+    }
+
+    @Benchmark
+    public EmitterRef find_generic() {
+        return mGenericRegistry.get(new EmitterId(Emitter.class, nextId()));
+    }
+
+    private Object nextId() {
+        mIndex = (mIndex + 1) % mIds.length;
+        return mIds[mIndex];
+    }
+}
@@ -0,0 +1,90 @@
+package com.codexperiments.leakeeper.benchmark;
+
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.config.enforcer.NoThreadEnforcer;
+import com.codexperiments.leakeeper.config.factory.LockFactory;
+import com.codexperiments.leakeeper.config.resolver.EmitterResolver;
+
+/**
+ * Callbacks and emitters shared by benchmarks.
+ */
+public final class Fixtures {
+    public static final String CONFINED = "confined";
+    public static final String SINGLE_THREADED = "singleThreaded";
+    public static final String MULTI_THREADED = "multiThreaded";
+    public static final String SHARDED = "sharded";
+
+    private Fixtures() {
+    }
+
+    public static CallbackManager<Callback> newManager(String pManagerType) {
+        switch (pManagerType) {
+            case CONFINED:
+                return CallbackManager.confined(Callback.class, new Resolver());
+            case SINGLE_THREADED:
+                return CallbackManager.singleThreaded(Callback.class, new Resolver(), new NoThreadEnforcer());
+            case MULTI_THREADED:
+                return CallbackManager.multiThreaded(Callback.class, new Resolver(), new NoThreadEnforcer());
+            case SHARDED:
+                return CallbackManager.sharded(Callback.class, new Resolver(), new NoThreadEnforcer());
+            default:
+                throw new IllegalArgumentException(pManagerType);
+        }
+    }
+
+    public static CallbackManager<Callback> newManager(LockFactory pLockFactory) {
+        return CallbackManager.multiThreaded(Callback.class, new Resolver(), new NoThreadEnforcer(), pLockFactory);
+    }
+
+
+    public interface Callback {
+        Object run();
+    }
+
+    /**
+     * Emitters are identified by a String Id, like a fragment tag.
+     */
+    public static class Resolver implements EmitterResolver {
+        @Override
+        public Object resolveEmitterId(Object pEmitter) {
+            return (pEmitter instanceof Emitter) ? ((Emitter) pEmitter).mId : null;
+        }
+    }
+
+    public static class Emitter {
+        private final String mId;
+
+        public Emitter(String pId) {
+            mId = pId;
+        }
+
+        public InnerCallback newInnerCallback() {
+            return new InnerCallback();
+        }
+
+        public class InnerCallback implements Callback {
+            @Override
+            public Object run() {
+                return Emitter.this;
+            }
+
+            public NestedCallback newNestedCallback() {
+                return new NestedCallback();
+            }
+
+            public class NestedCallback implements Callback {
+                @Override
+                public Object run() {
+                    return InnerCallback.this;
+                }
+            }
+        }
+    }
+
+    public static class StaticCallback implements Callback {
+        @Override
+        public Object run() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.codexperiments.leakeeper.benchmark;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Callback;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Emitter;
+import com.codexperiments.leakeeper.config.factory.LockFactory;
+import com.codexperiments.leakeeper.config.factory.MultiThreadLockFactory;
+import com.codexperiments.leakeeper.config.factory.StripedLockFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares per-container locks (MultiThreadLockFactory) with striped locks (StripedLockFactory). Footprint is given by the
+ * allocation rate of wrap() (gc profiler). Contention is measured by referencing random containers among a large set from
+ * several threads, where striped containers may share a lock. Run with -t to measure other thread counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LockFactoryBenchmark {
+    private static final String PER_CONTAINER = "perContainer";
+    private static final String STRIPED = "striped";
+    private static final int CONTAINER_COUNT = 1024;
+
+    @Param({PER_CONTAINER, STRIPED})
+    public String mLockFactory;
+
+    private CallbackManager<Callback> mManager;
+    private Emitter mEmitter;
+    private CallbackContainer<?>[] mContainers;
+
+    @Setup
+    public void setUp() {
+        LockFactory lockFactory = PER_CONTAINER.equals(mLockFactory) ? new MultiThreadLockFactory() : new StripedLockFactory();
+        mManager = Fixtures.newManager(lockFactory);
+        mEmitter = new Emitter("emitter");
+        mManager.manage(mEmitter);
+
+        mContainers = new CallbackContainer<?>[CONTAINER_COUNT];
+        for (int i = 0; i < CONTAINER_COUNT; ++i) {
+            mContainers[i] = mManager.wrap(mEmitter.newInnerCallback());
+        }
+    }
+
+    @Benchmark
+    public CallbackContainer<Callback> wrap() {
+        return mManager.wrap(mEmitter.newInnerCallback());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean reference_contended() {
+        CallbackContainer<?> container = mContainers[ThreadLocalRandom.current().nextInt(CONTAINER_COUNT)];
+        boolean referenced = container.referenceEmitter(true);
+        if (referenced) container.dereferenceEmitter();
+        return referenced;
+    }
+}
@@ -0,0 +1,43 @@
+package com.codexperiments.leakeeper.benchmark;
+
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Callback;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Emitter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures manage()/unmanage() churn, like activities and fragments going through their lifecycle. Two emitters with the same
+ * Id replace each other, like an activity recreated after a configuration change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManageBenchmark {
+    @Param({Fixtures.SINGLE_THREADED, Fixtures.MULTI_THREADED})
+    public String mManagerType;
+
+    private CallbackManager<Callback> mManager;
+    private Emitter mEmitter;
+    private Emitter mRecreatedEmitter;
+
+    @Setup
+    public void setUp() {
+        mManager = Fixtures.newManager(mManagerType);
+        mEmitter = new Emitter("emitter");
+        mRecreatedEmitter = new Emitter("emitter");
+        mManager.manage(mEmitter);
+    }
+
+    @Benchmark
+    public void manage_unmanage() {
+        mManager.unmanage(mEmitter);
+        mManager.manage(mRecreatedEmitter);
+        mManager.unmanage(mRecreatedEmitter);
+        mManager.manage(mEmitter);
+    }
+}
@@ -0,0 +1,67 @@
+package com.codexperiments.leakeeper.benchmark;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.action.CallbackFunction;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Callback;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Emitter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a referenceEmitter()/dereferenceEmitter() pair, i.e. the overhead paid each time a wrapped callback is invoked.
+ * invoke_inner measures the same pair through CallbackContainer.invoke() with a constant action. Confined containers count
+ * references without CAS nor lock. See ContendedReferenceBenchmark for the multi-threaded case.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReferenceBenchmark {
+    private static final CallbackFunction<Callback, Object> RUN = new CallbackFunction<Callback, Object>() {
+        @Override
+        public Object apply(Callback pCallback) {
+            return pCallback.run();
+        }
+    };
+
+    @Param({Fixtures.CONFINED, Fixtures.SINGLE_THREADED, Fixtures.MULTI_THREADED})
+    public String mManagerType;
+
+    private CallbackContainer<Callback> mInnerContainer;
+    private CallbackContainer<Callback> mNestedContainer;
+
+    @Setup
+    public void setUp() {
+        CallbackManager<Callback> manager = Fixtures.newManager(mManagerType);
+        Emitter emitter = new Emitter("emitter");
+        manager.manage(emitter);
+
+        Emitter.InnerCallback innerCallback = emitter.newInnerCallback();
+        Emitter.InnerCallback.NestedCallback nestedCallback = innerCallback.newNestedCallback();
+        mInnerContainer = manager.wrap(innerCallback);
+        mNestedContainer = manager.wrap(nestedCallback);
+    }
+
+    @Benchmark
+    public boolean reference_inner() {
+        boolean referenced = mInnerContainer.referenceEmitter(true);
+        if (referenced) mInnerContainer.dereferenceEmitter();
+        return referenced;
+    }
+
+    @Benchmark
+    public Object invoke_inner() {
+        return mInnerContainer.call(RUN, null);
+    }
+
+    @Benchmark
+    public boolean reference_nested() {
+        boolean referenced = mNestedContainer.referenceEmitter(true);
+        if (referenced) mNestedContainer.dereferenceEmitter();
+        return referenced;
+    }
+}
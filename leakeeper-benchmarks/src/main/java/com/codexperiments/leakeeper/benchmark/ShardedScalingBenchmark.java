@@ -0,0 +1,79 @@
+package com.codexperiments.leakeeper.benchmark;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Callback;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Emitter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how a manager shared by all threads scales when each thread manages its own emitters, wraps callbacks and invokes
+ * them, like requests handled concurrently on a server. Compares the multiThreaded manager (one lock per structure) with the
+ * sharded one. Run with -t to measure other thread counts, e.g. for t in 1 2 4 8 16 32 64.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class ShardedScalingBenchmark {
+    private static final int EMITTER_COUNT = 16;
+
+    @Param({Fixtures.MULTI_THREADED, Fixtures.SHARDED})
+    public String mManagerType;
+
+    private CallbackManager<Callback> mManager;
+    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        mManager = Fixtures.newManager(mManagerType);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mManager.close();
+    }
+
+    /**
+     * Emitters owned by a thread. They stay managed during the whole benchmark, as with long-lived sessions.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private Emitter[] mEmitters;
+        private int mIndex;
+
+        @Setup
+        public void setUp(ShardedScalingBenchmark pBenchmark) {
+            int thread = pBenchmark.mThreadCount.getAndIncrement();
+            mEmitters = new Emitter[EMITTER_COUNT];
+            for (int i = 0; i < EMITTER_COUNT; ++i) {
+                mEmitters[i] = new Emitter("emitter" + thread + "_" + i);
+                pBenchmark.mManager.manage(mEmitters[i]);
+            }
+        }
+
+        Emitter nextEmitter() {
+            mIndex = (mIndex + 1) % EMITTER_COUNT;
+            return mEmitters[mIndex];
+        }
+    }
+
+    @Benchmark
+    public boolean wrap_reference(ThreadState pThreadState) {
+        CallbackContainer<Callback> container = mManager.wrap(pThreadState.nextEmitter().newInnerCallback());
+        boolean referenced = container.referenceEmitter(true);
+        if (referenced) container.dereferenceEmitter();
+        return referenced;
+    }
+
+    @Benchmark
+    public void manage(ThreadState pThreadState) {
+        mManager.manage(pThreadState.nextEmitter());
+    }
+}
@@ -0,0 +1,57 @@
+package com.codexperiments.leakeeper.benchmark;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Callback;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Emitter;
+import com.codexperiments.leakeeper.config.idle.FlushIdleHook;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a burst of events delivered to the same callback during one event loop turn, with and without sticky referencing.
+ * Results are given per event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StickyReferenceBenchmark {
+    private static final int BURST_SIZE = 16;
+
+    @Param({Fixtures.SINGLE_THREADED, Fixtures.MULTI_THREADED})
+    public String mManagerType;
+    @Param({"false", "true"})
+    public boolean mSticky;
+
+    private CallbackContainer<Callback> mContainer;
+    private FlushIdleHook mIdleHook;
+
+    @Setup
+    public void setUp() {
+        CallbackManager<Callback> manager = Fixtures.newManager(mManagerType);
+        Emitter emitter = new Emitter("emitter");
+        manager.manage(emitter);
+
+        mContainer = manager.wrap(emitter.newInnerCallback());
+        mIdleHook = new FlushIdleHook();
+        if (mSticky) mContainer.setStickyReferencing(mIdleHook);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public int reference_burst() {
+        int referenced = 0;
+        for (int i = 0; i < BURST_SIZE; ++i) {
+            if (mContainer.referenceEmitter(true)) {
+                ++referenced;
+                mContainer.dereferenceEmitter();
+            }
+        }
+        mIdleHook.flush();
+        return referenced;
+    }
+}
@@ -0,0 +1,70 @@
+package com.codexperiments.leakeeper.benchmark;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Callback;
+import com.codexperiments.leakeeper.benchmark.Fixtures.Emitter;
+import com.codexperiments.leakeeper.benchmark.Fixtures.StaticCallback;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures CallbackManager.wrap() for callbacks without emitter, with one emitter and nested in another callback. Callbacks are
+ * created for each wrap, like in a real application. wrapAll_inner wraps a batch of callbacks at once and is reported per
+ * callback, to be compared with wrap_inner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WrapBenchmark {
+    private static final int BATCH_SIZE = 16;
+
+    @Param({Fixtures.SINGLE_THREADED, Fixtures.MULTI_THREADED})
+    public String mManagerType;
+
+    private CallbackManager<Callback> mManager;
+    private Emitter mEmitter;
+    private Emitter.InnerCallback mParentCallback;
+    private CallbackContainer<Callback> mParentContainer; // Containers are weakly referenced by their manager.
+
+    @Setup
+    public void setUp() {
+        mManager = Fixtures.newManager(mManagerType);
+        mEmitter = new Emitter("emitter");
+        mManager.manage(mEmitter);
+
+        mParentCallback = mEmitter.newInnerCallback();
+        mParentContainer = mManager.wrap(mParentCallback);
+    }
+
+    @Benchmark
+    public CallbackContainer<Callback> wrap_static() {
+        return mManager.wrap(new StaticCallback());
+    }
+
+    @Benchmark
+    public CallbackContainer<Callback> wrap_inner() {
+        return mManager.wrap(mEmitter.newInnerCallback());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<CallbackContainer<Callback>> wrapAll_inner() {
+        List<Callback> callbacks = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; ++i) {
+            callbacks.add(mEmitter.newInnerCallback());
+        }
+        return mManager.wrapAll(callbacks);
+    }
+
+    @Benchmark
+    public CallbackContainer<Callback> wrap_nested() {
+        return mManager.wrap(mParentCallback.newNestedCallback());
+    }
+}
@@ -1,56 +1,111 @@
 package com.codexperiments.leakeeper;
 
+import com.codexperiments.leakeeper.action.CallbackAction;
+import com.codexperiments.leakeeper.action.CallbackAction1;
+import com.codexperiments.leakeeper.action.CallbackAction2;
+import com.codexperiments.leakeeper.action.CallbackFunction;
+import com.codexperiments.leakeeper.action.CallbackFunction1;
+import com.codexperiments.leakeeper.action.CallbackFunction2;
+import com.codexperiments.leakeeper.action.CallbackIntAction;
+import com.codexperiments.leakeeper.action.CallbackLongAction;
+import com.codexperiments.leakeeper.config.factory.LockFactory;
+import com.codexperiments.leakeeper.config.idle.IdleHook;
+import com.codexperiments.leakeeper.internal.CallbackClass;
 import com.codexperiments.leakeeper.internal.EmitterDescriptor;
 import com.codexperiments.leakeeper.internal.EmitterId;
 import com.codexperiments.leakeeper.internal.EmitterRef;
+import com.codexperiments.leakeeper.internal.OuterField;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.locks.Lock;
 
 import static com.codexperiments.leakeeper.CallbackException.emitterIdCouldNotBeDetermined;
-import static com.codexperiments.leakeeper.CallbackException.internalError;
 
 /**
  * Contain all the information necessary to restore all the emitters (even parent emitters) of a task. Once prepareToRun() is
  * called, the content of this class is not modified anymore (except the emitter and the reference counter dedicated to
  * referencing and dereferencing).
- *
- * TODO Switch to arrays instead of Lists?
+ * <p/>
+ * Parent containers are flattened when the container is prepared into a chain of unique containers, parents first. Referencing
+ * walks this chain linearly (no recursion) and rolls it back in reverse order on failure.
  */
 public final class CallbackContainer<TCallback> {
+    // Reference counter value while emitters are being referenced or dereferenced by a thread.
+    private static final int TRANSITION = -1;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<CallbackContainer> sReferenceCounter =
+            AtomicIntegerFieldUpdater.newUpdater(CallbackContainer.class, "mReferenceCounter");
+    private static final EmitterDescriptor[] NO_DESCRIPTORS = new EmitterDescriptor[0];
+
     private final CallbackManager<TCallback> mManager;
     private final Object mCallback;
-    private List<EmitterDescriptor> mEmitterDescriptors; // Never modified once initialized in prepareDescriptor().
-    private List<CallbackContainer<TCallback>> mParentContainers; // Never modified once initialized in prepareDescriptor().
+    // Descriptors sharing the same emitter reference are adjacent. Never modified once initialized in prepareDescriptor().
+    private EmitterDescriptor[] mEmitterDescriptors;
+    // Generation of each descriptor emitter reference when emitters were last referenced. Written in TRANSITION state only (or
+    // by the owner thread if confined).
+    private int[] mReferencedGenerations;
+    // Parent containers and this container, if it has emitters, in referencing order. Containers without emitters are not
+    // included. Never modified once initialized in prepareDescriptor().
+    private CallbackContainer<TCallback>[] mContainerChain;
     // Counts the number of time a task has been referenced without being dereferenced. A task will be dereferenced only when
     // this counter reaches 0, which means that no other task needs references to be set. This situation can occur for example
     // when starting a child task from a parent task handler (e.g. in onFinish()): when the child task is launched, it must
     // not dereference emitters because the parent task is still in its onFinish() handler and may need references to them.
-    private int mReferenceCounter;
+    // Counter is updated with CAS operations. Emitter fields are written only when it goes from 0 to 1 or from 1 to 0, during
+    // which it is set to TRANSITION. Transitions are performed under mLock, on which other threads wait for the transition to
+    // finish. Lock may be shared with other containers (see StripedLockFactory) since it is held only during field writes.
+    private volatile int mReferenceCounter;
     private final Lock mLock;
+    // Containers of a confined manager are used by a single thread: they count references in a plain field instead, without
+    // CAS nor lock.
+    private final boolean mConfined;
+    private int mConfinedReferenceCounter;
+    // Gives the point where sticky references are released, if sticky referencing is enabled. Sticky state is accessed from the
+    // thread of the hook only.
+    private IdleHook mIdleHook;
+    private Runnable mStickyRelease;
+    private boolean mStickyReferenced;
 
     // TODO Boolean option to indicate if we should look for emitter or if task is not "managed".
-    public CallbackContainer(CallbackManager<TCallback> pManager, Object pCallback, Lock pLock) {
+    public CallbackContainer(CallbackManager<TCallback> pManager, Object pCallback, LockFactory pLockFactory) {
+        this(pManager, pCallback, pLockFactory, null);
+    }
+
+    /**
+     * @param pBatch Batch the container is created in by CallbackManager.wrapAll() or null.
+     */
+    CallbackContainer(CallbackManager<TCallback> pManager, Object pCallback, LockFactory pLockFactory,
+                      CallbackManager.WrapBatch<TCallback> pBatch) {
         mManager = pManager;
         mCallback = pCallback;
-        mEmitterDescriptors = null;
-        mParentContainers = null;
+        mEmitterDescriptors = NO_DESCRIPTORS;
+        mReferencedGenerations = null;
+        mContainerChain = null;
         mReferenceCounter = 0;
-        mLock = pLock;
+        mConfined = pManager.isConfined();
+        mLock = mConfined ? null : pLockFactory.create(this);
+        mConfinedReferenceCounter = 0;
+        mIdleHook = null;
+        mStickyRelease = null;
+        mStickyReferenced = false;
 
-        prepareDescriptor();
+        prepareDescriptor(pBatch);
+    }
+
+    @SuppressWarnings("unchecked")
+    TCallback callback() {
+        return (TCallback) mCallback;
     }
 
     // TODO Useless?
     public boolean usesEmitter(EmitterId pEmitterId) {
-        if (mEmitterDescriptors != null) {
-            for (EmitterDescriptor emitterDescriptor : mEmitterDescriptors) {
-                if (emitterDescriptor.usesEmitter(pEmitterId)) {
-                    return true;
-                }
+        for (EmitterDescriptor emitterDescriptor : mEmitterDescriptors) {
+            if (emitterDescriptor.usesEmitter(pEmitterId)) {
+                return true;
             }
         }
         return false;
@@ -68,156 +123,648 @@ public final class CallbackContainer<TCallback> {
      * meanwhile.
      */
     public boolean referenceEmitter(boolean pRollbackOnFailure) {
-        // Try to restore emitters in parent containers first. Everything is rolled-back if referencing fails.
-        if (mParentContainers != null) {
-            for (CallbackContainer<TCallback> parentContainer : mParentContainers) {
-                if (!parentContainer.referenceEmitter(pRollbackOnFailure)) return false;
-            }
+        if (mIdleHook != null) referenceUntilIdle();
+        return referenceChain(pRollbackOnFailure);
+    }
+
+    /**
+     * Keep emitters referenced from the first referenceEmitter() until the next idle point given by the hook, e.g. for a
+     * callback receiving bursts of events on the UI-Thread. Emitters are then referenced and dereferenced once per burst: events
+     * in between just count references. When sticky referencing is enabled, container must be referenced from the thread of the
+     * hook only.
+     *
+     * @param pIdleHook Hook giving idle points of the thread which references this container, or null to disable sticky
+     *                  referencing (emitters are still dereferenced at the next idle point).
+     */
+    public void setStickyReferencing(IdleHook pIdleHook) {
+        if ((pIdleHook != null) && (mStickyRelease == null)) {
+            mStickyRelease = new Runnable() {
+                @Override
+                public void run() {
+                    releaseSticky();
+                }
+            };
         }
+        mIdleHook = pIdleHook;
+    }
 
-        // Restore references for current container if referencing succeeded previously.
-        if (mEmitterDescriptors != null) {
-            mLock.lock();
-            try {
-                // TODO There is a race problem in this code. A TaskEmitterRef can be used several times for one
-                // TaskDescriptor because of parent or superclass emitters ref that may be identical. In that case, a call
-                // to manage() on another thread during referenceEmitter() may cause two different emitters to be restored
-                // whereas we would expect the same ref.
-                if ((mReferenceCounter++) == 0) {
-                    for (EmitterDescriptor emitterDescriptor : mEmitterDescriptors) {
-                        if (!emitterDescriptor.reference(mCallback) && pRollbackOnFailure) {
-                            // Rollback modifications in case of failure.
-                            --mReferenceCounter;
-                            for (EmitterDescriptor rolledEmitterDescriptor : mEmitterDescriptors) {
-                                if (rolledEmitterDescriptor == emitterDescriptor) break;
-                                rolledEmitterDescriptor.dereference(mCallback);
-                            }
-                            return false;
-                        }
+    /**
+     * Reference emitters once for the current turn if they are not already. Emitters replaced since then (e.g. by a new
+     * manage() call) are written again in place, even if the container is also referenced by a callback being invoked (e.g.
+     * nested invocations): releasing the sticky reference would not dereference them in that case. If an emitter is not
+     * available anymore, the sticky reference is released instead.
+     */
+    private void referenceUntilIdle() {
+        if (mStickyReferenced) {
+            if (!isStale()) return;
+            if (missingEmitterRef() == null) refreshChain();
+            else releaseSticky();
+        } else if (referenceChain(true)) {
+            mStickyReferenced = true;
+            mIdleHook.schedule(mStickyRelease);
+        }
+    }
+
+    private void refreshChain() {
+        for (CallbackContainer<TCallback> container : mContainerChain) {
+            container.refreshOwnEmitters();
+        }
+    }
+
+    /**
+     * Write current emitters in fields of this container if it is referenced and some emitters have been replaced since. The
+     * number of references is left unchanged.
+     */
+    private void refreshOwnEmitters() {
+        if (mConfined) {
+            if ((mConfinedReferenceCounter > 0) && !isSnapshotValid()) doReferenceEmitter(false);
+            return;
+        }
+
+        mLock.lock();
+        try {
+            while (true) {
+                // Transitions are performed under lock only so TRANSITION can't be observed here.
+                int referenceCounter = mReferenceCounter;
+                if ((referenceCounter == 0) || isSnapshotValid()) return;
+                if (sReferenceCounter.compareAndSet(this, referenceCounter, TRANSITION)) {
+                    try {
+                        doReferenceEmitter(false);
+                    } finally {
+                        mReferenceCounter = referenceCounter;
                     }
+                    return;
                 }
             }
-            // Note: Rollback any modifications if an exception occurs. Having an exception here denotes an internal bug.
-            catch (CallbackException eLeakManagerAndroidException) {
-                --mReferenceCounter;
-                // Note that if referencing failed at some point, dereferencing is likely to fail too. That's not a big
-                // issue since an exception will be thrown in both cases anyway.
-                for (EmitterDescriptor rolledEmitterDescriptor : mEmitterDescriptors) {
-                    rolledEmitterDescriptor.dereference(mCallback);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void releaseSticky() {
+        if (mStickyReferenced) {
+            mStickyReferenced = false;
+            dereferenceEmitter();
+        }
+    }
+
+    private boolean referenceChain(boolean pRollbackOnFailure) {
+        // Restore emitters in parent containers first. Everything is rolled-back if referencing fails.
+        CallbackContainer<TCallback>[] containerChain = mContainerChain;
+        for (int i = 0; i < containerChain.length; ++i) {
+            if (!containerChain[i].referenceOwnEmitters(pRollbackOnFailure)) {
+                for (int j = i - 1; j >= 0; --j) {
+                    containerChain[j].dereferenceOwnEmitters();
                 }
-                throw eLeakManagerAndroidException;
-            } finally {
-                mLock.unlock();
+                return false;
             }
         }
         return true;
     }
 
+    /**
+     * Check, while callback is referenced, if one of its emitter references has been updated since it was referenced (e.g. if a
+     * new emitter has been managed with the same Id). This can happen if a parent container was already referenced with an older
+     * emitter or if emitter changed afterwards. Callback should then be dereferenced and referenced again, or dropped.
+     *
+     * @return True if referenced emitters are not up to date anymore.
+     */
+    public boolean isStale() {
+        for (CallbackContainer<TCallback> container : mContainerChain) {
+            EmitterDescriptor[] emitterDescriptors = container.mEmitterDescriptors;
+            int[] referencedGenerations = container.mReferencedGenerations;
+            for (int i = 0; i < emitterDescriptors.length; ++i) {
+                if (!emitterDescriptors[i].emitterRef().isGeneration(referencedGenerations[i])) return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Remove emitter references from the task handler. Called after each task handler is executed to avoid memory leaks.
      */
     public void dereferenceEmitter() {
-        // Try to dereference emitters in parent containers first.
-        if (mParentContainers != null) {
-            for (CallbackContainer<TCallback> parentContainer : mParentContainers) {
-                parentContainer.dereferenceEmitter();
+        CallbackContainer<TCallback>[] containerChain = mContainerChain;
+        for (int i = containerChain.length - 1; i >= 0; --i) {
+            containerChain[i].dereferenceOwnEmitters();
+        }
+    }
+
+    /**
+     * Run an action on the callback while its emitters are referenced, and dereference them afterwards even if action fails. If
+     * emitters cannot be referenced (e.g. an emitter has been unmanaged), nothing is referenced and action is not run.
+     *
+     * @return True if action was run or false if emitters could not be referenced.
+     */
+    public boolean invoke(CallbackAction<? super TCallback> pAction) {
+        if (!referenceEmitter(true)) return false;
+        try {
+            pAction.run(callback());
+        } finally {
+            dereferenceEmitter();
+        }
+        return true;
+    }
+
+    /**
+     * Same as invoke(CallbackAction) with one argument.
+     */
+    public <TArg> boolean invoke(CallbackAction1<? super TCallback, ? super TArg> pAction, TArg pArg) {
+        if (!referenceEmitter(true)) return false;
+        try {
+            pAction.run(callback(), pArg);
+        } finally {
+            dereferenceEmitter();
+        }
+        return true;
+    }
+
+    /**
+     * Same as invoke(CallbackAction) with two arguments.
+     */
+    public <TArg1, TArg2> boolean invoke(CallbackAction2<? super TCallback, ? super TArg1, ? super TArg2> pAction, TArg1 pArg1,
+                                         TArg2 pArg2) {
+        if (!referenceEmitter(true)) return false;
+        try {
+            pAction.run(callback(), pArg1, pArg2);
+        } finally {
+            dereferenceEmitter();
+        }
+        return true;
+    }
+
+    /**
+     * Same as invoke(CallbackAction) with an int argument, which is not boxed. Not an overload of invoke(), which would make
+     * calls with a lambda ambiguous.
+     */
+    public boolean invokeInt(CallbackIntAction<? super TCallback> pAction, int pArg) {
+        if (!referenceEmitter(true)) return false;
+        try {
+            pAction.run(callback(), pArg);
+        } finally {
+            dereferenceEmitter();
+        }
+        return true;
+    }
+
+    /**
+     * Same as invokeInt() with a long argument.
+     */
+    public boolean invokeLong(CallbackLongAction<? super TCallback> pAction, long pArg) {
+        if (!referenceEmitter(true)) return false;
+        try {
+            pAction.run(callback(), pArg);
+        } finally {
+            dereferenceEmitter();
+        }
+        return true;
+    }
+
+    /**
+     * Same as invoke(CallbackAction) but gives back a result.
+     *
+     * @param pDefault Result returned if emitters could not be referenced.
+     * @return Result of the function or pDefault if it was not applied.
+     */
+    public <TResult> TResult call(CallbackFunction<? super TCallback, ? extends TResult> pFunction, TResult pDefault) {
+        if (!referenceEmitter(true)) return pDefault;
+        try {
+            return pFunction.apply(callback());
+        } finally {
+            dereferenceEmitter();
+        }
+    }
+
+    /**
+     * Same as call(CallbackFunction, Object) with one argument.
+     */
+    public <TArg, TResult> TResult call(CallbackFunction1<? super TCallback, ? super TArg, ? extends TResult> pFunction, TArg pArg,
+                                        TResult pDefault) {
+        if (!referenceEmitter(true)) return pDefault;
+        try {
+            return pFunction.apply(callback(), pArg);
+        } finally {
+            dereferenceEmitter();
+        }
+    }
+
+    /**
+     * Same as call(CallbackFunction, Object) with two arguments.
+     */
+    public <TArg1, TArg2, TResult> TResult call(CallbackFunction2<? super TCallback, ? super TArg1, ? super TArg2, ? extends TResult> pFunction,
+                                                TArg1 pArg1, TArg2 pArg2, TResult pDefault) {
+        if (!referenceEmitter(true)) return pDefault;
+        try {
+            return pFunction.apply(callback(), pArg1, pArg2);
+        } finally {
+            dereferenceEmitter();
+        }
+    }
+
+    /**
+     * Same as invoke(CallbackAction) but, if emitters are not available, action is run as soon as they are, when the missing
+     * emitters are managed again (e.g. when an activity is recreated after a rotation). Action is then run on the thread which
+     * calls CallbackManager.manage(), from this call. Nothing is polled in the meantime.
+     *
+     * @return Handle completed once action has been run, or cancelled if an emitter is unmanaged and can't come back or if
+     * manager is closed.
+     */
+    public PendingInvocation invokeWhenAvailable(CallbackAction<? super TCallback> pAction) {
+        return PendingInvocation.start(mManager, this, pAction);
+    }
+
+    /**
+     * Same as invokeWhenAvailable(CallbackAction) with one argument.
+     */
+    public <TArg> PendingInvocation invokeWhenAvailable(CallbackAction1<? super TCallback, ? super TArg> pAction, TArg pArg) {
+        return PendingInvocation.start(mManager, this, pAction, pArg);
+    }
+
+    /**
+     * @return True if emitters can never be available again, i.e. if manager is closed or if an unmanaged emitter has been
+     * garbage collected. Callers waiting for emitters (e.g. a subscriber dropping items meanwhile) can give up.
+     */
+    public boolean isAbandoned() {
+        if (mManager.isClosed()) return true;
+        EmitterRef missingEmitterRef = missingEmitterRef();
+        return (missingEmitterRef != null) && (missingEmitterRef.emitterId() == null);
+    }
+
+    /**
+     * @return Reference of an emitter of the container (or of a parent container) which is not available, or null if none.
+     */
+    EmitterRef missingEmitterRef() {
+        for (CallbackContainer<TCallback> container : mContainerChain) {
+            for (EmitterDescriptor emitterDescriptor : container.mEmitterDescriptors) {
+                if (emitterDescriptor.emitterRef().get() == null) return emitterDescriptor.emitterRef();
             }
         }
+        return null;
+    }
 
-        if (mEmitterDescriptors != null) {
-            mLock.lock();
-            try {
-                // Note: No need to rollback modifications if an exception occur. Leave references as is, thus creating a
-                // memory leak. We can't do much about it since having an exception here denotes an internal bug.
-                if ((--mReferenceCounter) == 0) {
-                    for (EmitterDescriptor emitterDescriptor : mEmitterDescriptors) {
-                        emitterDescriptor.dereference(mCallback);
-                    }
+    /**
+     * Restore emitters of several containers at once, e.g. before delivering a burst of results. Parents shared by containers
+     * (e.g. callbacks nested in the same callback) are referenced once, then just count a reference for each container. Emitters
+     * not referenced yet are referenced grouped by lock, so that a lock shared by several containers (e.g. with a
+     * StripedLockFactory) is taken once. Only one lock is held at a time.
+     *
+     * @param pRollbackOnFailure True to cancel referencing of all the containers if one of them cannot be referenced, or false
+     *                           if partial referencing is allowed (see referenceEmitter()).
+     * @return True if all the containers were referenced. If false, nothing is referenced and dereferenceAll() must not be called.
+     */
+    public static <TCallback> boolean referenceAll(List<CallbackContainer<TCallback>> pContainers, boolean pRollbackOnFailure) {
+        // Containers already referenced just count a new reference. Others are collected and referenced afterwards.
+        BatchTransitions<TCallback> transitions = null;
+        for (int i = 0; i < pContainers.size(); ++i) {
+            CallbackContainer<TCallback> container = pContainers.get(i);
+            if (container.mIdleHook != null) container.referenceUntilIdle();
+            for (CallbackContainer<TCallback> chainContainer : container.mContainerChain) {
+                if ((transitions != null) && transitions.count(chainContainer)) continue;
+                if (chainContainer.tryCountReference()) continue;
+
+                if (transitions == null) transitions = new BatchTransitions<>();
+                transitions.add(chainContainer);
+            }
+        }
+        if ((transitions == null) || transitions.reference(pRollbackOnFailure)) return true;
+
+        // Release references counted or made before failure. Containers whose referencing failed or was not attempted hold none.
+        for (int i = pContainers.size() - 1; i >= 0; --i) {
+            CallbackContainer<TCallback>[] containerChain = pContainers.get(i).mContainerChain;
+            for (int j = containerChain.length - 1; j >= 0; --j) {
+                if (!transitions.isPending(containerChain[j])) containerChain[j].dereferenceOwnEmitters();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove emitter references of several containers referenced together with referenceAll(). Emitters to dereference are
+     * grouped by lock as in referenceAll().
+     */
+    public static <TCallback> void dereferenceAll(List<CallbackContainer<TCallback>> pContainers) {
+        BatchTransitions<TCallback> transitions = null;
+        for (int i = pContainers.size() - 1; i >= 0; --i) {
+            CallbackContainer<TCallback>[] containerChain = pContainers.get(i).mContainerChain;
+            for (int j = containerChain.length - 1; j >= 0; --j) {
+                CallbackContainer<TCallback> chainContainer = containerChain[j];
+                if ((transitions != null) && transitions.count(chainContainer)) continue;
+                if (chainContainer.tryCountDereference()) continue;
+
+                if (transitions == null) transitions = new BatchTransitions<>();
+                transitions.add(chainContainer);
+            }
+        }
+        if (transitions != null) transitions.dereference();
+    }
+
+    /**
+     * Restore emitters of this container only. Container must have emitters.
+     */
+    private boolean referenceOwnEmitters(boolean pRollbackOnFailure) {
+        // Emitters are already referenced. Just count this new reference.
+        if (tryCountReference()) return true;
+        if (mConfined) return referenceOwnEmittersLocked(pRollbackOnFailure, 1);
+
+        // Else emitters need to be referenced or another thread is referencing or dereferencing them.
+        mLock.lock();
+        try {
+            return referenceOwnEmittersLocked(pRollbackOnFailure, 1);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return True if emitters were already referenced and a new reference has been counted, false if emitters need to be
+     * referenced or if another thread is referencing or dereferencing them.
+     */
+    private boolean tryCountReference() {
+        if (mConfined) {
+            if (mConfinedReferenceCounter == 0) return false;
+            ++mConfinedReferenceCounter;
+            return true;
+        }
+
+        // Retried while emitters are referenced, so that a container referenced by a batch never needs a transition again.
+        int referenceCounter;
+        while ((referenceCounter = mReferenceCounter) > 0) {
+            if (sReferenceCounter.compareAndSet(this, referenceCounter, referenceCounter + 1)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reference emitters if needed and count the given number of references. Lock must be held (unless container is confined).
+     */
+    private boolean referenceOwnEmittersLocked(boolean pRollbackOnFailure, int pCount) {
+        if (mConfined) {
+            if ((mConfinedReferenceCounter == 0) && !doReferenceEmitter(pRollbackOnFailure)) return false;
+            mConfinedReferenceCounter += pCount;
+            return true;
+        }
+
+        while (true) {
+            // Transitions are performed under lock only so TRANSITION can't be observed here.
+            int referenceCounter = mReferenceCounter;
+            if (referenceCounter > 0) {
+                if (sReferenceCounter.compareAndSet(this, referenceCounter, referenceCounter + pCount)) return true;
+            } else if (sReferenceCounter.compareAndSet(this, 0, TRANSITION)) {
+                boolean referenced = false;
+                try {
+                    referenced = doReferenceEmitter(pRollbackOnFailure);
+                    return referenced;
+                } finally {
+                    mReferenceCounter = referenced ? pCount : 0;
                 }
-            } finally {
-                mLock.unlock();
             }
         }
     }
 
     /**
-     * Locate all the outer object references (e.g. this$0) inside the task class, manage them if necessary and cache emitter
-     * field properties for later use. Check is performed recursively on all super classes too.
+     * Perform emitters referencing. Reference counter must be in TRANSITION state (or container confined) and is updated by the
+     * caller.
      */
-    private void prepareDescriptor() {
+    private boolean doReferenceEmitter(boolean pRollbackOnFailure) {
+        EmitterDescriptor[] emitterDescriptors = mEmitterDescriptors;
+        int[] referencedGenerations = mReferencedGenerations;
         try {
-            // Go through the main class and each of its super classes and look for "this$" fields.
-            Class<?> taskResultClass = mCallback.getClass();
-            while (taskResultClass != Object.class) {
-                // If current class is an inner class...
-                if ((taskResultClass.getEnclosingClass() != null) && !Modifier.isStatic(taskResultClass.getModifiers())) {
-                    // Find emitter references and generate a descriptor from them.
-                    for (Field field : taskResultClass.getDeclaredFields()) {
-                        if (field.getName().startsWith("this$")) {
-                            prepareEmitterField(field);
-                            // There should be only one outer reference per "class" in the Task class hierarchy. So we can
-                            // stop as soon as the field is found as there won't be another.
-                            break;
+            // Emitters are read optimistically: generation of each reference is saved before reading its emitter, then checked
+            // again once all fields are written. If one reference has been updated meanwhile by a concurrent call to manage(),
+            // fields may mix old and new emitters, so everything is read again. Writers are never blocked.
+            do {
+                // Each emitter reference is read only once, even if it is used by several fields (e.g. outer fields of a class
+                // and its superclass), so that all these fields get the same emitter.
+                EmitterRef emitterRef = null;
+                Object emitter = null;
+                int generation = 0;
+                for (int i = 0; i < emitterDescriptors.length; ++i) {
+                    EmitterDescriptor emitterDescriptor = emitterDescriptors[i];
+                    if (emitterDescriptor.emitterRef() != emitterRef) {
+                        emitterRef = emitterDescriptor.emitterRef();
+                        generation = emitterRef.generation();
+                        emitter = emitterRef.get();
+                    }
+                    referencedGenerations[i] = generation;
+
+                    if (emitter != null) {
+                        emitterDescriptor.reference(mCallback, emitter);
+                    } else if (pRollbackOnFailure) {
+                        // Rollback modifications in case of failure.
+                        for (int j = 0; j < i; ++j) {
+                            emitterDescriptors[j].dereference(mCallback);
                         }
+                        return false;
+                    } else {
+                        // Field may still hold the emitter written by a previous iteration, which is obsolete now.
+                        emitterDescriptor.dereference(mCallback);
                     }
                 }
-                taskResultClass = taskResultClass.getSuperclass();
-            }
-        } finally {
-            if (mEmitterDescriptors != null) {
-                for (EmitterDescriptor emitterDescriptor : mEmitterDescriptors) {
-                    emitterDescriptor.dereference(mCallback);
-                }
+            } while (!isSnapshotValid());
+            return true;
+        }
+        // Note: Rollback any modifications if an exception occurs. Having an exception here denotes an internal bug.
+        catch (CallbackException eLeakManagerAndroidException) {
+            // Note that if referencing failed at some point, dereferencing is likely to fail too. That's not a big issue since an
+            // exception will be thrown in both cases anyway.
+            for (EmitterDescriptor rolledEmitterDescriptor : emitterDescriptors) {
+                rolledEmitterDescriptor.dereference(mCallback);
             }
+            throw eLeakManagerAndroidException;
         }
     }
 
     /**
-     * Find and save the descriptor of the corresponding field, i.e. an indirect (weak) reference pointing to the emitter through
-     * its Id or a simple indirect (weak) reference for unmanaged emitters.
-     *
-     * @param pField Field to manage.
+     * @return True if no emitter reference of this container has been updated since its generation was saved.
      */
-    private void prepareEmitterField(Field pField) {
+    private boolean isSnapshotValid() {
+        EmitterDescriptor[] emitterDescriptors = mEmitterDescriptors;
+        int[] referencedGenerations = mReferencedGenerations;
+        for (int i = 0; i < emitterDescriptors.length; ++i) {
+            if (!emitterDescriptors[i].emitterRef().isGeneration(referencedGenerations[i])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove emitter references of this container only. Container must have emitters.
+     */
+    private void dereferenceOwnEmitters() {
+        // Emitters are still needed by another reference. Just count this dereference.
+        if (tryCountDereference()) return;
+        if (mConfined) {
+            dereferenceOwnEmittersLocked(1);
+            return;
+        }
+
+        // Else emitters need to be dereferenced or another thread is referencing or dereferencing them.
+        mLock.lock();
         try {
-            pField.setAccessible(true);
+            dereferenceOwnEmittersLocked(1);
+        } finally {
+            mLock.unlock();
+        }
+    }
 
-            // Extract the emitter "reflectively" and compute its Id.
-            EmitterRef emitterRef;
-            Object emitter = pField.get(mCallback);
+    /**
+     * @return True if emitters are still needed by another reference and this dereference has been counted, false if emitters
+     * need to be dereferenced or if another thread is referencing or dereferencing them.
+     */
+    private boolean tryCountDereference() {
+        if (mConfined) {
+            if (mConfinedReferenceCounter <= 1) return false;
+            --mConfinedReferenceCounter;
+            return true;
+        }
 
-            if (emitter != null) {
-                emitterRef = mManager.resolveEmitter(emitter);
-                lookForParentDescriptor(pField, emitter);
-            }
-            // If reference is null, that means the emitter is probably used in a parent container and already managed.
-            // Try to find its Id in parent containers.
-            else {
-                // Not sure there is a problem here. The list of parent descriptors should be entirely created before to be
-                // sure we can properly resolve reference. However this$x fields are processed from child class to super
-                // classes. My guess is that top-most child class will always have its outer reference filled, which itself
-                // will point to parent outer objects. And if one of the outer reference is created explicitly through a
-                // "myOuter.new Inner()", well the outer class reference myOuter cannot be null or a NullPointerException is
-                // thrown by the Java language anyway. But that remains late-night suppositions... Anyway if it doesn't work
-                // it probably means you're just writing really bad code so just stop it please! Note that this whole case can
-                // occur only when onFinish() is called with keepResultOnHold option set to false (in which case referencing
-                // is not guaranteed be fully applied).
-                emitterRef = resolveRefInParentDescriptors(pField);
+        int referenceCounter;
+        while ((referenceCounter = mReferenceCounter) > 1) {
+            if (sReferenceCounter.compareAndSet(this, referenceCounter, referenceCounter - 1)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Count the given number of dereferences and dereference emitters if no reference is left. Lock must be held (unless
+     * container is confined).
+     */
+    private void dereferenceOwnEmittersLocked(int pCount) {
+        if (mConfined) {
+            // Nothing is referenced (i.e. dereferenceEmitter() called without a successful referenceEmitter()).
+            if (mConfinedReferenceCounter == 0) return;
+            if (mConfinedReferenceCounter > pCount) {
+                mConfinedReferenceCounter -= pCount;
+            } else {
+                mConfinedReferenceCounter = 0;
+                doDereferenceEmitter();
             }
+            return;
+        }
 
-            if (emitterRef != null) {
-                if (mEmitterDescriptors == null) {
-                    // Most of the time, a task will have only one emitter. Hence a capacity of 1.
-                    mEmitterDescriptors = new ArrayList<>(1);
+        while (true) {
+            // Transitions are performed under lock only so TRANSITION can't be observed here.
+            int referenceCounter = mReferenceCounter;
+            if (referenceCounter > pCount) {
+                if (sReferenceCounter.compareAndSet(this, referenceCounter, referenceCounter - pCount)) return;
+            } else if (referenceCounter > 0) {
+                if (sReferenceCounter.compareAndSet(this, referenceCounter, TRANSITION)) {
+                    try {
+                        doDereferenceEmitter();
+                    } finally {
+                        mReferenceCounter = 0;
+                    }
+                    return;
                 }
-                mEmitterDescriptors.add(new EmitterDescriptor(pField, emitterRef));
             } else {
-                // Maybe this is too brutal and we should do nothing, hoping that no access will be made. But for the moment I
-                // really think this case should never happen under normal conditions. See the big paragraph above...
-                throw emitterIdCouldNotBeDetermined(mCallback);
+                // Nothing is referenced (i.e. dereferenceEmitter() called without a successful referenceEmitter()).
+                return;
+            }
+        }
+    }
+
+    /**
+     * Perform emitters dereferencing. Reference counter must be in TRANSITION state (or container confined) and is updated by
+     * the caller.
+     */
+    private void doDereferenceEmitter() {
+        // Note: No need to rollback modifications if an exception occur. Leave references as is, thus creating a memory leak. We
+        // can't do much about it since having an exception here denotes an internal bug.
+        for (EmitterDescriptor emitterDescriptor : mEmitterDescriptors) {
+            emitterDescriptor.dereference(mCallback);
+        }
+    }
+
+    /**
+     * Locate all the outer object references (e.g. this$0) inside the task class, manage them if necessary and cache emitter
+     * field properties for later use. Outer fields of the class and its super classes are looked up once per class and cached.
+     */
+    private void prepareDescriptor(CallbackManager.WrapBatch<TCallback> pBatch) {
+        // Most of the time, a task will have only one emitter and no parent. Hence a capacity of 1.
+        List<EmitterDescriptor> emitterDescriptors = new ArrayList<>(1);
+        List<CallbackContainer<TCallback>> parentChain = new ArrayList<>(1);
+        try {
+            for (OuterField outerField : callbackClassOf(mCallback.getClass(), pBatch).outerFields()) {
+                prepareEmitterField(outerField, emitterDescriptors, parentChain, pBatch);
+            }
+        } finally {
+            for (EmitterDescriptor emitterDescriptor : emitterDescriptors) {
+                emitterDescriptor.dereference(mCallback);
             }
-        } catch (IllegalAccessException | IllegalArgumentException exception) {
-            throw internalError(exception);
+        }
+
+        if (!emitterDescriptors.isEmpty()) {
+            mEmitterDescriptors = groupByEmitterRef(emitterDescriptors);
+            mReferencedGenerations = new int[mEmitterDescriptors.length];
+            parentChain.add(this);
+        }
+        mContainerChain = toArray(parentChain);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <TCallback> CallbackContainer<TCallback>[] toArray(List<CallbackContainer<TCallback>> pContainers) {
+        // Generic arrays cannot be created, only arrays of wildcard types.
+        return pContainers.toArray((CallbackContainer<TCallback>[]) new CallbackContainer<?>[pContainers.size()]);
+    }
+
+    /**
+     * @return Descriptors in the same order except that those sharing an emitter reference are moved next to the first one.
+     */
+    private static EmitterDescriptor[] groupByEmitterRef(List<EmitterDescriptor> pEmitterDescriptors) {
+        EmitterDescriptor[] emitterDescriptors = new EmitterDescriptor[pEmitterDescriptors.size()];
+        int size = 0;
+        for (EmitterDescriptor emitterDescriptor : pEmitterDescriptors) {
+            // Insert after the last descriptor with the same reference, if any.
+            int index = size;
+            for (int i = 0; i < size; ++i) {
+                if (emitterDescriptors[i].emitterRef() == emitterDescriptor.emitterRef()) index = i + 1;
+            }
+            System.arraycopy(emitterDescriptors, index, emitterDescriptors, index + 1, size - index);
+            emitterDescriptors[index] = emitterDescriptor;
+            ++size;
+        }
+        return emitterDescriptors;
+    }
+
+    /**
+     * Find and save the descriptor of the corresponding field, i.e. an indirect (weak) reference pointing to the emitter through
+     * its Id or a simple indirect (weak) reference for unmanaged emitters.
+     *
+     * @param pField              Field to manage.
+     * @param pEmitterDescriptors Descriptors found so far, to which the new descriptor is added.
+     * @param pParentChain        Parent containers found so far, to which new parent containers are added.
+     * @param pBatch              Current wrapAll() batch or null.
+     */
+    private void prepareEmitterField(OuterField pField, List<EmitterDescriptor> pEmitterDescriptors,
+                                     List<CallbackContainer<TCallback>> pParentChain, CallbackManager.WrapBatch<TCallback> pBatch) {
+        // Extract the emitter "reflectively" and compute its Id.
+        EmitterRef emitterRef;
+        Object emitter = pField.get(mCallback);
+
+        if (emitter != null) {
+            emitterRef = mManager.resolveEmitter(emitter, pBatch);
+            lookForParentDescriptor(pField, emitter, pParentChain, pBatch);
+        }
+        // If reference is null, that means the emitter is probably used in a parent container and already managed.
+        // Try to find its Id in parent containers.
+        else {
+            // Not sure there is a problem here. The list of parent descriptors should be entirely created before to be
+            // sure we can properly resolve reference. However this$x fields are processed from child class to super
+            // classes. My guess is that top-most child class will always have its outer reference filled, which itself
+            // will point to parent outer objects. And if one of the outer reference is created explicitly through a
+            // "myOuter.new Inner()", well the outer class reference myOuter cannot be null or a NullPointerException is
+            // thrown by the Java language anyway. But that remains late-night suppositions... Anyway if it doesn't work
+            // it probably means you're just writing really bad code so just stop it please! Note that this whole case can
+            // occur only when onFinish() is called with keepResultOnHold option set to false (in which case referencing
+            // is not guaranteed be fully applied).
+            emitterRef = resolveRefInParentDescriptors(pField, pParentChain);
+        }
+
+        if (emitterRef != null) {
+            pEmitterDescriptors.add(new EmitterDescriptor(pField, emitterRef));
+        } else {
+            // Maybe this is too brutal and we should do nothing, hoping that no access will be made. But for the moment I
+            // really think this case should never happen under normal conditions. See the big paragraph above...
+            throw emitterIdCouldNotBeDetermined(mCallback);
         }
     }
 
@@ -225,24 +772,17 @@ public final class CallbackContainer<TCallback> {
      * Sometimes, we cannot resolve a parent emitter reference because it has already been dereferenced. In that case, we should
      * find the emitter reference somewhere in parent descriptors.
      *
-     * @param pField Emitter field.
+     * @param pField       Emitter field.
+     * @param pParentChain Parent containers found so far.
      * @return The emitter if it could be found or null else.
      */
-    private EmitterRef resolveRefInParentDescriptors(Field pField) {
-        if (mParentContainers != null) {
-            for (CallbackContainer<TCallback> parentContainer : mParentContainers) {
-                EmitterRef emitterRef;
-                if (mEmitterDescriptors != null) {
-                    for (EmitterDescriptor parentEmitterDescriptor : parentContainer.mEmitterDescriptors) {
-                        // We have found the right ref if its field has the same type than the field of the emitter we look
-                        // for.
-                        // I turned my mind upside-down but this seems to work.
-                        emitterRef = parentEmitterDescriptor.hasSameType(pField);
-                        if (emitterRef != null) return emitterRef;
-                    }
-                }
-
-                emitterRef = parentContainer.resolveRefInParentDescriptors(pField);
+    private EmitterRef resolveRefInParentDescriptors(OuterField pField, List<CallbackContainer<TCallback>> pParentChain) {
+        // Parents are ordered from the farthest to the closest. Look in the closest first.
+        for (int i = pParentChain.size() - 1; i >= 0; --i) {
+            for (EmitterDescriptor parentEmitterDescriptor : pParentChain.get(i).mEmitterDescriptors) {
+                // We have found the right ref if its field has the same type than the field of the emitter we look for.
+                // I turned my mind upside-down but this seems to work.
+                EmitterRef emitterRef = parentEmitterDescriptor.hasSameType(pField);
                 if (emitterRef != null) return emitterRef;
             }
         }
@@ -253,57 +793,133 @@ public final class CallbackContainer<TCallback> {
      * Check for parent tasks (i.e. a task containing directly or indirectly innertasks) and their descriptors that will be
      * necessary to restore all emitters of a task.
      *
-     * @param pField   Emitter field.
-     * @param pEmitter Effective emitter reference. Must not be null.
+     * @param pField       Emitter field.
+     * @param pEmitter     Effective emitter reference. Must not be null.
+     * @param pParentChain Parent containers found so far, to which the chain of the parent container is added.
+     * @param pBatch       Current wrapAll() batch or null.
      */
-    private void lookForParentDescriptor(Field pField, Object pEmitter) {
-        CallbackContainer<TCallback> descriptor = mManager.resolveContainer(pField, pEmitter);
+    private void lookForParentDescriptor(OuterField pField, Object pEmitter, List<CallbackContainer<TCallback>> pParentChain,
+                                         CallbackManager.WrapBatch<TCallback> pBatch) {
+        CallbackContainer<TCallback> descriptor = mManager.resolveContainer(pField, pEmitter, pBatch);
         if (descriptor != null) {
-            if (mParentContainers == null) {
-                // A task will have most of the time no parents. Hence lazy-initialization. But if that's not the case, then a
-                // task will usually have only one parent, rarely more. Hence a capacity of 1.
-                mParentContainers = new ArrayList<>(1);
+            // Parent chain is already flattened. Just skip containers shared with other parents.
+            for (CallbackContainer<TCallback> parentContainer : descriptor.mContainerChain) {
+                if (!containsIdentical(pParentChain, parentContainer)) pParentChain.add(parentContainer);
             }
-            mParentContainers.add(descriptor);
         } else {
-            try {
-                // Go through the main class and each of its super classes and look for "this$" fields.
-                Class<?> taskResultClass = pEmitter.getClass();
-                while (taskResultClass != Object.class) {
-                    // If current class is an inner class...
-                    if ((taskResultClass.getEnclosingClass() != null) && !Modifier.isStatic(taskResultClass.getModifiers())) {
-                        // Find all parent emitter references and their corresponding descriptors.
-                        for (Field field : taskResultClass.getDeclaredFields()) {
-                            if (field.getName().startsWith("this$")) {
-                                field.setAccessible(true);
-                                Object parentEmitter = field.get(pEmitter);
-                                if (parentEmitter != null) {
-                                    lookForParentDescriptor(field, parentEmitter);
-                                }
-                                // else {
-                                //     Look for the big comment in prepareEmitterField(). Here we try to check the whole
-                                //     hierarchy of parent this$x to look for parent descriptors (not only this$x for the
-                                //     handler class and its super classes). In this case, if we get a null, I really think we
-                                //     are stuck if there is a Task handler and its associated descriptor hidden deeper behind
-                                //     this null reference. Basically we can do nothing against this except maybe a warning as
-                                //     code may still be correct if the null reference just hides e.g. a managed object (e.g.
-                                //     an Activity). That's why an exception would be too brutal. User will get a
-                                //     NullPointerException anyway if he try to go through such a reference. Again note that
-                                //     this whole case can occur only when onFinish() is called with keepResultOnHold option
-                                //     set to false (in which case referencing is not guaranteed be fully applied).
-                                // }
-
-                                // There should be only one outer reference per "class" in the Task class hierarchy. So we can
-                                // stop as soon as the field is found as there won't be another.
-                                break;
-                            }
-                        }
+            // Go through the outer references of the emitter class and each of its super classes.
+            for (OuterField outerField : callbackClassOf(pEmitter.getClass(), pBatch).outerFields()) {
+                Object parentEmitter = outerField.get(pEmitter);
+                if (parentEmitter != null) {
+                    lookForParentDescriptor(outerField, parentEmitter, pParentChain, pBatch);
+                }
+                // else {
+                //     Look for the big comment in prepareEmitterField(). Here we try to check the whole hierarchy of parent
+                //     this$x to look for parent descriptors (not only this$x for the handler class and its super classes). In
+                //     this case, if we get a null, I really think we are stuck if there is a Task handler and its associated
+                //     descriptor hidden deeper behind this null reference. Basically we can do nothing against this except
+                //     maybe a warning as code may still be correct if the null reference just hides e.g. a managed object
+                //     (e.g. an Activity). That's why an exception would be too brutal. User will get a NullPointerException
+                //     anyway if he try to go through such a reference. Again note that this whole case can occur only when
+                //     onFinish() is called with keepResultOnHold option set to false (in which case referencing is not
+                //     guaranteed be fully applied).
+                // }
+            }
+        }
+    }
+
+    private static CallbackClass callbackClassOf(Class<?> pClass, CallbackManager.WrapBatch<?> pBatch) {
+        return (pBatch != null) ? pBatch.callbackClassOf(pClass) : CallbackClass.of(pClass);
+    }
+
+    private static boolean containsIdentical(List<?> pList, Object pObject) {
+        for (Object object : pList) {
+            if (object == pObject) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Containers of a referenceAll() or dereferenceAll() call whose emitters need to be referenced or dereferenced (i.e. which
+     * could not just count a reference), grouped by lock. A container appearing several times in the batch is counted.
+     */
+    private static final class BatchTransitions<TCallback> {
+        // Confined containers have no lock and are grouped under null.
+        private final Map<Lock, List<Transition<TCallback>>> mTransitionsByLock = new IdentityHashMap<>();
+        private final Map<CallbackContainer<TCallback>, Transition<TCallback>> mTransitions = new IdentityHashMap<>();
+
+        /**
+         * @return True if container is already in the batch, in which case one more reference is counted for it.
+         */
+        boolean count(CallbackContainer<TCallback> pContainer) {
+            Transition<TCallback> transition = mTransitions.get(pContainer);
+            if (transition == null) return false;
+            ++transition.mCount;
+            return true;
+        }
+
+        void add(CallbackContainer<TCallback> pContainer) {
+            Transition<TCallback> transition = new Transition<>(pContainer);
+            mTransitions.put(pContainer, transition);
+            List<Transition<TCallback>> transitions = mTransitionsByLock.get(pContainer.mLock);
+            if (transitions == null) {
+                transitions = new ArrayList<>(1);
+                mTransitionsByLock.put(pContainer.mLock, transitions);
+            }
+            transitions.add(transition);
+        }
+
+        /**
+         * @return True if container is in the batch but has not been referenced (i.e. it holds none of the batch references).
+         */
+        boolean isPending(CallbackContainer<TCallback> pContainer) {
+            Transition<TCallback> transition = mTransitions.get(pContainer);
+            return (transition != null) && !transition.mDone;
+        }
+
+        /**
+         * @return False if referencing of a container failed, in which case following containers are not referenced.
+         */
+        boolean reference(boolean pRollbackOnFailure) {
+            for (Map.Entry<Lock, List<Transition<TCallback>>> transitions : mTransitionsByLock.entrySet()) {
+                Lock lock = transitions.getKey();
+                if (lock != null) lock.lock();
+                try {
+                    for (Transition<TCallback> transition : transitions.getValue()) {
+                        if (!transition.mContainer.referenceOwnEmittersLocked(pRollbackOnFailure, transition.mCount)) return false;
+                        transition.mDone = true;
                     }
-                    taskResultClass = taskResultClass.getSuperclass();
+                } finally {
+                    if (lock != null) lock.unlock();
                 }
-            } catch (IllegalArgumentException | IllegalAccessException exception) {
-                throw internalError(exception);
             }
+            return true;
+        }
+
+        void dereference() {
+            for (Map.Entry<Lock, List<Transition<TCallback>>> transitions : mTransitionsByLock.entrySet()) {
+                Lock lock = transitions.getKey();
+                if (lock != null) lock.lock();
+                try {
+                    for (Transition<TCallback> transition : transitions.getValue()) {
+                        transition.mContainer.dereferenceOwnEmittersLocked(transition.mCount);
+                    }
+                } finally {
+                    if (lock != null) lock.unlock();
+                }
+            }
+        }
+    }
+
+    private static final class Transition<TCallback> {
+        private final CallbackContainer<TCallback> mContainer;
+        private int mCount;
+        private boolean mDone;
+
+        Transition(CallbackContainer<TCallback> pContainer) {
+            mContainer = pContainer;
+            mCount = 1;
+            mDone = false;
         }
     }
-}
\ No newline at end of file
+}
@@ -19,6 +19,10 @@ public class CallbackException extends RuntimeException {
         return new CallbackException("A call to manage for emitter %2$s with Id %1$s is missing.", pEmitterId, pEmitter);
     }
 
+    public static CallbackException emittersNotAvailable(Object pTask) {
+        return new CallbackException("Task %1$s skipped since its emitters are not available anymore.", pTask);
+    }
+
     public static CallbackException innerTasksNotAllowed(Object pTask) {
         return new CallbackException("Inner tasks of type %1$s not allowed by configuration.", pTask.getClass());
     }
@@ -31,6 +35,10 @@ public class CallbackException extends RuntimeException {
         return new CallbackException("Emitter Id %1$s is invalid for emitter %2$s.", pEmitterId, pEmitter);
     }
 
+    public static CallbackException notOwnerThread(Thread pOwnerThread) {
+        return new CallbackException("Must be executed from thread %1$s only.", pOwnerThread);
+    }
+
     public static CallbackException taskExecutedFromUnexecutedTask(Object pEmitter) {
         return new CallbackException("Task executed from parent task %1$s that hasn't been executed yet.", pEmitter);
     }
@@ -1,18 +1,29 @@
 package com.codexperiments.leakeeper;
 
+import com.codexperiments.leakeeper.config.enforcer.ConfinedThreadEnforcer;
 import com.codexperiments.leakeeper.config.enforcer.NoThreadEnforcer;
 import com.codexperiments.leakeeper.config.enforcer.ThreadEnforcer;
 import com.codexperiments.leakeeper.config.factory.LockFactory;
 import com.codexperiments.leakeeper.config.factory.MultiThreadLockFactory;
 import com.codexperiments.leakeeper.config.factory.SingleThreadLockFactory;
+import com.codexperiments.leakeeper.config.factory.StripedLockFactory;
 import com.codexperiments.leakeeper.config.resolver.EmitterResolver;
-import com.codexperiments.leakeeper.internal.AutoCleanMap;
+import com.codexperiments.leakeeper.config.resolver.IntEmitterResolver;
+import com.codexperiments.leakeeper.internal.CallbackClass;
 import com.codexperiments.leakeeper.internal.EmitterId;
 import com.codexperiments.leakeeper.internal.EmitterRef;
+import com.codexperiments.leakeeper.internal.EmitterRegistry;
+import com.codexperiments.leakeeper.internal.OuterField;
+import com.codexperiments.leakeeper.internal.WeakIdentityMap;
 
-import java.lang.reflect.Field;
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.codexperiments.leakeeper.CallbackException.*;
 
@@ -83,20 +94,100 @@ import static com.codexperiments.leakeeper.CallbackException.*;
 public class CallbackManager<TCallback> {
     private static final int DEFAULT_CAPACITY = 64;
 
+    /**
+     * Create a manager confined to the current thread: it can be used from this thread only, which is checked with a simple
+     * comparison, and relies only on non-concurrent structures. Its containers count references in a plain field, without any
+     * lock, and must be referenced and dereferenced from this thread too. Typically for managers used from the Android
+     * UI-Thread only.
+     */
+    public static <TCallback> CallbackManager<TCallback> confined(Class<TCallback> pCallbackClass, EmitterResolver pEmitterResolver) {
+        return confined(pCallbackClass, pEmitterResolver, Thread.currentThread());
+    }
+
+    /**
+     * Same as confined(Class, EmitterResolver) but confined to the given thread.
+     */
+    public static <TCallback> CallbackManager<TCallback> confined(Class<TCallback> pCallbackClass, EmitterResolver pEmitterResolver,
+                                                                  Thread pOwnerThread) {
+        return singleThreaded(pCallbackClass, pEmitterResolver, new ConfinedThreadEnforcer(pOwnerThread), true);
+    }
+
     public static <TCallback> CallbackManager<TCallback> singleThreaded(Class<TCallback> pCallbackClass, EmitterResolver pEmitterResolver, ThreadEnforcer pThreadEnforcer) {
-        Map<EmitterId, EmitterRef> emitters = new HashMap<>(DEFAULT_CAPACITY);
-        Map<TCallback, CallbackContainer<TCallback>> containers = AutoCleanMap.create(DEFAULT_CAPACITY);
+        return singleThreaded(pCallbackClass, pEmitterResolver, pThreadEnforcer, false);
+    }
+
+    private static <TCallback> CallbackManager<TCallback> singleThreaded(Class<TCallback> pCallbackClass, EmitterResolver pEmitterResolver, ThreadEnforcer pThreadEnforcer,
+                                                                         boolean pConfined) {
+        EmitterRegistry emitters = EmitterRegistry.singleThreaded(DEFAULT_CAPACITY);
         LockFactory lockFactory = new SingleThreadLockFactory();
+        WeakIdentityMap<Object, EmitterRef> unmanagedEmitters = newUnmanagedEmitterMap(1, lockFactory);
+        WeakIdentityMap<TCallback, CallbackContainer<TCallback>> containers = newContainerMap(1, lockFactory);
 
-        return new CallbackManager<>(pCallbackClass, lockFactory, pThreadEnforcer, pEmitterResolver, emitters, containers);
+        return new CallbackManager<>(pCallbackClass, lockFactory, pThreadEnforcer, pEmitterResolver, emitters, unmanagedEmitters,
+                                     containers, pConfined);
     }
 
     public static <TCallback> CallbackManager<TCallback> multiThreaded(Class<TCallback> pCallbackClass, EmitterResolver pEmitterResolver, ThreadEnforcer pThreadEnforcer) {
-        Map<EmitterId, EmitterRef> emitters = new ConcurrentHashMap<>(DEFAULT_CAPACITY);
-        Map<TCallback, CallbackContainer<TCallback>> containers = AutoCleanMap.create(DEFAULT_CAPACITY);
-        LockFactory lockFactory = new MultiThreadLockFactory();
+        return multiThreaded(pCallbackClass, pEmitterResolver, pThreadEnforcer, new StripedLockFactory());
+    }
+
+    /**
+     * @param pLockFactory Gives the locks used by containers while referencing or dereferencing emitters. A StripedLockFactory
+     *                     is used by default.
+     */
+    public static <TCallback> CallbackManager<TCallback> multiThreaded(Class<TCallback> pCallbackClass, EmitterResolver pEmitterResolver, ThreadEnforcer pThreadEnforcer,
+                                                                       LockFactory pLockFactory) {
+        EmitterRegistry emitters = EmitterRegistry.multiThreaded(DEFAULT_CAPACITY);
+        // Maps are locked independently of containers. Their lock is held only during lookups and insertions.
+        WeakIdentityMap<Object, EmitterRef> unmanagedEmitters = newUnmanagedEmitterMap(1, new MultiThreadLockFactory());
+        WeakIdentityMap<TCallback, CallbackContainer<TCallback>> containers = newContainerMap(1, new MultiThreadLockFactory());
+
+        return new CallbackManager<>(pCallbackClass, pLockFactory, pThreadEnforcer, pEmitterResolver, emitters, unmanagedEmitters,
+                                     containers, false);
+    }
 
-        return new CallbackManager<>(pCallbackClass, lockFactory, pThreadEnforcer, pEmitterResolver, emitters, containers);
+    /**
+     * Same as multiThreaded() with one shard per available processor.
+     */
+    public static <TCallback> CallbackManager<TCallback> sharded(Class<TCallback> pCallbackClass, EmitterResolver pEmitterResolver, ThreadEnforcer pThreadEnforcer) {
+        return sharded(pCallbackClass, pEmitterResolver, pThreadEnforcer, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a multi-threaded manager whose emitters and containers are split into independent shards, each with its own lock,
+     * for servers where many threads manage emitters and wrap callbacks concurrently. Emitters are sharded by Id hash and
+     * containers by callback identity hash. Containers lock with a StripedLockFactory as in multiThreaded().
+     *
+     * @param pShardCount Number of shards, rounded up to the next power of 2. Typically the number of cores.
+     */
+    public static <TCallback> CallbackManager<TCallback> sharded(Class<TCallback> pCallbackClass, EmitterResolver pEmitterResolver, ThreadEnforcer pThreadEnforcer,
+                                                                 int pShardCount) {
+        EmitterRegistry emitters = EmitterRegistry.sharded(DEFAULT_CAPACITY * pShardCount, pShardCount);
+        WeakIdentityMap<Object, EmitterRef> unmanagedEmitters = newUnmanagedEmitterMap(pShardCount, new MultiThreadLockFactory());
+        WeakIdentityMap<TCallback, CallbackContainer<TCallback>> containers = newContainerMap(pShardCount, new MultiThreadLockFactory());
+
+        return new CallbackManager<>(pCallbackClass, new StripedLockFactory(), pThreadEnforcer, pEmitterResolver, emitters,
+                                     unmanagedEmitters, containers, false);
+    }
+
+
+    private static WeakIdentityMap<Object, EmitterRef> newUnmanagedEmitterMap(int pShardCount, LockFactory pLockFactory) {
+        return new WeakIdentityMap<Object, EmitterRef>(DEFAULT_CAPACITY * pShardCount, pShardCount, pLockFactory) {
+            @Override
+            protected Object keyOf(EmitterRef pEmitterRef) {
+                return pEmitterRef.get();
+            }
+        };
+    }
+
+    private static <TCallback> WeakIdentityMap<TCallback, CallbackContainer<TCallback>> newContainerMap(int pShardCount, LockFactory pLockFactory) {
+        return new WeakIdentityMap<TCallback, CallbackContainer<TCallback>>(DEFAULT_CAPACITY * pShardCount, pShardCount,
+                                                                             pLockFactory) {
+            @Override
+            protected TCallback keyOf(CallbackContainer<TCallback> pContainer) {
+                return pContainer.callback();
+            }
+        };
     }
 
 
@@ -104,53 +195,71 @@ public class CallbackManager<TCallback> {
     private final LockFactory mLockFactory;
     private final ThreadEnforcer mThreadEnforcer;
     private final EmitterResolver mEmitterResolver;
+    // True if manager and its containers are used from a single thread, in which case containers don't lock.
+    private final boolean mConfined;
+    // Same as mEmitterResolver if it gives int Ids, null otherwise.
+    private final IntEmitterResolver mIntEmitterResolver;
 
-    // Keep tracks of all emitters. Note that TaskEmitterRef uses a weak reference to avoid memory leaks. This Map is never
-    // cleaned and accumulates references because it assumes that any object that managed object set doesn't grow infinitely but
-    // is rather limited (e.g. typically all fragments, activity and manager in an Application).
-    private final Map<EmitterId, EmitterRef> mEmitters;
-    // Allow getting back an existing descriptor through its handler when dealing with nested tasks. An AutoCleanMap is necessary
+    // Keep tracks of all emitters. Note that TaskEmitterRef uses a weak reference to avoid memory leaks. References are purged
+    // from the registry once their emitter is gone and no container uses them anymore.
+    private final EmitterRegistry mEmitters;
+    // Share the same reference between all containers of an unmanaged emitter. A reference is kept as long as containers use it.
+    private final WeakIdentityMap<Object, EmitterRef> mUnmanagedEmitters;
+    // Allow getting back an existing descriptor through its handler when dealing with nested tasks. A weak map is necessary
     // since there is no way to know when a handler are not necessary anymore.
-    /*private*/ final Map<TCallback, CallbackContainer<TCallback>> mContainers; // TODO Handle WeakRef removal this with a kind of counter in descriptor?
+    /*private*/ final WeakIdentityMap<TCallback, CallbackContainer<TCallback>> mContainers; // TODO Handle WeakRef removal this with a kind of counter in descriptor?
+    // Invocations waiting for an emitter to be managed, indexed by the Id of this emitter. Waiters are counted to skip locking in
+    // manage() when nobody waits, which is the common case.
+    private final Map<EmitterId, List<PendingInvocation>> mWaiters;
+    private final Lock mWaitersLock;
+    private volatile int mWaiterCount;
+    private volatile boolean mClosed;
 
 
     protected CallbackManager(Class<TCallback> pCallbackClass, LockFactory pLockFactory, ThreadEnforcer pThreadEnforcer,
-                              EmitterResolver pEmitterResolver, Map<EmitterId, EmitterRef> pEmitters, Map<TCallback, CallbackContainer<TCallback>> pContainers) {
+                              EmitterResolver pEmitterResolver, EmitterRegistry pEmitters,
+                              WeakIdentityMap<Object, EmitterRef> pUnmanagedEmitters,
+                              WeakIdentityMap<TCallback, CallbackContainer<TCallback>> pContainers, boolean pConfined) {
         super();
 
         mCallbackClass = pCallbackClass;
         mLockFactory = pLockFactory;
         mThreadEnforcer = pThreadEnforcer;
         mEmitterResolver = pEmitterResolver;
+        mConfined = pConfined;
+        mIntEmitterResolver = (pEmitterResolver instanceof IntEmitterResolver) ? (IntEmitterResolver) pEmitterResolver : null;
 
         mEmitters = pEmitters;
+        mUnmanagedEmitters = pUnmanagedEmitters;
         mContainers = pContainers;
+        mWaiters = new HashMap<>();
+        // Not taken from the lock factory, which may share its locks with containers (e.g. StripedLockFactory).
+        mWaitersLock = new ReentrantLock();
+        mWaiterCount = 0;
+        mClosed = false;
     }
 
     public void manage(Object pEmitter) {
         if (pEmitter == null) throw new NullPointerException("Emitter is null");
         mThreadEnforcer.enforce();
+        checkNotClosed();
 
         // Save the new emitter in the reference list. Replace the existing one, if any, according to its id (the old one is
         // considered obsolete). Emitter Id is computed by the configuration and can be null if emitter is not managed.
-        Object emitterIdValue = mEmitterResolver.resolveEmitterId(pEmitter);
+        Object emitterIdValue = resolveEmitterId(pEmitter);
         // Emitter id must not be the emitter itself or we have a leak. Warn user about this (tempting) configuration misuse.
         if ((emitterIdValue == null) || (emitterIdValue == pEmitter)) throw invalidEmitterId(emitterIdValue, pEmitter);
 
         // Save the reference of the emitter. Initialize it lazily if it doesn't exist.
-        EmitterId emitterId = new EmitterId(pEmitter.getClass(), emitterIdValue);
-        EmitterRef emitterRef = mEmitters.get(emitterId);
-        if (emitterRef == null) {
-            /*lEmitterRef =*/
-            mEmitters.put(emitterId, new EmitterRef(emitterId, pEmitter));
-        } else {
-            emitterRef.set(pEmitter);
-        }
+        mEmitters.register(pEmitter.getClass(), emitterIdValue, pEmitter);
+        // Run invocations waiting for this emitter.
+        if (mWaiterCount != 0) wakeWaiters(new EmitterId(pEmitter.getClass(), emitterIdValue));
     }
 
     public void unmanage(Object pEmitter) {
         if (pEmitter == null) throw new NullPointerException("Emitter is null");
         mThreadEnforcer.enforce();
+        checkNotClosed();
 
         // Remove an existing task emitter. If the emitter reference (in Java terms) is different from the object to remove, then
         // don't do anything. This could occur if a new object is managed before an older one with the same Id is unmanaged.
@@ -159,37 +268,140 @@ public class CallbackManager<TCallback> {
         // short period of time).
         // TODO (lEmitterRef.get() == pEmitter) is not a proper way to handle unmanage() when dealing with activities since this
         // can lead to concurrency defects. It would be better to force call to unmanage().
-        Object emitterIdValue = mEmitterResolver.resolveEmitterId(pEmitter);
+        Object emitterIdValue = resolveEmitterId(pEmitter);
         if (emitterIdValue != null) {
-            EmitterId emitterId = new EmitterId(pEmitter.getClass(), emitterIdValue);
-            EmitterRef emitterRef = mEmitters.get(emitterId);
-            if ((emitterRef != null) && (emitterRef.get() == pEmitter)) {
-                emitterRef.clear();
-            }
+            mEmitters.unregister(pEmitter.getClass(), emitterIdValue, pEmitter);
+        }
+    }
+
+    /**
+     * @return Id of the emitter, an int Id being preferred if resolver gives one. Int Ids are boxed, which is fine when managing
+     * emitters as they are registered rarely.
+     */
+    private Object resolveEmitterId(Object pEmitter) {
+        if (mIntEmitterResolver != null) {
+            int emitterIntId = mIntEmitterResolver.resolveEmitterIntId(pEmitter);
+            if (emitterIntId != IntEmitterResolver.NO_INT_ID) return emitterIntId;
         }
+        return mEmitterResolver.resolveEmitterId(pEmitter);
     }
 
     public CallbackContainer<TCallback> wrap(TCallback pCallback) {
         if (pCallback == null) throw new NullPointerException("Callback is null");
         mThreadEnforcer.enforce();
+        checkNotClosed();
 
         // Create a container to run the task.
         // Prepare the task (i.e. initialize and cache needed values) after adding it because prepareToRun() is a bit
         // expensive and should be performed only if necessary.
-        final CallbackContainer<TCallback> container = new CallbackContainer<TCallback>(this, pCallback, mLockFactory.create());
+        final CallbackContainer<TCallback> container = new CallbackContainer<TCallback>(this, pCallback, mLockFactory);
         // Save the descriptor so that any child task can use current descriptor as a parent.
         mContainers.put(pCallback, container);
         return container;
     }
 
+    /**
+     * Wrap several callbacks at once, e.g. all the callbacks started when a screen is displayed. Result is the same as calling
+     * wrap() on each of them, but thread is checked once, emitters and class information shared by consecutive callbacks are
+     * resolved once, and containers are saved in a single pass. A callback can be nested in a callback of the same batch if it
+     * comes after it.
+     *
+     * @return Containers in the iteration order of the callbacks.
+     */
+    public List<CallbackContainer<TCallback>> wrapAll(Collection<? extends TCallback> pCallbacks) {
+        mThreadEnforcer.enforce();
+        checkNotClosed();
+
+        WrapBatch<TCallback> batch = new WrapBatch<>(pCallbacks.size());
+        for (TCallback callback : pCallbacks) {
+            if (callback == null) throw new NullPointerException("Callback is null");
+            batch.add(new CallbackContainer<TCallback>(this, callback, mLockFactory, batch));
+        }
+        mContainers.putAll(batch.mContainers);
+        return batch.mContainers;
+    }
+
+    boolean isConfined() {
+        return mConfined;
+    }
+
+    /**
+     * @return True if manager and its containers can be used from several threads concurrently, i.e. if it has been created with
+     * multiThreaded() or sharded() and a thread-safe lock factory.
+     */
+    public boolean isMultiThreaded() {
+        return !(mLockFactory instanceof SingleThreadLockFactory);
+    }
+
+    /**
+     * @return True if close() has been called.
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * @return Class of the callbacks handled by this manager. Outer objects of this class are considered as parent callbacks.
+     */
+    public Class<TCallback> callbackClass() {
+        return mCallbackClass;
+    }
+
+    /**
+     * @return Registry of managed emitters, e.g. to limit its size or monitor it.
+     */
+    public EmitterRegistry emitterRegistry() {
+        return mEmitters;
+    }
+
+    /**
+     * Release all emitters and containers tracked by this manager. Manager cannot be used anymore after this call: manage(),
+     * unmanage() and wrap() throw an IllegalStateException. Callbacks already wrapped keep their current state but nested
+     * callbacks cannot be wrapped from them anymore. Pending invocations are cancelled. Closing a closed manager does nothing.
+     */
+    public void close() {
+        mThreadEnforcer.enforce();
+        if (mClosed) return;
+
+        mClosed = true;
+        mEmitters.clear();
+        mUnmanagedEmitters.clear();
+        for (PendingInvocation waiter : removeAllWaiters()) {
+            waiter.abandon();
+        }
+        mContainers.clear();
+    }
+
     /**
      * Called internally when initializing a TaskDescriptor to a reference to an emitter, either managed or not. If the emitter is
-     * not managed, then return an unmanaged reference (i.e. that is not stored in mEmitters).
+     * not managed, then return an unmanaged reference (i.e. that is not stored in mEmitters), shared by all its containers.
      *
      * @param pEmitter Emitter to find the reference of.
      * @return Emitter reference. No null is returned.
      */
     EmitterRef resolveEmitter(Object pEmitter) {
+        return resolveEmitter(pEmitter, null);
+    }
+
+    /**
+     * Same as resolveEmitter(Object) but reuses the last reference resolved in the batch if emitter is the same.
+     *
+     * @param pBatch Current wrapAll() batch or null.
+     */
+    EmitterRef resolveEmitter(Object pEmitter, WrapBatch<TCallback> pBatch) {
+        if ((pBatch != null) && (pBatch.mLastEmitter == pEmitter)) return pBatch.mLastEmitterRef;
+
+        EmitterRef emitterRef;
+        // Emitters with an int Id are looked up without boxing it.
+        if (mIntEmitterResolver != null) {
+            int emitterIntId = mIntEmitterResolver.resolveEmitterIntId(pEmitter);
+            if (emitterIntId != IntEmitterResolver.NO_INT_ID) {
+                emitterRef = mEmitters.resolve(pEmitter.getClass(), emitterIntId);
+                if (emitterRef == null) throw emitterNotManaged(emitterIntId, pEmitter);
+                return saveInBatch(pEmitter, emitterRef, pBatch);
+            }
+        }
+
         // Save the new emitter in the reference list. Replace the existing one, if any, according to its id (the old one is
         // considered obsolete). Emitter Id is computed by the configuration strategy. Note that an emitter Id can be null if no
         // dereferencing should be performed.
@@ -198,11 +410,9 @@ public class CallbackManager<TCallback> {
         // Note that when we arrive here, pEmitter can't be null.
         if (emitterIdValue == pEmitter) throw invalidEmitterId(emitterIdValue, pEmitter);
 
-        EmitterRef emitterRef;
         // Managed emitter case.
         if (emitterIdValue != null) {
-            EmitterId emitterId = new EmitterId(pEmitter.getClass(), emitterIdValue);
-            emitterRef = mEmitters.get(emitterId);
+            emitterRef = mEmitters.resolve(pEmitter.getClass(), emitterIdValue);
             // If emitter is managed by the user explicitly and is properly registered in the emitter list, do nothing. User can
             // update reference himself through manage(Object) later. But if emitter is managed (i.e. emitter Id returned by
             // configuration is not null) but is not in the emitter list, then a call to manage() is missing. Warn the user.
@@ -212,18 +422,150 @@ public class CallbackManager<TCallback> {
         else {
             // TODO The EmitterResolver should throw in that case? Document...
             //if (!mEmitterResolver.allowUnmanagedEmitters()) throw unmanagedEmittersNotAllowed(pEmitter);
-            // TODO This is wrong! There should be only one TaskEmitterRef per emitter or concurrency problems may occur.
-            emitterRef = new EmitterRef(pEmitter);
+            // There must be only one reference per emitter or concurrency problems may occur.
+            emitterRef = mUnmanagedEmitters.get(pEmitter);
+            if (emitterRef == null) emitterRef = mUnmanagedEmitters.putIfAbsent(pEmitter, new EmitterRef(pEmitter));
+        }
+
+        return saveInBatch(pEmitter, emitterRef, pBatch);
+    }
+
+    private EmitterRef saveInBatch(Object pEmitter, EmitterRef pEmitterRef, WrapBatch<TCallback> pBatch) {
+        if (pBatch != null) {
+            pBatch.mLastEmitter = pEmitter;
+            pBatch.mLastEmitterRef = pEmitterRef;
+        }
+        return pEmitterRef;
+    }
+
+    /**
+     * @return False if manager is closed, in which case waiter is not added as emitters will never be managed anymore.
+     */
+    boolean addWaiter(EmitterId pEmitterId, PendingInvocation pWaiter) {
+        mWaitersLock.lock();
+        try {
+            // Checked under lock as close() removes waiters under lock too.
+            if (mClosed) return false;
+            List<PendingInvocation> waiters = mWaiters.get(pEmitterId);
+            if (waiters == null) {
+                // Most of the time, a single invocation waits for an emitter.
+                waiters = new ArrayList<>(1);
+                mWaiters.put(pEmitterId, waiters);
+            }
+            waiters.add(pWaiter);
+            ++mWaiterCount;
+            return true;
+        } finally {
+            mWaitersLock.unlock();
+        }
+    }
+
+    void removeWaiter(EmitterId pEmitterId, PendingInvocation pWaiter) {
+        mWaitersLock.lock();
+        try {
+            List<PendingInvocation> waiters = mWaiters.get(pEmitterId);
+            if ((waiters != null) && waiters.remove(pWaiter)) {
+                --mWaiterCount;
+                if (waiters.isEmpty()) mWaiters.remove(pEmitterId);
+            }
+        } finally {
+            mWaitersLock.unlock();
+        }
+    }
+
+    /**
+     * Retry invocations waiting for the given emitter. They are retried outside of the lock since they run user actions, which
+     * may wait again for another emitter.
+     */
+    private void wakeWaiters(EmitterId pEmitterId) {
+        List<PendingInvocation> waiters;
+        mWaitersLock.lock();
+        try {
+            waiters = mWaiters.remove(pEmitterId);
+            if (waiters == null) return;
+            mWaiterCount -= waiters.size();
+        } finally {
+            mWaitersLock.unlock();
+        }
+
+        // A failing action must not prevent other waiters from being retried. First failure is rethrown once all are done.
+        Throwable failure = null;
+        for (PendingInvocation waiter : waiters) {
+            try {
+                waiter.retry();
+            } catch (RuntimeException | Error exception) {
+                if (failure == null) failure = exception;
+            }
+        }
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        else if (failure != null) throw (Error) failure;
+    }
+
+    private void checkNotClosed() {
+        if (mClosed) throw new IllegalStateException("CallbackManager is closed");
+    }
+
+    private List<PendingInvocation> removeAllWaiters() {
+        mWaitersLock.lock();
+        try {
+            List<PendingInvocation> waiters = new ArrayList<>(mWaiterCount);
+            for (List<PendingInvocation> emitterWaiters : mWaiters.values()) {
+                waiters.addAll(emitterWaiters);
+            }
+            mWaiters.clear();
+            mWaiterCount = 0;
+            return waiters;
+        } finally {
+            mWaitersLock.unlock();
         }
-        return emitterRef;
     }
 
-    CallbackContainer<TCallback> resolveContainer(Field pField, Object pEmitter) {
-        if (!mCallbackClass.isAssignableFrom(pField.getType())) return null;
+    /**
+     * @param pBatch Current wrapAll() batch or null. Containers of the batch are not saved yet and are looked up there too.
+     */
+    CallbackContainer<TCallback> resolveContainer(OuterField pField, Object pEmitter, WrapBatch<TCallback> pBatch) {
+        if (!pField.isCallback(mCallbackClass)) return null;
 
-        @SuppressWarnings("SuspiciousMethodCalls")
-        CallbackContainer<TCallback> container = mContainers.get(pEmitter);
+        // Parents are often in the same batch. Look there first, as a miss in the container map is confirmed under lock.
+        CallbackContainer<TCallback> container = (pBatch != null) ? pBatch.findContainer(pEmitter) : null;
+        if (container == null) container = mContainers.get(pEmitter);
         if (container != null) return container;
         else throw taskExecutedFromUnexecutedTask(pEmitter);
     }
+
+
+    /**
+     * State shared by the callbacks of a wrapAll() call. Callbacks of a batch often share the same class and emitter (e.g. one
+     * callback per row of a list), so the last ones resolved are remembered.
+     */
+    static final class WrapBatch<TCallback> {
+        final List<CallbackContainer<TCallback>> mContainers;
+        private final Map<Object, CallbackContainer<TCallback>> mContainersByCallback;
+        Class<?> mLastClass;
+        CallbackClass mLastCallbackClass;
+        Object mLastEmitter;
+        EmitterRef mLastEmitterRef;
+
+        WrapBatch(int pCapacity) {
+            mContainers = new ArrayList<>(pCapacity);
+            mContainersByCallback = new IdentityHashMap<>(pCapacity);
+        }
+
+        void add(CallbackContainer<TCallback> pContainer) {
+            mContainers.add(pContainer);
+            mContainersByCallback.put(pContainer.callback(), pContainer);
+        }
+
+        CallbackClass callbackClassOf(Class<?> pClass) {
+            if (pClass != mLastClass) {
+                mLastCallbackClass = CallbackClass.of(pClass);
+                mLastClass = pClass;
+            }
+            return mLastCallbackClass;
+        }
+
+        CallbackContainer<TCallback> findContainer(Object pCallback) {
+            return mContainersByCallback.get(pCallback);
+        }
+    }
 }
\ No newline at end of file
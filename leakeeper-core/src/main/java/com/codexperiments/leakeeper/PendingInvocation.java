@@ -0,0 +1,156 @@
+package com.codexperiments.leakeeper;
+
+import com.codexperiments.leakeeper.action.CallbackAction;
+import com.codexperiments.leakeeper.action.CallbackAction1;
+import com.codexperiments.leakeeper.internal.EmitterId;
+import com.codexperiments.leakeeper.internal.EmitterRef;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codexperiments.leakeeper.internal.CallbackActions.RUN_ACTION;
+
+/**
+ * Handle of an action waiting for the emitters of its callback, created by CallbackContainer.invokeWhenAvailable(). While
+ * waiting, it is indexed by the Id of one missing emitter in its CallbackManager, which retries the action only when an emitter
+ * with this Id is managed. If other emitters are still missing, it waits for the next one.
+ */
+public final class PendingInvocation {
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1; // Action is being tried by a thread.
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+
+    private final CallbackManager<?> mManager;
+    private final CallbackContainer<Object> mContainer;
+    private final CallbackAction1<Object, Object> mAction;
+    private final Object mArg;
+    private final AtomicInteger mState;
+    private final CountDownLatch mCompleted;
+    private volatile EmitterId mAwaitedEmitterId;
+
+    static <TCallback> PendingInvocation start(CallbackManager<TCallback> pManager, CallbackContainer<TCallback> pContainer,
+                                               CallbackAction<? super TCallback> pAction) {
+        return start(pManager, pContainer, RUN_ACTION, pAction);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <TCallback, TArg> PendingInvocation start(CallbackManager<TCallback> pManager, CallbackContainer<TCallback> pContainer,
+                                                     CallbackAction1<? super TCallback, ? super TArg> pAction, TArg pArg) {
+        PendingInvocation pendingInvocation = new PendingInvocation(pManager, (CallbackContainer<Object>) pContainer,
+                                                                    (CallbackAction1<Object, Object>) pAction, pArg);
+        pendingInvocation.retry();
+        return pendingInvocation;
+    }
+
+    private PendingInvocation(CallbackManager<?> pManager, CallbackContainer<Object> pContainer,
+                              CallbackAction1<Object, Object> pAction, Object pArg) {
+        mManager = pManager;
+        mContainer = pContainer;
+        mAction = pAction;
+        mArg = pArg;
+        mState = new AtomicInteger(PENDING);
+        mCompleted = new CountDownLatch(1);
+        mAwaitedEmitterId = null;
+    }
+
+    /**
+     * @return True if action has been run.
+     */
+    public boolean isDone() {
+        return mState.get() == DONE;
+    }
+
+    public boolean isCancelled() {
+        return mState.get() == CANCELLED;
+    }
+
+    /**
+     * Stop waiting. Action is not run anymore unless it is currently running.
+     *
+     * @return True if invocation was still pending.
+     */
+    public boolean cancel() {
+        if (!mState.compareAndSet(PENDING, CANCELLED)) return false;
+        EmitterId awaitedEmitterId = mAwaitedEmitterId;
+        if (awaitedEmitterId != null) mManager.removeWaiter(awaitedEmitterId, this);
+        mCompleted.countDown();
+        return true;
+    }
+
+    /**
+     * Block until action is run or invocation is cancelled. Must not be called from the thread which manages emitters.
+     *
+     * @return True if action has been run.
+     */
+    public boolean await() throws InterruptedException {
+        mCompleted.await();
+        return isDone();
+    }
+
+    /**
+     * @return True if action has been run before timeout.
+     */
+    public boolean await(long pTimeout, TimeUnit pUnit) throws InterruptedException {
+        return mCompleted.await(pTimeout, pUnit) && isDone();
+    }
+
+    /**
+     * Try to run action. If emitters are still missing, wait for the next missing one. Called by the manager when the awaited
+     * emitter is managed, possibly from several threads at once: only one of them tries at a time.
+     */
+    void retry() {
+        while (mState.compareAndSet(PENDING, RUNNING)) {
+            boolean invoked;
+            try {
+                invoked = mContainer.invoke(mAction, mArg);
+            } catch (RuntimeException | Error exception) {
+                // Action has been run, even if it failed.
+                complete(DONE);
+                throw exception;
+            }
+            if (invoked) {
+                complete(DONE);
+                return;
+            }
+
+            EmitterRef missingEmitterRef = mContainer.missingEmitterRef();
+            if (missingEmitterRef == null) {
+                // Emitter became available meanwhile.
+                mState.set(PENDING);
+                continue;
+            }
+            EmitterId missingEmitterId = missingEmitterRef.emitterId();
+            if (missingEmitterId == null) {
+                // Unmanaged emitters never come back once collected.
+                complete(CANCELLED);
+                return;
+            }
+
+            mAwaitedEmitterId = missingEmitterId;
+            if (!mManager.addWaiter(missingEmitterId, this)) {
+                // Manager has been closed.
+                complete(CANCELLED);
+                return;
+            }
+            mState.set(PENDING);
+            // Emitter may have been managed before waiter was added, in which case this waiter has not been woken.
+            if (missingEmitterRef.get() == null) return;
+            mManager.removeWaiter(missingEmitterId, this);
+        }
+    }
+
+    private void complete(int pState) {
+        mState.set(pState);
+        mAwaitedEmitterId = null;
+        mCompleted.countDown();
+    }
+
+    /**
+     * Called by the manager when it is closed. Awaited emitters will never be managed anymore.
+     */
+    void abandon() {
+        if (mState.compareAndSet(PENDING, CANCELLED)) mCompleted.countDown();
+    }
+}
@@ -0,0 +1,10 @@
+package com.codexperiments.leakeeper.action;
+
+/**
+ * Action run by CallbackContainer.invoke() while emitters of a callback are referenced. The callback and arguments are passed as
+ * parameters, so that an action can be a stateless constant (e.g. a static final field) instead of a new capturing object
+ * allocated for each call.
+ */
+public interface CallbackAction<TCallback> {
+    void run(TCallback pCallback);
+}
@@ -0,0 +1,8 @@
+package com.codexperiments.leakeeper.action;
+
+/**
+ * Same as CallbackAction with one argument.
+ */
+public interface CallbackAction1<TCallback, TArg> {
+    void run(TCallback pCallback, TArg pArg);
+}
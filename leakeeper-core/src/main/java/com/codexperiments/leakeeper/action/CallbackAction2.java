@@ -0,0 +1,8 @@
+package com.codexperiments.leakeeper.action;
+
+/**
+ * Same as CallbackAction with two arguments.
+ */
+public interface CallbackAction2<TCallback, TArg1, TArg2> {
+    void run(TCallback pCallback, TArg1 pArg1, TArg2 pArg2);
+}
@@ -0,0 +1,8 @@
+package com.codexperiments.leakeeper.action;
+
+/**
+ * Same as CallbackAction but returns a result, given back by CallbackContainer.call().
+ */
+public interface CallbackFunction<TCallback, TResult> {
+    TResult apply(TCallback pCallback);
+}
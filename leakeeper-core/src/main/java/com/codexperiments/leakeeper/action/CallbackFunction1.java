@@ -0,0 +1,8 @@
+package com.codexperiments.leakeeper.action;
+
+/**
+ * Same as CallbackFunction with one argument.
+ */
+public interface CallbackFunction1<TCallback, TArg, TResult> {
+    TResult apply(TCallback pCallback, TArg pArg);
+}
@@ -0,0 +1,8 @@
+package com.codexperiments.leakeeper.action;
+
+/**
+ * Same as CallbackFunction with two arguments.
+ */
+public interface CallbackFunction2<TCallback, TArg1, TArg2, TResult> {
+    TResult apply(TCallback pCallback, TArg1 pArg1, TArg2 pArg2);
+}
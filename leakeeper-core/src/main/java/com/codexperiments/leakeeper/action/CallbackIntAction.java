@@ -0,0 +1,8 @@
+package com.codexperiments.leakeeper.action;
+
+/**
+ * Same as CallbackAction with one int argument, which is not boxed.
+ */
+public interface CallbackIntAction<TCallback> {
+    void run(TCallback pCallback, int pArg);
+}
@@ -0,0 +1,8 @@
+package com.codexperiments.leakeeper.action;
+
+/**
+ * Same as CallbackAction with one long argument, which is not boxed.
+ */
+public interface CallbackLongAction<TCallback> {
+    void run(TCallback pCallback, long pArg);
+}
@@ -0,0 +1,27 @@
+package com.codexperiments.leakeeper.config.enforcer;
+
+import static com.codexperiments.leakeeper.CallbackException.notOwnerThread;
+
+/**
+ * Allows calls from a single owner thread only. Owner thread is resolved once so that checking it is a simple comparison.
+ */
+public class ConfinedThreadEnforcer implements ThreadEnforcer {
+    private final Thread mOwnerThread;
+
+    /**
+     * Bind to the current thread.
+     */
+    public ConfinedThreadEnforcer() {
+        this(Thread.currentThread());
+    }
+
+    public ConfinedThreadEnforcer(Thread pOwnerThread) {
+        if (pOwnerThread == null) throw new NullPointerException("Owner thread is null");
+        mOwnerThread = pOwnerThread;
+    }
+
+    @Override
+    public void enforce() {
+        if (Thread.currentThread() != mOwnerThread) throw notOwnerThread(mOwnerThread);
+    }
+}
@@ -3,5 +3,9 @@ package com.codexperiments.leakeeper.config.factory;
 import java.util.concurrent.locks.Lock;
 
 public interface LockFactory {
-    Lock create();
+    /**
+     * @param pOwner Object the lock is created for (e.g. a CallbackContainer). Implementations may share locks between owners.
+     * @return Lock to use for the given owner.
+     */
+    Lock create(Object pOwner);
 }
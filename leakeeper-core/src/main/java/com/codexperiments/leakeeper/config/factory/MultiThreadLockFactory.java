@@ -5,7 +5,7 @@ import java.util.concurrent.locks.ReentrantLock;
 
 public class MultiThreadLockFactory implements LockFactory {
     @Override
-    public Lock create() {
+    public Lock create(Object pOwner) {
         return new ReentrantLock();
     }
 }
\ No newline at end of file
@@ -8,7 +8,7 @@ public class SingleThreadLockFactory implements LockFactory {
     private final EmptyLock emptyLock = new EmptyLock();
 
     @Override
-    public Lock create() {
+    public Lock create(Object pOwner) {
         return emptyLock;
     }
 
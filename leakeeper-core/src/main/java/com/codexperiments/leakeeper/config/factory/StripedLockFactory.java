@@ -0,0 +1,48 @@
+package com.codexperiments.leakeeper.config.factory;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Assigns locks from a fixed pool according to owner identity. Memory used stays bounded whatever the number of owners, at the
+ * price of some false sharing between owners assigned to the same lock. Locks must thus be held only briefly and never while
+ * acquiring another lock from the same factory.
+ */
+public class StripedLockFactory implements LockFactory {
+    public static final int MAX_STRIPE_COUNT = 1 << 16;
+
+    private final Lock[] mLocks;
+    private final int mMask;
+
+    public StripedLockFactory() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param pStripeCount Number of locks in the pool. Rounded up to the next power of 2 and limited to MAX_STRIPE_COUNT.
+     */
+    public StripedLockFactory(int pStripeCount) {
+        if (pStripeCount <= 0) throw new IllegalArgumentException("Stripe count must be strictly positive");
+
+        // Clamp before rounding, which would overflow for counts above 2^30.
+        int stripeCount = Math.min(pStripeCount, MAX_STRIPE_COUNT);
+        stripeCount = (stripeCount > 1) ? Integer.highestOneBit(stripeCount - 1) << 1 : 1;
+        mLocks = new Lock[stripeCount];
+        mMask = stripeCount - 1;
+        for (int i = 0; i < stripeCount; ++i) {
+            mLocks[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public Lock create(Object pOwner) {
+        // Spread bits as identity hash codes are not always well distributed in lower bits.
+        int hash = System.identityHashCode(pOwner);
+        hash ^= (hash >>> 16);
+        return mLocks[hash & mMask];
+    }
+
+    public int stripeCount() {
+        return mLocks.length;
+    }
+}
@@ -0,0 +1,34 @@
+package com.codexperiments.leakeeper.config.idle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Idle hook for plain JVM event loops: tasks are run when the loop calls flush(), typically at the end of each turn. Must be
+ * used from the event loop thread only.
+ */
+public class FlushIdleHook implements IdleHook {
+    private List<Runnable> mTasks = new ArrayList<>();
+    private List<Runnable> mFlushedTasks = new ArrayList<>();
+
+    @Override
+    public void schedule(Runnable pTask) {
+        mTasks.add(pTask);
+    }
+
+    /**
+     * Run all the tasks scheduled so far. Tasks scheduled while flushing are run on the next flush.
+     */
+    public void flush() {
+        List<Runnable> tasks = mTasks;
+        mTasks = mFlushedTasks;
+        try {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        } finally {
+            tasks.clear();
+            mFlushedTasks = tasks;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.codexperiments.leakeeper.config.idle;
+
+public interface IdleHook {
+    /**
+     * Run a task once, at the next idle or flush point of the event loop of the calling thread (e.g. when all pending messages
+     * have been processed). Task is run on that same thread.
+     *
+     * @param pTask Task to run. Scheduled several times, it may be run several times.
+     */
+    void schedule(Runnable pTask);
+}
@@ -0,0 +1,19 @@
+package com.codexperiments.leakeeper.config.resolver;
+
+/**
+ * Resolver of emitters which are often identified by an int, like Android fragments with an Id. Int Ids are looked up in the
+ * emitter registry without being boxed into an Integer. Emitters without an int Id are resolved with resolveEmitterId().
+ */
+public interface IntEmitterResolver extends EmitterResolver {
+    /**
+     * Value returned by resolveEmitterIntId() when emitter has no int Id.
+     */
+    int NO_INT_ID = 0;
+
+    /**
+     * @param pEmitter Emitter of a task the Id of which is needed.
+     * @return Int Id of the emitter or NO_INT_ID if it has none. An emitter identified by an int must be identified by the same
+     * int as an Integer if resolveEmitterId() is called.
+     */
+    int resolveEmitterIntId(Object pEmitter);
+}
@@ -0,0 +1,122 @@
+package com.codexperiments.leakeeper.dispatcher;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.action.CallbackAction;
+import com.codexperiments.leakeeper.action.CallbackAction1;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codexperiments.leakeeper.internal.CallbackActions.RUN_ACTION;
+
+/**
+ * Delivers callbacks, e.g. results of background tasks, on the thread of an event loop (e.g. the UI-Thread). Deliveries can be
+ * dispatched from any thread. They are queued and delivered in batches: a single task is posted to the loop for all the
+ * deliveries dispatched until it runs, and each container is referenced once per batch whatever the number of its deliveries.
+ * Deliveries are run in dispatch order. Those whose emitters are not available anymore are dropped and reported to the
+ * DropListener, if any.
+ */
+public class CallbackDispatcher {
+    private static final DropListener IGNORE_DROPS = new DropListener() {
+        @Override
+        public void onDropped(CallbackContainer<?> pContainer, Object pArg) {
+        }
+    };
+
+    private final EventLoop mEventLoop;
+    private final DropListener mDropListener;
+    private final Queue<Delivery> mDeliveries;
+    // Number of deliveries not delivered yet. Only the delivery which increments it from 0 posts a flush.
+    private final AtomicInteger mPendingCount;
+    private final Runnable mFlush;
+
+    public CallbackDispatcher(EventLoop pEventLoop) {
+        this(pEventLoop, IGNORE_DROPS);
+    }
+
+    /**
+     * @param pDropListener Notified of the deliveries dropped because their emitters are not available anymore.
+     */
+    public CallbackDispatcher(EventLoop pEventLoop, DropListener pDropListener) {
+        mEventLoop = pEventLoop;
+        mDropListener = pDropListener;
+        mDeliveries = new ConcurrentLinkedQueue<>();
+        mPendingCount = new AtomicInteger(0);
+        mFlush = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    public <TCallback> void dispatch(CallbackContainer<TCallback> pContainer, CallbackAction<? super TCallback> pAction) {
+        enqueue(new Delivery((CallbackContainer<Object>) pContainer, RUN_ACTION, pAction));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <TCallback, TArg> void dispatch(CallbackContainer<TCallback> pContainer,
+                                           CallbackAction1<? super TCallback, ? super TArg> pAction, TArg pArg) {
+        enqueue(new Delivery((CallbackContainer<Object>) pContainer, (CallbackAction1<Object, Object>) pAction, pArg));
+    }
+
+    private void enqueue(Delivery pDelivery) {
+        mDeliveries.offer(pDelivery);
+        if (mPendingCount.getAndIncrement() == 0) mEventLoop.post(mFlush);
+    }
+
+    /**
+     * Run on the loop thread. Deliveries dispatched while flushing (e.g. by a delivery) are delivered in the next batch.
+     */
+    private void flush() {
+        // Deliveries are queued before being counted, so at least this number of deliveries is in the queue.
+        int batchSize = mPendingCount.get();
+        int deliveredCount = 0;
+        // Containers are referenced around the whole batch, so that invoke() only counts references for each delivery.
+        // Containers which could not be referenced are remembered to skip their deliveries cheaply.
+        Map<CallbackContainer<Object>, Boolean> referencedContainers = new IdentityHashMap<>();
+        List<CallbackContainer<Object>> containersToDereference = new ArrayList<>();
+        try {
+            while (deliveredCount < batchSize) {
+                Delivery delivery = mDeliveries.poll();
+                ++deliveredCount;
+
+                CallbackContainer<Object> container = delivery.mContainer;
+                Boolean referenced = referencedContainers.get(container);
+                if (referenced == null) {
+                    referenced = container.referenceEmitter(true);
+                    referencedContainers.put(container, referenced);
+                    if (referenced) containersToDereference.add(container);
+                }
+                if (!referenced || !container.invoke(delivery.mAction, delivery.mArg)) {
+                    mDropListener.onDropped(container, (delivery.mAction == RUN_ACTION) ? null : delivery.mArg);
+                }
+            }
+        } finally {
+            for (int i = containersToDereference.size() - 1; i >= 0; --i) {
+                containersToDereference.get(i).dereferenceEmitter();
+            }
+            // If a delivery failed or new ones have been dispatched meanwhile, remaining ones are delivered in the next turn.
+            if (mPendingCount.addAndGet(-deliveredCount) != 0) mEventLoop.post(mFlush);
+        }
+    }
+
+
+    private static final class Delivery {
+        private final CallbackContainer<Object> mContainer;
+        private final CallbackAction1<Object, Object> mAction;
+        private final Object mArg;
+
+        Delivery(CallbackContainer<Object> pContainer, CallbackAction1<Object, Object> pAction, Object pArg) {
+            mContainer = pContainer;
+            mAction = pAction;
+            mArg = pArg;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.codexperiments.leakeeper.dispatcher;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+
+/**
+ * Notified by a CallbackDispatcher of the deliveries it drops because the emitters of their container are not available
+ * anymore, e.g. to save a result until its screen is back.
+ */
+public interface DropListener {
+    /**
+     * Called on the loop thread, in dispatch order.
+     *
+     * @param pArg Argument of the dropped action, or null if action has none.
+     */
+    void onDropped(CallbackContainer<?> pContainer, Object pArg);
+}
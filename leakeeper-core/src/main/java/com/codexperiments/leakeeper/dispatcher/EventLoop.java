@@ -0,0 +1,8 @@
+package com.codexperiments.leakeeper.dispatcher;
+
+public interface EventLoop {
+    /**
+     * Run a task on the thread of the event loop, in a later turn of the loop. Can be called from any thread.
+     */
+    void post(Runnable pTask);
+}
@@ -0,0 +1,23 @@
+package com.codexperiments.leakeeper.dispatcher;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Event loop for plain JVM applications, backed by a single thread which runs posted tasks one after another.
+ */
+public class SingleThreadEventLoop implements EventLoop {
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    @Override
+    public void post(Runnable pTask) {
+        mExecutor.execute(pTask);
+    }
+
+    /**
+     * Stop the loop thread once tasks already posted have been run.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,248 @@
+package com.codexperiments.leakeeper.executor;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.action.CallbackAction;
+import com.codexperiments.leakeeper.action.CallbackAction1;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.codexperiments.leakeeper.CallbackException.emittersNotAvailable;
+
+/**
+ * ExecutorService decorator which wraps submitted tasks with a CallbackManager, so that tasks don't keep their emitters (e.g. UI
+ * or session objects) in memory. Tasks can be run in two ways:
+ * <ul>
+ * <li>submit(Callable, TaskCallback), recommended for long tasks (e.g. blocking I/O): the task is never referenced, even while it
+ * runs, and cannot use its emitters. Only the callback is referenced, when the result is delivered. Callback is dropped if its
+ * emitters are not available anymore.</li>
+ * <li>ExecutorService methods (execute(), submit(), invokeAll()...): the task is dereferenced while it waits in the queue but
+ * referenced while it runs, hence keeps its emitters in memory until it finishes. It is skipped if its emitters are not
+ * available anymore: futures then fail with a CallbackException, and execute() throws it on the executor thread.</li>
+ * </ul>
+ * Tasks and callbacks run on any thread, hence the manager must be multi-threaded. As with any wrapped callback, tasks must be
+ * anonymous or inner classes to be dereferenced. Manager callback class is used to recognize tasks nested in other tasks: it
+ * must be dedicated to tasks (e.g. a marker interface) and not implemented by emitters, which would be mistaken for parent
+ * tasks. Object is rejected for this reason.
+ */
+public class LeakSafeExecutorService extends AbstractExecutorService {
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable pTask) {
+            pTask.run();
+        }
+    };
+    private static final CallbackAction<Object> RUN = new CallbackAction<Object>() {
+        @Override
+        public void run(Object pTask) {
+            ((Runnable) pTask).run();
+        }
+    };
+    private static final CallbackAction1<Object, Object> ON_FINISH = new CallbackAction1<Object, Object>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run(Object pCallback, Object pResult) {
+            ((TaskCallback<Object>) pCallback).onFinish(pResult);
+        }
+    };
+    private static final CallbackAction1<Object, Throwable> ON_FAIL = new CallbackAction1<Object, Throwable>() {
+        @Override
+        public void run(Object pCallback, Throwable pThrowable) {
+            ((TaskCallback<?>) pCallback).onFail(pThrowable);
+        }
+    };
+
+    private final CallbackManager<Object> mManager;
+    private final ExecutorService mExecutor;
+    private final Executor mCallbackExecutor;
+
+    /**
+     * Run tasks on virtual threads (one per task) if the platform supports them (Java 21+), or else on a cached thread pool.
+     */
+    public static LeakSafeExecutorService virtualThreads(CallbackManager<?> pManager) {
+        return new LeakSafeExecutorService(pManager, newVirtualThreadExecutor());
+    }
+
+    /**
+     * Callbacks are run on the thread which ran the task.
+     *
+     * @param pManager  Manager wrapping tasks. Must be multi-threaded. Its callback class must not be implemented by emitters,
+     *                  but tasks are not required to implement it.
+     * @param pExecutor Executor running the tasks, e.g. a thread pool. Shut down with this executor.
+     */
+    public LeakSafeExecutorService(CallbackManager<?> pManager, ExecutorService pExecutor) {
+        this(pManager, pExecutor, DIRECT_EXECUTOR);
+    }
+
+    /**
+     * @param pCallbackExecutor Executor on which callbacks of submit(Callable, TaskCallback) are run, e.g. one posting to the
+     *                          UI-Thread.
+     */
+    @SuppressWarnings("unchecked")
+    public LeakSafeExecutorService(CallbackManager<?> pManager, ExecutorService pExecutor, Executor pCallbackExecutor) {
+        if (!pManager.isMultiThreaded()) throw new IllegalArgumentException("Tasks require a multi-threaded manager");
+        if (pManager.callbackClass() == Object.class) throw new IllegalArgumentException("Callback class must not be Object");
+        mManager = (CallbackManager<Object>) pManager;
+        mExecutor = pExecutor;
+        mCallbackExecutor = pCallbackExecutor;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively since core targets Java 7 (and Android).
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException exception) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Run a task while its emitters are dereferenced, and deliver its result to the callback while callback emitters are
+     * referenced.
+     *
+     * @return Future of the task result. Result is available even if callback is dropped.
+     */
+    public <T> RunnableFuture<T> submit(Callable<T> pTask, TaskCallback<? super T> pCallback) {
+        // Task is wrapped to clear its outer references but never referenced.
+        CallbackTask<T> task = new CallbackTask<>(pTask, mManager.wrap(pTask), mManager.wrap(pCallback), mCallbackExecutor);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    @Override
+    public void execute(final Runnable pTask) {
+        // Futures created by newTaskFor() already wrap their task.
+        if (pTask instanceof LeakSafeTask) {
+            mExecutor.execute(pTask);
+        } else {
+            final CallbackContainer<Object> container = mManager.wrap(pTask);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!container.invoke(RUN)) throw emittersNotAvailable(pTask);
+                }
+            });
+        }
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable pTask, T pValue) {
+        return new LeakSafeTask<>(pTask, mManager.wrap(pTask), pValue);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> pTask) {
+        return new LeakSafeTask<>(pTask, mManager.wrap(pTask));
+    }
+
+    @Override
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return mExecutor.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return mExecutor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return mExecutor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long pTimeout, TimeUnit pUnit) throws InterruptedException {
+        return mExecutor.awaitTermination(pTimeout, pUnit);
+    }
+
+
+    /**
+     * Future of a task referenced while it runs.
+     */
+    private static final class LeakSafeTask<T> extends FutureTask<T> {
+        /**
+         * @param pTask Task wrapped in the container. Holding it doesn't hold its emitters, which are dereferenced.
+         */
+        LeakSafeTask(final Callable<T> pTask, final CallbackContainer<Object> pContainer) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    // Callables may throw checked exceptions, which invoke() can't forward.
+                    if (!pContainer.referenceEmitter(true)) throw emittersNotAvailable(pTask);
+                    try {
+                        return pTask.call();
+                    } finally {
+                        pContainer.dereferenceEmitter();
+                    }
+                }
+            });
+        }
+
+        LeakSafeTask(final Runnable pTask, final CallbackContainer<Object> pContainer, T pValue) {
+            super(new Runnable() {
+                @Override
+                public void run() {
+                    if (!pContainer.invoke(RUN)) throw emittersNotAvailable(pTask);
+                }
+            }, pValue);
+        }
+    }
+
+    /**
+     * Future of a task whose result is delivered to a callback.
+     */
+    private static final class CallbackTask<T> extends FutureTask<T> {
+        // Container of the task, parent of the callbacks wrapped while it runs. Kept until the task has run.
+        private CallbackContainer<Object> mTaskContainer;
+        private final CallbackContainer<Object> mCallbackContainer;
+        private final Executor mCallbackExecutor;
+
+        CallbackTask(Callable<T> pTask, CallbackContainer<Object> pTaskContainer, CallbackContainer<Object> pCallbackContainer,
+                     Executor pCallbackExecutor) {
+            super(pTask);
+            mTaskContainer = pTaskContainer;
+            mCallbackContainer = pCallbackContainer;
+            mCallbackExecutor = pCallbackExecutor;
+        }
+
+        @Override
+        protected void done() {
+            mTaskContainer = null;
+            if (isCancelled()) return;
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            });
+        }
+
+        private void deliver() {
+            try {
+                // Task is done. This doesn't block.
+                mCallbackContainer.invoke(ON_FINISH, get());
+            } catch (ExecutionException exception) {
+                mCallbackContainer.invoke(ON_FAIL, exception.getCause());
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.codexperiments.leakeeper.executor;
+
+/**
+ * Completion callback of a task submitted to a LeakSafeExecutorService. Called while its emitters are referenced.
+ */
+public interface TaskCallback<TResult> {
+    void onFinish(TResult pResult);
+
+    void onFail(Throwable pThrowable);
+}
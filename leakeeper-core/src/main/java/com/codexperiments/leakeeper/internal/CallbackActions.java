@@ -0,0 +1,23 @@
+package com.codexperiments.leakeeper.internal;
+
+import com.codexperiments.leakeeper.action.CallbackAction;
+import com.codexperiments.leakeeper.action.CallbackAction1;
+
+/**
+ * Actions shared by components which store actions of any arity as a CallbackAction1 and its argument.
+ */
+public final class CallbackActions {
+    /**
+     * Runs the CallbackAction given as argument, so that an action without argument can be stored like an action with one.
+     */
+    @SuppressWarnings("unchecked")
+    public static final CallbackAction1<Object, Object> RUN_ACTION = new CallbackAction1<Object, Object>() {
+        @Override
+        public void run(Object pCallback, Object pAction) {
+            ((CallbackAction<Object>) pAction).run(pCallback);
+        }
+    };
+
+    private CallbackActions() {
+    }
+}
@@ -0,0 +1,119 @@
+package com.codexperiments.leakeeper.internal;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Caches class-level information about callbacks and emitters, i.e. the outer object references (e.g. this$0) found in a class
+ * and its super classes. Reflection is performed only the first time a class is encountered. The cache is shared by all
+ * CallbackManager instances as this information depends only on the class itself. Cache doesn't prevent classes, and thus their
+ * ClassLoader, from being unloaded (e.g. when a web application is redeployed).
+ */
+public final class CallbackClass {
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final OuterField[] NO_OUTER_FIELDS = new OuterField[0];
+    private static final Cache sCallbackClasses = Cache.create();
+
+    public static CallbackClass of(Class<?> pClass) {
+        return sCallbackClasses.get(pClass);
+    }
+
+
+    private final OuterField[] mOuterFields; // Ordered from the class itself to its super classes.
+
+    private CallbackClass(Class<?> pClass) {
+        mOuterFields = findOuterFields(pClass);
+    }
+
+    /**
+     * @return Outer object references of the class and its super classes. Returned array must not be modified.
+     */
+    public OuterField[] outerFields() {
+        return mOuterFields;
+    }
+
+    /**
+     * Go through the class and each of its super classes and look for "this$" fields.
+     */
+    private static OuterField[] findOuterFields(Class<?> pClass) {
+        List<OuterField> outerFields = null;
+        Class<?> currentClass = pClass;
+        while ((currentClass != Object.class) && (currentClass != null)) {
+            // If current class is an inner class...
+            if ((currentClass.getEnclosingClass() != null) && !Modifier.isStatic(currentClass.getModifiers())) {
+                for (Field field : currentClass.getDeclaredFields()) {
+                    if (field.getName().startsWith("this$")) {
+                        // Most of the time, a class will have only one outer reference. Hence a capacity of 1.
+                        if (outerFields == null) outerFields = new ArrayList<>(1);
+                        outerFields.add(new OuterField(field));
+                        // There should be only one outer reference per "class" in the class hierarchy. So we can stop as soon
+                        // as the field is found as there won't be another.
+                        break;
+                    }
+                }
+            }
+            currentClass = currentClass.getSuperclass();
+        }
+        return (outerFields != null) ? outerFields.toArray(new OuterField[outerFields.size()]) : NO_OUTER_FIELDS;
+    }
+
+
+    /**
+     * Cache of CallbackClass instances. A CallbackClass references its class (through its outer fields) so it must not be
+     * stored strongly in a map indexed by class.
+     */
+    private static abstract class Cache {
+        static Cache create() {
+            try {
+                Class.forName("java.lang.ClassValue");
+                return new ClassValueCache();
+            } catch (ClassNotFoundException | LinkageError exception) {
+                return new WeakCache();
+            }
+        }
+
+        abstract CallbackClass get(Class<?> pClass);
+    }
+
+    /**
+     * Values are attached to the class itself and unloaded with it. Lookups are lock-free. Available on the JVM (since Java 7)
+     * but not on older Android versions.
+     */
+    private static final class ClassValueCache extends Cache {
+        private final ClassValue<CallbackClass> mCallbackClasses = new ClassValue<CallbackClass>() {
+            @Override
+            protected CallbackClass computeValue(Class<?> pClass) {
+                return new CallbackClass(pClass);
+            }
+        };
+
+        @Override
+        CallbackClass get(Class<?> pClass) {
+            return mCallbackClasses.get(pClass);
+        }
+    }
+
+    /**
+     * Fallback with weak keys. Values are softly referenced as they reference their key, which would never be collected
+     * otherwise. They are recomputed if memory runs low.
+     */
+    private static final class WeakCache extends Cache {
+        private final Map<Class<?>, SoftReference<CallbackClass>> mCallbackClasses = new WeakHashMap<>(DEFAULT_CAPACITY);
+
+        @Override
+        synchronized CallbackClass get(Class<?> pClass) {
+            SoftReference<CallbackClass> callbackClassRef = mCallbackClasses.get(pClass);
+            CallbackClass callbackClass = (callbackClassRef != null) ? callbackClassRef.get() : null;
+            if (callbackClass == null) {
+                callbackClass = new CallbackClass(pClass);
+                mCallbackClasses.put(pClass, new SoftReference<>(callbackClass));
+            }
+            return callbackClass;
+        }
+    }
+}
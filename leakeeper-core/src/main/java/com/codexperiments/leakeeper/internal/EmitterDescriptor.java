@@ -1,47 +1,37 @@
 package com.codexperiments.leakeeper.internal;
 
-import java.lang.reflect.Field;
-
-import static com.codexperiments.leakeeper.CallbackException.internalError;
-
 /**
  * Contains all the information necessary to restore a single emitter on a task handler (its field and its generated Id).
  */
 public final class EmitterDescriptor {
-    private final Field mEmitterField;
+    private final OuterField mEmitterField;
     private final EmitterRef mEmitterRef;
 
-    public EmitterDescriptor(Field pEmitterField, EmitterRef pEmitterRef) {
+    public EmitterDescriptor(OuterField pEmitterField, EmitterRef pEmitterRef) {
         mEmitterField = pEmitterField;
         mEmitterRef = pEmitterRef;
     }
 
-    public EmitterRef hasSameType(Field pField) {
-        return (pField.getType() == mEmitterField.getType()) ? mEmitterRef : null;
+    public EmitterRef hasSameType(OuterField pField) {
+        return (pField.type() == mEmitterField.type()) ? mEmitterRef : null;
     }
 
     public boolean usesEmitter(EmitterId pEmitterId) {
         return mEmitterRef.hasSameId(pEmitterId);
     }
 
+    public EmitterRef emitterRef() {
+        return mEmitterRef;
+    }
+
     /**
-     * Restore reference to the current emitter on the specified task handler.
+     * Restore reference to the given emitter on the specified task handler.
      *
-     * @param pCallback Emitter to restore.
-     * @return True if referencing succeed or false else.
+     * @param pCallback Task handler to restore the emitter of.
+     * @param pEmitter  Current emitter of the reference. Must not be null.
      */
-    public boolean reference(Object pCallback) {
-        try {
-            Object emitter = mEmitterRef.get();
-            if (emitter != null) {
-                mEmitterField.set(pCallback, emitter);
-                return true;
-            } else {
-                return false;
-            }
-        } catch (IllegalAccessException | RuntimeException exception) {
-            throw internalError(exception);
-        }
+    public void reference(Object pCallback, Object pEmitter) {
+        mEmitterField.set(pCallback, pEmitter);
     }
 
     /**
@@ -50,11 +40,7 @@ public final class EmitterDescriptor {
      * @param pCallback Emitter to dereference.
      */
     public void dereference(Object pCallback) {
-        try {
-            mEmitterField.set(pCallback, null);
-        } catch (IllegalAccessException | RuntimeException exception) {
-            throw internalError(exception);
-        }
+        mEmitterField.set(pCallback, null);
     }
 
     @Override
@@ -1,14 +1,23 @@
 package com.codexperiments.leakeeper.internal;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Represents a reference to an emitter. Its goal is to add a level of indirection to the emitter so that several tasks can easily
  * share updates made to an emitter.
+ * <p/>
+ * Each update increments a generation counter, seqlock-style: generation is odd while an update is in progress and even
+ * otherwise. Readers never block writers. They read a stable generation, then the emitter, and check later that generation has
+ * not changed to know if what they read is still up to date.
  */
 public final class EmitterRef {
+    private static final AtomicIntegerFieldUpdater<EmitterRef> sGeneration =
+            AtomicIntegerFieldUpdater.newUpdater(EmitterRef.class, "mGeneration");
+
     private final EmitterId mEmitterId;
     private volatile WeakReference<Object> mEmitterRef;
+    private volatile int mGeneration;
 
     public EmitterRef(Object pEmitterValue) {
         mEmitterId = null;
@@ -20,6 +29,13 @@ public final class EmitterRef {
         set(pEmitterValue);
     }
 
+    /**
+     * @return Id of the emitter or null if emitter is not managed.
+     */
+    public EmitterId emitterId() {
+        return mEmitterId;
+    }
+
     public boolean hasSameId(EmitterId pEmitterId) {
         return (mEmitterId != null) && mEmitterId.equals(pEmitterId);
     }
@@ -28,12 +44,42 @@ public final class EmitterRef {
         return (mEmitterRef != null) ? mEmitterRef.get() : null;
     }
 
+    /**
+     * @return Current generation, once no update is in progress. Always even.
+     */
+    public int generation() {
+        int generation;
+        while (((generation = mGeneration) & 1) != 0) {
+            // An update is in progress. It just needs to publish the new emitter, which is short.
+            Thread.yield();
+        }
+        return generation;
+    }
+
+    /**
+     * @return True if reference has not been updated since the given generation was read.
+     */
+    public boolean isGeneration(int pGeneration) {
+        return mGeneration == pGeneration;
+    }
+
     public void set(Object pEmitterValue) {
-        mEmitterRef = new WeakReference<>(pEmitterValue);
+        update(new WeakReference<>(pEmitterValue));
     }
 
     public void clear() {
-        mEmitterRef = null;
+        update(null);
+    }
+
+    private void update(WeakReference<Object> pEmitterRef) {
+        // Concurrent updates are serialized by the odd generation. Updates are rare (e.g. when an activity is recreated).
+        int generation;
+        do {
+            generation = generation();
+        } while (!sGeneration.compareAndSet(this, generation, generation + 1));
+
+        mEmitterRef = pEmitterRef;
+        mGeneration = generation + 2;
     }
 
     @Override
@@ -57,6 +103,7 @@ public final class EmitterRef {
 
     @Override
     public String toString() {
-        return "EmitterRef [mEmitterId=" + mEmitterId + ", mEmitterRef=" + mEmitterRef + "]";
+        return "EmitterRef [mEmitterId=" + mEmitterId + ", mEmitterRef=" + mEmitterRef + ", mGeneration=" + mGeneration
+             + "]";
     }
 }
@@ -0,0 +1,594 @@
+package com.codexperiments.leakeeper.internal;
+
+import com.codexperiments.leakeeper.config.factory.LockFactory;
+import com.codexperiments.leakeeper.config.factory.MultiThreadLockFactory;
+import com.codexperiments.leakeeper.config.factory.SingleThreadLockFactory;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Keeps track of managed emitters, indexed first by emitter class and then by emitter Id. Contrary to a map indexed by EmitterId,
+ * lookups don't need to allocate a composite key and hash it: class and Id hashes are used directly (class hash being an identity
+ * hash). An EmitterId is allocated only once, when an emitter Id is registered for the first time.
+ * <p/>
+ * Most common Ids get a specialized path, where neither hashCode() nor equals() are called:
+ * <ul>
+ * <li>Emitter class itself (e.g. activities or fragments without Id nor Tag): a single slot per emitter class.</li>
+ * <li>Integers (e.g. fragment Ids): an open-addressing table indexed by int value.</li>
+ * </ul>
+ * Other Ids go into a generic map.
+ * <p/>
+ * Registry cleans itself: an entry references its EmitterRef strongly only while its emitter is alive. Once emitter is
+ * unregistered or garbage collected, entry is demoted and references its EmitterRef weakly. EmitterRef then stays alive only as
+ * long as containers use it and entry is purged afterwards. If the same Id is registered again meanwhile, the same EmitterRef is
+ * reused so that pending containers get the new emitter. A purged entry leaves a tombstone (an entry without EmitterRef) so that
+ * resolve() still knows the Id has been registered, whatever the garbage collector did. Tombstones are bounded: beyond
+ * MAX_TOMBSTONES, the oldest ones are dropped, so that a registry used with ever new Ids doesn't grow forever. Collected
+ * emitters are detected with a sweep amortized over registrations. An optional maximum size evicts demoted entries and
+ * tombstones, even if still used by containers (which then cannot get a new emitter anymore).
+ * <p/>
+ * When multi-threaded, lookups are lock-free thanks to concurrent maps, volatile slots and copy-on-write tables. Modifications
+ * are serialized with a lock. A sharded registry splits entries by class and Id hash into independent shards, each with its own
+ * lock, so that modifications of different emitters don't contend.
+ */
+public final class EmitterRegistry {
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+    public static final int MAX_SHARD_COUNT = 1 << 16;
+    /**
+     * Maximum number of tombstones kept by a registry. When sharded, each shard gets an equal part of it.
+     */
+    public static final int MAX_TOMBSTONES = 1024;
+    private static final int ID_CAPACITY = 8;
+    private static final int MIN_SWEEP_INTERVAL = 16;
+
+    public static EmitterRegistry singleThreaded(int pCapacity) {
+        return new EmitterRegistry(pCapacity, 1, new SingleThreadLockFactory(), false);
+    }
+
+    public static EmitterRegistry multiThreaded(int pCapacity) {
+        return new EmitterRegistry(pCapacity, 1, new MultiThreadLockFactory(), true);
+    }
+
+    /**
+     * @param pShardCount Number of shards. Rounded up to the next power of 2 and limited to MAX_SHARD_COUNT.
+     */
+    public static EmitterRegistry sharded(int pCapacity, int pShardCount) {
+        return new EmitterRegistry(pCapacity, pShardCount, new MultiThreadLockFactory(), true);
+    }
+
+
+    private final boolean mConcurrent;
+    private final Shard[] mShards;
+    private final int mMask;
+
+    private EmitterRegistry(int pCapacity, int pShardCount, LockFactory pLockFactory, boolean pConcurrent) {
+        super();
+        if (pShardCount <= 0) throw new IllegalArgumentException("Shard count must be strictly positive");
+
+        // Clamp before rounding, which would overflow for counts above 2^30.
+        int shardCount = Math.min(pShardCount, MAX_SHARD_COUNT);
+        shardCount = (shardCount > 1) ? Integer.highestOneBit(shardCount - 1) << 1 : 1;
+        mConcurrent = pConcurrent;
+        mShards = new Shard[shardCount];
+        mMask = shardCount - 1;
+        for (int i = 0; i < shardCount; ++i) {
+            mShards[i] = new Shard(Math.max(pCapacity / shardCount, ID_CAPACITY), Math.max(1, MAX_TOMBSTONES / shardCount),
+                                   pLockFactory);
+        }
+    }
+
+    /**
+     * @return Reference of the emitter registered with the given class and Id or null if none.
+     */
+    public EmitterRef find(Class<?> pEmitterClass, Object pEmitterId) {
+        return shardOf(pEmitterClass, pEmitterId.hashCode()).find(pEmitterClass, pEmitterId);
+    }
+
+    /**
+     * Same as find(Class, Object) for an Integer Id, without boxing it.
+     */
+    public EmitterRef find(Class<?> pEmitterClass, int pEmitterId) {
+        // Integer hash is its value, so the shard is the same as for the boxed Id.
+        return shardOf(pEmitterClass, pEmitterId).find(pEmitterClass, pEmitterId);
+    }
+
+    /**
+     * Same as find() but if the Id has been registered before and its reference has been purged since, a new reference without
+     * emitter is created. Resolution then doesn't depend on when EmitterRefs are garbage collected.
+     *
+     * @return Reference of the emitter registered with the given class and Id or null if none has ever been registered (or if
+     * it has been evicted).
+     */
+    public EmitterRef resolve(Class<?> pEmitterClass, Object pEmitterId) {
+        EmitterRef emitterRef = find(pEmitterClass, pEmitterId);
+        return (emitterRef != null) ? emitterRef : shardOf(pEmitterClass, pEmitterId.hashCode()).restore(pEmitterClass, pEmitterId);
+    }
+
+    /**
+     * Same as resolve(Class, Object) for an Integer Id, boxed only if reference needs to be restored.
+     */
+    public EmitterRef resolve(Class<?> pEmitterClass, int pEmitterId) {
+        EmitterRef emitterRef = find(pEmitterClass, pEmitterId);
+        return (emitterRef != null) ? emitterRef : shardOf(pEmitterClass, pEmitterId).restore(pEmitterClass, pEmitterId);
+    }
+
+    /**
+     * Make the reference identified by the given class and Id point to the emitter. Reference is created if it doesn't exist
+     * yet. Otherwise, the old emitter is considered obsolete and replaced.
+     */
+    public void register(Class<?> pEmitterClass, Object pEmitterId, Object pEmitter) {
+        shardOf(pEmitterClass, pEmitterId.hashCode()).register(pEmitterClass, pEmitterId, pEmitter);
+    }
+
+    /**
+     * Clear the reference identified by the given class and Id if it still points to the emitter. Entry is demoted and purged
+     * once no container uses it anymore.
+     */
+    public void unregister(Class<?> pEmitterClass, Object pEmitterId, Object pEmitter) {
+        shardOf(pEmitterClass, pEmitterId.hashCode()).unregister(pEmitterClass, pEmitterId, pEmitter);
+    }
+
+    /**
+     * Clear all references and forget them.
+     */
+    public void clear() {
+        for (Shard shard : mShards) {
+            shard.clear();
+        }
+    }
+
+    /**
+     * @param pMaxSize Maximum number of entries. When exceeded, entries whose emitter is not alive anymore are evicted, even if
+     *                 they are still used by containers. Entries with a live emitter are never evicted. UNBOUNDED by default.
+     *                 When sharded, each shard gets an equal part of it (at least one entry per shard).
+     */
+    public void setMaxSize(int pMaxSize) {
+        if (pMaxSize <= 0) throw new IllegalArgumentException("Max size must be strictly positive");
+
+        int shardMaxSize = (pMaxSize == UNBOUNDED) ? UNBOUNDED : Math.max(1, pMaxSize / mShards.length);
+        for (Shard shard : mShards) {
+            shard.setMaxSize(shardMaxSize);
+        }
+    }
+
+    /**
+     * @return Number of entries, including demoted entries and tombstones.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : mShards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return Number of entries turned into tombstones since creation once their EmitterRef was not used anymore. Tombstones
+     * dropped beyond MAX_TOMBSTONES are not counted as evicted.
+     */
+    public long purgedCount() {
+        long purgedCount = 0;
+        for (Shard shard : mShards) {
+            purgedCount += shard.mPurgedCount;
+        }
+        return purgedCount;
+    }
+
+    /**
+     * @return Number of entries removed since creation because max size was exceeded.
+     */
+    public long evictedCount() {
+        long evictedCount = 0;
+        for (Shard shard : mShards) {
+            evictedCount += shard.mEvictedCount;
+        }
+        return evictedCount;
+    }
+
+    private Shard shardOf(Class<?> pEmitterClass, int pEmitterIdHash) {
+        if (mMask == 0) return mShards[0];
+
+        int hash = System.identityHashCode(pEmitterClass) * 31 + pEmitterIdHash;
+        hash ^= (hash >>> 16);
+        return mShards[hash & mMask];
+    }
+
+    private <TKey, TValue> Map<TKey, TValue> newMap(int pCapacity) {
+        return mConcurrent ? new ConcurrentHashMap<TKey, TValue>(pCapacity) : new HashMap<TKey, TValue>(pCapacity);
+    }
+
+
+    /**
+     * Independent part of the registry, with its own lock. All entries of an emitter Id are in the same shard.
+     */
+    private final class Shard {
+        private final Lock mLock;
+        private final Map<Class<?>, EmitterNode> mNodes;
+        private final ReferenceQueue<EmitterRef> mQueue;
+        // Tombstones from the oldest to the newest. May contain tombstones already removed (e.g. when Id is registered again).
+        private final Queue<Entry> mTombstones;
+        private final int mMaxTombstones;
+        private int mMaxSize;
+        private int mSize;
+        private int mRegistrationsSinceSweep;
+        // Metrics, written under lock.
+        private volatile long mPurgedCount;
+        private volatile long mEvictedCount;
+
+        Shard(int pCapacity, int pMaxTombstones, LockFactory pLockFactory) {
+            super();
+            mLock = pLockFactory.create(this);
+            mNodes = EmitterRegistry.this.<Class<?>, EmitterNode>newMap(pCapacity);
+            mQueue = new ReferenceQueue<>();
+            mTombstones = new ArrayDeque<>();
+            mMaxTombstones = pMaxTombstones;
+            mMaxSize = UNBOUNDED;
+            mSize = 0;
+            mRegistrationsSinceSweep = 0;
+        }
+
+        EmitterRef find(Class<?> pEmitterClass, Object pEmitterId) {
+            EmitterNode node = mNodes.get(pEmitterClass);
+            if (node == null) return null;
+
+            Entry entry = node.find(pEmitterClass, pEmitterId);
+            return (entry != null) ? entry.get() : null;
+        }
+
+        EmitterRef find(Class<?> pEmitterClass, int pEmitterId) {
+            EmitterNode node = mNodes.get(pEmitterClass);
+            if (node == null) return null;
+
+            Entry entry = node.mIntEntries.get(pEmitterId);
+            return (entry != null) ? entry.get() : null;
+        }
+
+        void register(Class<?> pEmitterClass, Object pEmitterId, Object pEmitter) {
+            mLock.lock();
+            try {
+                expungeStaleEntries();
+                EmitterNode node = mNodes.get(pEmitterClass);
+                if (node == null) {
+                    node = new EmitterNode();
+                    mNodes.put(pEmitterClass, node);
+                }
+
+                Entry entry = node.find(pEmitterClass, pEmitterId);
+                EmitterRef emitterRef = (entry != null) ? entry.get() : null;
+                if (emitterRef != null) {
+                    emitterRef.set(pEmitter);
+                    entry.mStrongRef = emitterRef;
+                } else {
+                    // EmitterRef may have been collected but not dequeued yet.
+                    if (entry != null) removeEntry(node, entry);
+                    emitterRef = new EmitterRef(new EmitterId(pEmitterClass, pEmitterId), pEmitter);
+                    addEntry(node, new Entry(pEmitterClass, pEmitterId, emitterRef, mQueue));
+                }
+
+                if (++mRegistrationsSinceSweep > Math.max(mSize / 2, MIN_SWEEP_INTERVAL)) sweep();
+                if (mSize > mMaxSize) evict();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * @return A new reference without emitter if entry is a tombstone (or if its reference has been collected but not
+         * dequeued yet), null if there is no entry.
+         */
+        EmitterRef restore(Class<?> pEmitterClass, Object pEmitterId) {
+            mLock.lock();
+            try {
+                expungeStaleEntries();
+                EmitterNode node = mNodes.get(pEmitterClass);
+                Entry entry = (node != null) ? node.find(pEmitterClass, pEmitterId) : null;
+                if (entry == null) return null;
+
+                EmitterRef emitterRef = entry.get();
+                if (emitterRef == null) {
+                    // Entry is demoted right away since there is no emitter.
+                    removeEntry(node, entry);
+                    emitterRef = new EmitterRef(new EmitterId(pEmitterClass, pEmitterId), null);
+                    Entry restoredEntry = new Entry(pEmitterClass, pEmitterId, emitterRef, mQueue);
+                    restoredEntry.mStrongRef = null;
+                    addEntry(node, restoredEntry);
+                }
+                return emitterRef;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        void unregister(Class<?> pEmitterClass, Object pEmitterId, Object pEmitter) {
+            mLock.lock();
+            try {
+                expungeStaleEntries();
+                EmitterNode node = mNodes.get(pEmitterClass);
+                Entry entry = (node != null) ? node.find(pEmitterClass, pEmitterId) : null;
+                EmitterRef emitterRef = (entry != null) ? entry.get() : null;
+                if ((emitterRef != null) && (emitterRef.get() == pEmitter)) {
+                    emitterRef.clear();
+                    entry.mStrongRef = null;
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        void clear() {
+            mLock.lock();
+            try {
+                for (EmitterNode node : mNodes.values()) {
+                    clearRef(node.mClassEntry);
+                    for (Entry entry : node.mIntEntries.mEntries) {
+                        clearRef(entry);
+                    }
+                    if (node.mEntries != null) {
+                        for (Entry entry : node.mEntries.values()) {
+                            clearRef(entry);
+                        }
+                    }
+                }
+                mNodes.clear();
+                mTombstones.clear();
+                mSize = 0;
+                // Entries dequeued after that are not found anymore and ignored.
+                expungeStaleEntries();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        void setMaxSize(int pMaxSize) {
+            mLock.lock();
+            try {
+                mMaxSize = pMaxSize;
+                if (mSize > mMaxSize) evict();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        int size() {
+            mLock.lock();
+            try {
+                return mSize;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        private void expungeStaleEntries() {
+            Entry staleEntry;
+            while ((staleEntry = (Entry) mQueue.poll()) != null) {
+                EmitterNode node = mNodes.get(staleEntry.mEmitterClass);
+                // Entry may have been replaced or evicted meanwhile.
+                if ((node != null) && (node.find(staleEntry.mEmitterClass, staleEntry.mEmitterId) == staleEntry)) {
+                    removeEntry(node, staleEntry);
+                    Entry tombstone = new Entry(staleEntry.mEmitterClass, staleEntry.mEmitterId, null, null);
+                    addEntry(node, tombstone);
+                    mTombstones.add(tombstone);
+                    ++mPurgedCount;
+                }
+            }
+            dropOldestTombstones();
+        }
+
+        /**
+         * Remove the oldest tombstones beyond the maximum. Those which have already been removed or replaced are just skipped.
+         */
+        private void dropOldestTombstones() {
+            while (mTombstones.size() > mMaxTombstones) {
+                Entry tombstone = mTombstones.poll();
+                EmitterNode node = mNodes.get(tombstone.mEmitterClass);
+                if ((node != null) && (node.find(tombstone.mEmitterClass, tombstone.mEmitterId) == tombstone)) {
+                    removeEntry(node, tombstone);
+                }
+            }
+        }
+
+        /**
+         * Demote entries whose emitter has been garbage collected without being unregistered. Entries are walked in place since
+         * only their strong reference is modified.
+         */
+        private void sweep() {
+            mRegistrationsSinceSweep = 0;
+            for (EmitterNode node : mNodes.values()) {
+                demoteIfCollected(node.mClassEntry);
+                for (Entry entry : node.mIntEntries.mEntries) {
+                    demoteIfCollected(entry);
+                }
+                if (node.mEntries != null) {
+                    for (Entry entry : node.mEntries.values()) {
+                        demoteIfCollected(entry);
+                    }
+                }
+            }
+        }
+
+        private void evict() {
+            sweep();
+            for (EmitterNode node : mNodes.values()) {
+                if (mSize <= mMaxSize) return;
+                if (isEvictable(node.mClassEntry)) {
+                    removeEntry(node, node.mClassEntry);
+                    ++mEvictedCount;
+                }
+                // Removals copy the int table, so the current one can still be walked.
+                for (Entry entry : node.mIntEntries.mEntries) {
+                    if (mSize <= mMaxSize) return;
+                    if (isEvictable(entry)) {
+                        removeEntry(node, entry);
+                        ++mEvictedCount;
+                    }
+                }
+                if (node.mEntries != null) {
+                    Iterator<Entry> entries = node.mEntries.values().iterator();
+                    while (entries.hasNext() && (mSize > mMaxSize)) {
+                        if (isEvictable(entries.next())) {
+                            entries.remove();
+                            --mSize;
+                            ++mEvictedCount;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void clearRef(Entry pEntry) {
+            EmitterRef emitterRef = (pEntry != null) ? pEntry.get() : null;
+            if (emitterRef != null) emitterRef.clear();
+        }
+
+        private void demoteIfCollected(Entry pEntry) {
+            if ((pEntry != null) && (pEntry.mStrongRef != null) && (pEntry.mStrongRef.get() == null)) pEntry.mStrongRef = null;
+        }
+
+        private boolean isEvictable(Entry pEntry) {
+            return (pEntry != null) && (pEntry.mStrongRef == null);
+        }
+
+        private void addEntry(EmitterNode pNode, Entry pEntry) {
+            if (pEntry.mEmitterId == pEntry.mEmitterClass) {
+                pNode.mClassEntry = pEntry;
+            } else if (pEntry.mEmitterId instanceof Integer) {
+                pNode.mIntEntries = pNode.mIntEntries.with((Integer) pEntry.mEmitterId, pEntry);
+            } else {
+                if (pNode.mEntries == null) pNode.mEntries = EmitterRegistry.this.<Object, Entry>newMap(ID_CAPACITY);
+                pNode.mEntries.put(pEntry.mEmitterId, pEntry);
+            }
+            ++mSize;
+        }
+
+        /**
+         * @param pEntry Entry to remove. Must be in the node.
+         */
+        private void removeEntry(EmitterNode pNode, Entry pEntry) {
+            if (pEntry.mEmitterId == pEntry.mEmitterClass) {
+                pNode.mClassEntry = null;
+            } else if (pEntry.mEmitterId instanceof Integer) {
+                pNode.mIntEntries = pNode.mIntEntries.without((Integer) pEntry.mEmitterId);
+            } else {
+                pNode.mEntries.remove(pEntry.mEmitterId);
+            }
+            --mSize;
+        }
+    }
+
+
+    /**
+     * Weak reference to an EmitterRef, made strong while its emitter is alive. A tombstone references no EmitterRef.
+     */
+    private static final class Entry extends WeakReference<EmitterRef> {
+        private final Class<?> mEmitterClass;
+        private final Object mEmitterId;
+        private EmitterRef mStrongRef; // Written under lock only. Not read by lookups.
+
+        Entry(Class<?> pEmitterClass, Object pEmitterId, EmitterRef pEmitterRef, ReferenceQueue<EmitterRef> pQueue) {
+            super(pEmitterRef, pQueue);
+            mEmitterClass = pEmitterClass;
+            mEmitterId = pEmitterId;
+            mStrongRef = pEmitterRef;
+        }
+    }
+
+    /**
+     * Entries of all emitters of a given class. Fields are written under the registry lock only.
+     */
+    private static final class EmitterNode {
+        private volatile Entry mClassEntry;
+        private volatile IntEntryTable mIntEntries = IntEntryTable.EMPTY;
+        private volatile Map<Object, Entry> mEntries;
+
+        Entry find(Class<?> pEmitterClass, Object pEmitterId) {
+            if (pEmitterId == pEmitterClass) return mClassEntry;
+            if (pEmitterId instanceof Integer) return mIntEntries.get((Integer) pEmitterId);
+
+            Map<Object, Entry> entries = mEntries;
+            return (entries != null) ? entries.get(pEmitterId) : null;
+        }
+    }
+
+    /**
+     * Immutable open-addressing table (with linear probing) of entries indexed by int Ids. Updates copy the whole table, which
+     * is acceptable since there are typically only a few Ids per emitter class and they change rarely.
+     */
+    private static final class IntEntryTable {
+        static final IntEntryTable EMPTY = new IntEntryTable(new int[0], new Entry[0], 0);
+
+        private final int[] mIds;
+        private final Entry[] mEntries; // A null slot is free.
+        private final int mSize;
+
+        private IntEntryTable(int[] pIds, Entry[] pEntries, int pSize) {
+            mIds = pIds;
+            mEntries = pEntries;
+            mSize = pSize;
+        }
+
+        Entry get(int pId) {
+            Entry[] entries = mEntries;
+            if (entries.length == 0) return null;
+
+            int mask = entries.length - 1;
+            for (int index = hash(pId) & mask; ; index = (index + 1) & mask) {
+                Entry entry = entries[index];
+                if ((entry == null) || (mIds[index] == pId)) return entry;
+            }
+        }
+
+        /**
+         * @return A copy of this table with the new entry. Id must not be in the table already.
+         */
+        IntEntryTable with(int pId, Entry pEntry) {
+            // Keep load factor under 1/2.
+            int capacity = Math.max(mEntries.length, ID_CAPACITY);
+            if ((mSize + 1) * 2 > capacity) capacity <<= 1;
+            return copy(capacity, pId, pEntry, mSize + 1);
+        }
+
+        /**
+         * @return A copy of this table without the entry with the given Id. Id must be in the table.
+         */
+        IntEntryTable without(int pId) {
+            return (mSize > 1) ? copy(mEntries.length, pId, null, mSize - 1) : EMPTY;
+        }
+
+        /**
+         * Copy entries into a new table of the given capacity. Entry with the given Id, if any, is replaced.
+         */
+        private IntEntryTable copy(int pCapacity, int pId, Entry pEntry, int pSize) {
+            int[] ids = new int[pCapacity];
+            Entry[] entries = new Entry[pCapacity];
+            for (int index = 0; index < mEntries.length; ++index) {
+                if ((mEntries[index] != null) && (mIds[index] != pId)) insert(ids, entries, mIds[index], mEntries[index]);
+            }
+            if (pEntry != null) insert(ids, entries, pId, pEntry);
+            return new IntEntryTable(ids, entries, pSize);
+        }
+
+        private static void insert(int[] pIds, Entry[] pEntries, int pId, Entry pEntry) {
+            int mask = pEntries.length - 1;
+            int index = hash(pId) & mask;
+            while (pEntries[index] != null) index = (index + 1) & mask;
+            pIds[index] = pId;
+            pEntries[index] = pEntry;
+        }
+
+        /**
+         * Android resource Ids share their high bits (package and type), thus bits are mixed before being used as index.
+         */
+        private static int hash(int pId) {
+            int hash = pId * 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.codexperiments.leakeeper.internal;
+
+/**
+ * Reads and writes a single object field of a callback. Used to reference and dereference emitters, which happens each time a
+ * callback is invoked. Instances are created once per field through FieldAccessors, which picks the implementation to use.
+ */
+public interface FieldAccessor {
+    Object get(Object pInstance);
+
+    void set(Object pInstance, Object pValue);
+}
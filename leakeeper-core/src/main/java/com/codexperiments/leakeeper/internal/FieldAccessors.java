@@ -0,0 +1,35 @@
+package com.codexperiments.leakeeper.internal;
+
+import java.lang.reflect.Field;
+
+/**
+ * Selects the FieldAccessor backend used for outer fields. Both backends check access once, when they are created. MethodHandles
+ * are used when the runtime provides them, as they access the field directly once adapted. Otherwise (e.g. on Android before
+ * API 26) or if handles cannot be created for a field, reflection is used.
+ */
+public final class FieldAccessors {
+    private static final boolean sMethodHandlesAvailable = isClassAvailable("java.lang.invoke.MethodHandles");
+
+    private FieldAccessors() {
+    }
+
+    public static FieldAccessor create(Field pField) {
+        if (sMethodHandlesAvailable) {
+            try {
+                return new MethodHandleFieldAccessor(pField);
+            } catch (IllegalAccessException exception) {
+                // Fall back to reflection.
+            }
+        }
+        return new ReflectionFieldAccessor(pField);
+    }
+
+    private static boolean isClassAvailable(String pClassName) {
+        try {
+            Class.forName(pClassName, false, FieldAccessors.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError exception) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.codexperiments.leakeeper.internal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+import static com.codexperiments.leakeeper.CallbackException.internalError;
+
+/**
+ * MethodHandle backend. Access is checked once when handles are created. Handles are adapted to Object types so that they can
+ * be invoked exactly, instance and value types being checked by casts.
+ * <p/>
+ * Not available on Android before API 26. Must only be loaded through FieldAccessors, which checks it.
+ */
+public final class MethodHandleFieldAccessor implements FieldAccessor {
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Field mField;
+    private final MethodHandle mGetter;
+    private final MethodHandle mSetter;
+
+    /**
+     * @throws IllegalAccessException If handles cannot be created for the field, in which case reflection must be used.
+     */
+    public MethodHandleFieldAccessor(Field pField) throws IllegalAccessException {
+        mField = pField;
+        mField.setAccessible(true);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        mGetter = lookup.unreflectGetter(pField).asType(GETTER_TYPE);
+        mSetter = lookup.unreflectSetter(pField).asType(SETTER_TYPE);
+    }
+
+    @Override
+    public Object get(Object pInstance) {
+        try {
+            return (Object) mGetter.invokeExact(pInstance);
+        } catch (Error error) {
+            throw error;
+        } catch (Throwable throwable) {
+            throw internalError(throwable);
+        }
+    }
+
+    @Override
+    public void set(Object pInstance, Object pValue) {
+        try {
+            mSetter.invokeExact(pInstance, pValue);
+        } catch (Error error) {
+            throw error;
+        } catch (Throwable throwable) {
+            throw internalError(throwable);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MethodHandleFieldAccessor [mField=" + mField + "]";
+    }
+}
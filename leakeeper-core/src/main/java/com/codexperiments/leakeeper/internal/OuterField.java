@@ -0,0 +1,77 @@
+package com.codexperiments.leakeeper.internal;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+
+/**
+ * An outer object reference (i.e. a this$x field) found in a callback class. Field accessor is created once and for all when
+ * the enclosing CallbackClass is created.
+ */
+public final class OuterField {
+    // Maximum number of isCallback() results cached, i.e. of callback classes (one per CallbackManager type in practice).
+    private static final int MAX_CHECKS = 8;
+    private static final CallbackCheck[] NO_CHECKS = new CallbackCheck[0];
+
+    private final Field mField;
+    private final FieldAccessor mAccessor;
+    private final Class<?> mType;
+    // Caches isCallback() results per callback class. Copy-on-write since a new callback class is rarely encountered.
+    private volatile CallbackCheck[] mChecks;
+
+    OuterField(Field pField) {
+        mField = pField;
+        mAccessor = FieldAccessors.create(pField);
+        mType = pField.getType();
+        mChecks = NO_CHECKS;
+    }
+
+    public Class<?> type() {
+        return mType;
+    }
+
+    /**
+     * @param pCallbackClass Type of callbacks handled by a CallbackManager.
+     * @return True if the outer object referenced by this field is itself a callback of the given type.
+     */
+    public boolean isCallback(Class<?> pCallbackClass) {
+        CallbackCheck[] checks = mChecks;
+        for (CallbackCheck check : checks) {
+            if (check.get() == pCallbackClass) return check.mIsCallback;
+        }
+
+        boolean isCallback = pCallbackClass.isAssignableFrom(mType);
+        // A concurrent check may be lost. That's harmless since it is computed again next time.
+        if (checks.length < MAX_CHECKS) {
+            CallbackCheck[] newChecks = new CallbackCheck[checks.length + 1];
+            System.arraycopy(checks, 0, newChecks, 0, checks.length);
+            newChecks[checks.length] = new CallbackCheck(pCallbackClass, isCallback);
+            mChecks = newChecks;
+        }
+        return isCallback;
+    }
+
+    public Object get(Object pInstance) {
+        return mAccessor.get(pInstance);
+    }
+
+    public void set(Object pInstance, Object pValue) {
+        mAccessor.set(pInstance, pValue);
+    }
+
+    @Override
+    public String toString() {
+        return "OuterField [mField=" + mField + ", mAccessor=" + mAccessor + "]";
+    }
+
+    /**
+     * Result of isCallback() for a callback class. Callback class is referenced weakly not to prevent its unloading.
+     */
+    private static final class CallbackCheck extends WeakReference<Class<?>> {
+        private final boolean mIsCallback;
+
+        CallbackCheck(Class<?> pCallbackClass, boolean pIsCallback) {
+            super(pCallbackClass);
+            mIsCallback = pIsCallback;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.codexperiments.leakeeper.internal;
+
+import java.lang.reflect.Field;
+
+import static com.codexperiments.leakeeper.CallbackException.internalError;
+
+/**
+ * Plain reflection backend, available everywhere. Access is checked once when the field is made accessible. Each call still goes
+ * through Field.get() or Field.set(), which check the types of the instance and of the value.
+ */
+public final class ReflectionFieldAccessor implements FieldAccessor {
+    private final Field mField;
+
+    public ReflectionFieldAccessor(Field pField) {
+        mField = pField;
+        mField.setAccessible(true);
+    }
+
+    @Override
+    public Object get(Object pInstance) {
+        try {
+            return mField.get(pInstance);
+        } catch (IllegalAccessException | RuntimeException exception) {
+            throw internalError(exception);
+        }
+    }
+
+    @Override
+    public void set(Object pInstance, Object pValue) {
+        try {
+            mField.set(pInstance, pValue);
+        } catch (IllegalAccessException | RuntimeException exception) {
+            throw internalError(exception);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReflectionFieldAccessor [mField=" + mField + "]";
+    }
+}
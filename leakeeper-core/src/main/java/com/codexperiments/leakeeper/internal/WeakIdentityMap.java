@@ -0,0 +1,352 @@
+package com.codexperiments.leakeeper.internal;
+
+import com.codexperiments.leakeeper.config.factory.LockFactory;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Map with weakly referenced values which contain their own key (e.g. a container and its callback). Keys are compared by
+ * identity and hashed with System.identityHashCode(), thus user hashCode() and equals() are never called. Only one weak
+ * reference is allocated per entry (on the value, since value references its key) and none on lookup.
+ * <p/>
+ * Entries are stored in flat arrays with open addressing (linear probing). Entries whose value has been garbage collected are
+ * expunged inline during modifications. Thread-safety of modifications depends on the lock given by the LockFactory. Lookups
+ * of a present key don't lock: table is read optimistically and a lookup locks only if the key is not found, as an entry may
+ * have been moved meanwhile by a concurrent removal. Entries are published with release stores and read with acquire loads,
+ * so that a lookup without lock sees values (e.g. containers) fully built. A map can be split into shards, each with its own
+ * table and lock, so that concurrent modifications of different keys don't contend.
+ */
+public abstract class WeakIdentityMap<TKey, TValue> {
+    public static final int MAX_SHARD_COUNT = 1 << 16;
+    private static final int MIN_CAPACITY = 8;
+
+    private final Shard[] mShards;
+    private final int mShardShift;
+
+    protected WeakIdentityMap(int pCapacity, LockFactory pLockFactory) {
+        this(pCapacity, 1, pLockFactory);
+    }
+
+    /**
+     * @param pShardCount Number of shards. Rounded up to the next power of 2 and limited to MAX_SHARD_COUNT.
+     */
+    @SuppressWarnings("unchecked")
+    protected WeakIdentityMap(int pCapacity, int pShardCount, LockFactory pLockFactory) {
+        if (pShardCount <= 0) throw new IllegalArgumentException("Shard count must be strictly positive");
+
+        // Clamp before rounding, which would overflow for counts above 2^30.
+        int shardCount = Math.min(pShardCount, MAX_SHARD_COUNT);
+        shardCount = (shardCount > 1) ? Integer.highestOneBit(shardCount - 1) << 1 : 1;
+        mShards = (Shard[]) new WeakIdentityMap<?, ?>.Shard[shardCount];
+        // Shards are selected with the high bits of hashes, since low bits are used as index in shard tables.
+        mShardShift = 32 - Integer.numberOfTrailingZeros(shardCount);
+        for (int i = 0; i < shardCount; ++i) {
+            mShards[i] = new Shard(pCapacity / shardCount, pLockFactory);
+        }
+    }
+
+    /**
+     * @param pValue Value stored in the map. Not null.
+     * @return Key of the value. Must not change over time (except becoming null if key is not reachable anymore).
+     */
+    protected abstract TKey keyOf(TValue pValue);
+
+    public TValue get(Object pKey) {
+        int hash = hash(pKey);
+        return shardOf(hash).get(pKey, hash);
+    }
+
+    public TValue put(TKey pKey, TValue pValue) {
+        int hash = hash(pKey);
+        return shardOf(hash).insert(pKey, hash, pValue, true);
+    }
+
+    /**
+     * @return Value already associated with the key if any (in which case it is not replaced) or else the new value.
+     */
+    public TValue putIfAbsent(TKey pKey, TValue pValue) {
+        int hash = hash(pKey);
+        return shardOf(hash).insert(pKey, hash, pValue, false);
+    }
+
+    /**
+     * Insert or replace several values at once, each associated with its own key. Each shard is locked once for the whole batch.
+     */
+    public void putAll(List<? extends TValue> pValues) {
+        int size = pValues.size();
+        int[] hashes = new int[size];
+        for (int i = 0; i < size; ++i) {
+            hashes[i] = hash(keyOf(pValues.get(i)));
+        }
+        for (Shard shard : mShards) {
+            shard.insertAll(pValues, hashes);
+        }
+    }
+
+    public void clear() {
+        for (Shard shard : mShards) {
+            shard.clear();
+        }
+    }
+
+    /**
+     * @return Number of entries, including entries whose value has been collected but not expunged yet.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : mShards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    private Shard shardOf(int pHash) {
+        // Shift is 32 (i.e. no shift at all in Java) when there is only one shard.
+        return (mShards.length == 1) ? mShards[0] : mShards[pHash >>> mShardShift];
+    }
+
+    /**
+     * Independent part of the map with its own table and lock.
+     */
+    private final class Shard {
+        private final Lock mLock;
+        private final ReferenceQueue<TValue> mQueue;
+        // Replaced when resized. Its content is modified under lock only.
+        private volatile Table<TValue> mTable;
+        private int mSize;
+
+        Shard(int pCapacity, LockFactory pLockFactory) {
+            int capacity = MIN_CAPACITY;
+            while (capacity < pCapacity) capacity <<= 1;
+
+            mLock = pLockFactory.create(this);
+            mQueue = new ReferenceQueue<>();
+            mTable = new Table<>(capacity);
+            mSize = 0;
+        }
+
+        TValue get(Object pKey, int pHash) {
+            // A value found without lock is always right. But a removal may be moving the entry backward at the same time, so
+            // absence is confirmed under lock. Most lookups are for present keys (e.g. containers of parent callbacks).
+            TValue value = find(pKey, pHash);
+            if (value != null) return value;
+
+            mLock.lock();
+            try {
+                return find(pKey, pHash);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        private TValue find(Object pKey, int pHash) {
+            int hash = pHash;
+            AtomicReferenceArray<WeakEntry<TValue>> entries = mTable.mEntries;
+            int length = entries.length();
+            int mask = length - 1;
+
+            // Probing is bounded since a lookup without lock may see a table without free slot while entries are moved. Hashes
+            // array is written with plain stores, so the final hash of the entry is compared instead.
+            for (int index = hash & mask, probes = 0; probes < length; index = (index + 1) & mask, ++probes) {
+                WeakEntry<TValue> entry = entries.get(index);
+                if (entry == null) return null;
+                if (entry.mHash == hash) {
+                    TValue value = entry.get();
+                    if ((value != null) && (keyOf(value) == pKey)) return value;
+                }
+            }
+            return null;
+        }
+
+        void clear() {
+            mLock.lock();
+            try {
+                AtomicReferenceArray<WeakEntry<TValue>> entries = mTable.mEntries;
+                for (int i = 0; i < entries.length(); ++i) {
+                    entries.lazySet(i, null);
+                }
+                mSize = 0;
+                // Entries dequeued after that are not found anymore and ignored.
+                expungeStaleEntries();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        int size() {
+            mLock.lock();
+            try {
+                return mSize;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        TValue insert(TKey pKey, int pHash, TValue pValue, boolean pReplace) {
+            mLock.lock();
+            try {
+                expungeStaleEntries();
+                return doInsert(pKey, pHash, pValue, pReplace);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * Insert values of the batch which belong to this shard, if any, under a single lock.
+         */
+        void insertAll(List<? extends TValue> pValues, int[] pHashes) {
+            mLock.lock();
+            try {
+                expungeStaleEntries();
+                for (int i = 0; i < pHashes.length; ++i) {
+                    if (shardOf(pHashes[i]) == this) {
+                        TValue value = pValues.get(i);
+                        doInsert(keyOf(value), pHashes[i], value, true);
+                    }
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        private TValue doInsert(TKey pKey, int pHash, TValue pValue, boolean pReplace) {
+            // Keep load factor under 3/4 to keep probe sequences short.
+            if ((mSize + 1) * 4 > mTable.mEntries.length() * 3) resize();
+
+            int hash = pHash;
+            Table<TValue> table = mTable;
+            int[] hashes = table.mHashes;
+            AtomicReferenceArray<WeakEntry<TValue>> entries = table.mEntries;
+            int mask = entries.length() - 1;
+
+            // Referents are dereferenced only when hashes match. Calling get() on every probed entry would keep values alive
+            // with collectors that mark concurrently (e.g. G1), making clusters of dead entries survive and grow.
+            int index = hash & mask;
+            for (; entries.get(index) != null; index = (index + 1) & mask) {
+                if (hashes[index] == hash) {
+                    TValue value = entries.get(index).get();
+                    if ((value != null) && (keyOf(value) == pKey)) {
+                        if (!pReplace) return value;
+                        break;
+                    }
+                }
+            }
+
+            if (entries.get(index) == null) ++mSize;
+            hashes[index] = hash;
+            // Release store: a lookup without lock which sees the entry sees the value as it was built before insertion.
+            entries.lazySet(index, new WeakEntry<>(pValue, hash, mQueue));
+            return pValue;
+        }
+
+        /**
+         * Remove entries whose value has been garbage collected. Polling an empty queue is cheap, thus this is called on each access.
+         */
+        @SuppressWarnings("unchecked")
+        private void expungeStaleEntries() {
+            WeakEntry<TValue> staleEntry;
+            while ((staleEntry = (WeakEntry<TValue>) mQueue.poll()) != null) {
+                removeEntry(staleEntry);
+            }
+        }
+
+        /**
+         * Remove an entry by identity, if still present, and shift back following entries of the same probe sequence so that
+         * lookups don't need tombstones.
+         */
+        private void removeEntry(WeakEntry<TValue> pEntry) {
+            int[] hashes = mTable.mHashes;
+            AtomicReferenceArray<WeakEntry<TValue>> entries = mTable.mEntries;
+            int mask = entries.length() - 1;
+
+            int index = pEntry.mHash & mask;
+            while (entries.get(index) != pEntry) {
+                if (entries.get(index) == null) return; // Already replaced or removed.
+                index = (index + 1) & mask;
+            }
+
+            entries.lazySet(index, null);
+            --mSize;
+            int nextIndex = index;
+            while (true) {
+                nextIndex = (nextIndex + 1) & mask;
+                WeakEntry<TValue> nextEntry = entries.get(nextIndex);
+                if (nextEntry == null) return;
+
+                // Move next entry into the free slot unless its ideal slot lies cyclically between the free slot and itself.
+                int idealIndex = hashes[nextIndex] & mask;
+                boolean inPlace = (index <= nextIndex) ? ((index < idealIndex) && (idealIndex <= nextIndex))
+                                                       : ((index < idealIndex) || (idealIndex <= nextIndex));
+                if (!inPlace) {
+                    hashes[index] = hashes[nextIndex];
+                    entries.lazySet(index, nextEntry);
+                    entries.lazySet(nextIndex, null);
+                    index = nextIndex;
+                }
+            }
+        }
+
+        /**
+         * Rebuild the table with a doubled capacity. Stale entries are copied too (values are not dereferenced for the same reason as
+         * in doInsert()) and expunged when dequeued. Old table is not modified anymore, thus concurrent lookups can still use it.
+         */
+        private void resize() {
+            int[] oldHashes = mTable.mHashes;
+            AtomicReferenceArray<WeakEntry<TValue>> oldEntries = mTable.mEntries;
+            int capacity = oldEntries.length() << 1;
+
+            Table<TValue> table = new Table<>(capacity);
+            int[] hashes = table.mHashes;
+            AtomicReferenceArray<WeakEntry<TValue>> entries = table.mEntries;
+            int mask = capacity - 1;
+            for (int oldIndex = 0; oldIndex < oldEntries.length(); ++oldIndex) {
+                WeakEntry<TValue> entry = oldEntries.get(oldIndex);
+                if (entry != null) {
+                    int index = oldHashes[oldIndex] & mask;
+                    while (entries.get(index) != null) index = (index + 1) & mask;
+                    hashes[index] = oldHashes[oldIndex];
+                    entries.lazySet(index, entry);
+                }
+            }
+            // Published by the volatile write.
+            mTable = table;
+        }
+    }
+
+    /**
+     * Hashes and entries of a shard, published together. Hashes are read under lock only.
+     */
+    private static final class Table<TValue> {
+        private final int[] mHashes;
+        // A null slot is free. Cleared entries are not free until expunged.
+        private final AtomicReferenceArray<WeakEntry<TValue>> mEntries;
+
+        Table(int pCapacity) {
+            mHashes = new int[pCapacity];
+            mEntries = new AtomicReferenceArray<>(pCapacity);
+        }
+    }
+
+    /**
+     * Identity hashes are not guaranteed to be well distributed in their low bits (which are used as index). Multiply them by
+     * the golden ratio and keep the high bits to spread them over the whole table.
+     */
+    private static int hash(Object pKey) {
+        int hash = System.identityHashCode(pKey) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class WeakEntry<TValue> extends WeakReference<TValue> {
+        private final int mHash;
+
+        WeakEntry(TValue pValue, int pHash, ReferenceQueue<TValue> pQueue) {
+            super(pValue, pQueue);
+            mHash = pHash;
+        }
+    }
+}
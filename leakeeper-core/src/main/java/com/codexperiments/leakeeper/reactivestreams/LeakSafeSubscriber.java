@@ -0,0 +1,220 @@
+package com.codexperiments.leakeeper.reactivestreams;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.action.CallbackAction1;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reactive Streams subscriber delivering signals to a wrapped subscriber while its emitters are referenced. Demand is not
+ * buffered: the wrapped subscriber receives the upstream subscription itself, so that its request(n) calls go straight to the
+ * publisher and a slow consumer throttles it. Received items are thus bounded by the demand.
+ * <p/>
+ * Signals are queued and drained on the given executor (e.g. one posting to the UI-Thread) or, by default, on the thread which
+ * receives them. All the items queued when a drain starts are delivered while emitters are referenced once.
+ * <p/>
+ * Emitters being unavailable is considered temporary (e.g. while an Android activity is recreated after a configuration
+ * change): queued items are dropped and as many items are requested from upstream to replace them, so that the demand of the
+ * wrapped subscriber is preserved and the stream goes on once emitters are back. A terminal signal is dropped too, after which
+ * nothing is delivered. If emitters are unavailable before the wrapped subscriber gets its subscription, subscription is delivered
+ * as soon as they are managed again. However, if emitters can never be available again (manager closed or unmanaged emitter
+ * garbage collected, see CallbackContainer.isAbandoned()), the upstream subscription is cancelled and nothing is delivered
+ * anymore. This is the same policy as LeakSafeBatchSubscriber for RxJava.
+ */
+public class LeakSafeSubscriber<T> implements Subscriber<T> {
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable pTask) {
+            pTask.run();
+        }
+    };
+    private static final CallbackAction1<Object, LeakSafeSubscriber<?>> SCHEDULE_DRAIN
+            = new CallbackAction1<Object, LeakSafeSubscriber<?>>() {
+        @Override
+        public void run(Object pSubscriber, LeakSafeSubscriber<?> pLeakSafeSubscriber) {
+            pLeakSafeSubscriber.mWaitingForEmitters = false;
+            pLeakSafeSubscriber.scheduleDrain();
+        }
+    };
+    private static final CallbackAction1<Subscriber<?>, LeakSafeSubscriber<?>> DELIVER_SIGNALS
+            = new CallbackAction1<Subscriber<?>, LeakSafeSubscriber<?>>() {
+        @Override
+        public void run(Subscriber<?> pSubscriber, LeakSafeSubscriber<?> pLeakSafeSubscriber) {
+            pLeakSafeSubscriber.deliverSignals(pSubscriber);
+        }
+    };
+
+    private final CallbackContainer<? extends Subscriber<?>> mContainer;
+    private final Executor mExecutor;
+    private final Queue<T> mQueue; // Items are never null in Reactive Streams.
+    // Number of drain requests not processed yet. Only the request which increments it from 0 starts a drain.
+    private final AtomicInteger mDrainRequests;
+    private final Runnable mDrain;
+    private volatile Subscription mSubscription;
+    private volatile boolean mDone;
+    private volatile Throwable mError;
+    // Set by drains only, which are serialized. Read by onNext() to drop items received after termination.
+    private volatile boolean mTerminated;
+    // Accessed from drains only.
+    private boolean mSubscribed;
+    // Set by drains while waiting for emitters to deliver the subscription. Cleared once they are available.
+    private volatile boolean mWaitingForEmitters;
+
+    public static <T> Subscriber<T> wrap(Subscriber<T> pSubscriber, CallbackManager<Subscriber<?>> pCallbackManager) {
+        return new LeakSafeSubscriber<>(pCallbackManager.wrap(pSubscriber));
+    }
+
+    public static <T> Subscriber<T> wrap(Subscriber<T> pSubscriber, CallbackManager<Subscriber<?>> pCallbackManager,
+                                         Executor pExecutor) {
+        return new LeakSafeSubscriber<>(pCallbackManager.wrap(pSubscriber), pExecutor);
+    }
+
+    /**
+     * Signals are delivered on the thread which receives them.
+     */
+    public LeakSafeSubscriber(CallbackContainer<? extends Subscriber<?>> pContainer) {
+        this(pContainer, DIRECT_EXECUTOR);
+    }
+
+    /**
+     * @param pContainer Container of the subscriber signals are delivered to. It must subscribe to a single publisher.
+     * @param pExecutor  Executor on which signals are delivered, e.g. the thread of an event loop.
+     */
+    public LeakSafeSubscriber(CallbackContainer<? extends Subscriber<?>> pContainer, Executor pExecutor) {
+        mContainer = pContainer;
+        mExecutor = pExecutor;
+        mQueue = new ConcurrentLinkedQueue<>();
+        mDrainRequests = new AtomicInteger();
+        mDrain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        mSubscription = null;
+        mDone = false;
+        mError = null;
+        mTerminated = false;
+        mSubscribed = false;
+        mWaitingForEmitters = false;
+    }
+
+    @Override
+    public void onSubscribe(Subscription pSubscription) {
+        if (pSubscription == null) throw new NullPointerException("Subscription is null");
+        if (mSubscription != null) {
+            // Only one subscription is allowed (rule 2.5).
+            pSubscription.cancel();
+            return;
+        }
+        mSubscription = pSubscription;
+        scheduleDrain();
+    }
+
+    @Override
+    public void onNext(T pItem) {
+        if (pItem == null) throw new NullPointerException("Item is null");
+        if (mTerminated) return;
+        mQueue.offer(pItem);
+        scheduleDrain();
+    }
+
+    @Override
+    public void onError(Throwable pError) {
+        if (pError == null) throw new NullPointerException("Error is null");
+        mError = pError;
+        mDone = true;
+        scheduleDrain();
+    }
+
+    @Override
+    public void onComplete() {
+        mDone = true;
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (mDrainRequests.getAndIncrement() == 0) mExecutor.execute(mDrain);
+    }
+
+    /**
+     * Deliver queued signals until no more drain is requested. Signals received while delivering (e.g. when the wrapped subscriber
+     * requests items synchronously provided by the publisher) are delivered by the same drain after the current ones.
+     */
+    private void drain() {
+        int drainRequests = mDrainRequests.get();
+        while (true) {
+            // Items received after termination but queued before it was visible are discarded here.
+            if (mTerminated) mQueue.clear();
+            else if (!mContainer.invoke(DELIVER_SIGNALS, this)) dropSignals();
+            drainRequests = mDrainRequests.addAndGet(-drainRequests);
+            if (drainRequests == 0) return;
+        }
+    }
+
+    /**
+     * Called while emitters are referenced.
+     */
+    @SuppressWarnings("unchecked")
+    private void deliverSignals(Subscriber<?> pSubscriber) {
+        Subscriber<T> subscriber = (Subscriber<T>) pSubscriber;
+        if (!mSubscribed) {
+            mSubscribed = true;
+            subscriber.onSubscribe(mSubscription);
+        }
+
+        // Done flag must be read before the queue to be sure no item is missed. Items are bounded by demand, so is this window.
+        boolean done = mDone;
+        T item;
+        while ((item = mQueue.poll()) != null) {
+            subscriber.onNext(item);
+        }
+        if (done && mQueue.isEmpty()) {
+            mTerminated = true;
+            if (mError != null) subscriber.onError(mError);
+            else subscriber.onComplete();
+        }
+    }
+
+    /**
+     * Called when emitters are not available. Dropped items are requested again from upstream, unless emitters never come back.
+     */
+    private void dropSignals() {
+        // Done flag must be read before the queue, as in deliverSignals().
+        boolean done = mDone;
+        long dropped = 0;
+        while (mQueue.poll() != null) {
+            ++dropped;
+        }
+
+        if (done && mQueue.isEmpty()) {
+            mTerminated = true;
+        } else if (mContainer.isAbandoned()) {
+            abandon();
+        } else if (!mSubscribed) {
+            // Nothing is requested until the wrapped subscriber gets its subscription, so no signal would trigger a drain.
+            if (!mWaitingForEmitters) {
+                mWaitingForEmitters = true;
+                // Cancelled if emitters have been abandoned meanwhile (e.g. manager closed concurrently).
+                if (mContainer.invokeWhenAvailable(SCHEDULE_DRAIN, this).isCancelled()) abandon();
+            }
+        } else if (dropped > 0) {
+            mSubscription.request(dropped);
+        }
+    }
+
+    /**
+     * Stop the stream when emitters can never be available again: requesting more items would just drop them forever.
+     */
+    private void abandon() {
+        mTerminated = true;
+        mQueue.clear();
+        mSubscription.cancel();
+    }
+}
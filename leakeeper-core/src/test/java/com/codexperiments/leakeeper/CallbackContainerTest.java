@@ -0,0 +1,538 @@
+package com.codexperiments.leakeeper;
+
+import com.codexperiments.leakeeper.action.CallbackAction;
+import com.codexperiments.leakeeper.action.CallbackAction1;
+import com.codexperiments.leakeeper.action.CallbackAction2;
+import com.codexperiments.leakeeper.action.CallbackFunction;
+import com.codexperiments.leakeeper.action.CallbackFunction1;
+import com.codexperiments.leakeeper.action.CallbackFunction2;
+import com.codexperiments.leakeeper.action.CallbackIntAction;
+import com.codexperiments.leakeeper.action.CallbackLongAction;
+import com.codexperiments.leakeeper.common.TestCallback;
+import com.codexperiments.leakeeper.common.TestEmitter;
+import com.codexperiments.leakeeper.config.enforcer.NoThreadEnforcer;
+import com.codexperiments.leakeeper.config.idle.FlushIdleHook;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test CallbackContainer referencing and dereferencing.
+ */
+public class CallbackContainerTest {
+    private static final int THREAD_COUNT = 4;
+    private static final int ITERATION_COUNT = 10000;
+
+    //region Given
+    private static CallbackManager<TestCallback> givenManager() {
+        return CallbackManager.multiThreaded(TestCallback.class, TestEmitter.resolver(), new NoThreadEnforcer());
+    }
+
+    /**
+     * @return A manager of each kind, as containers count references differently when confined.
+     */
+    private static List<CallbackManager<TestCallback>> givenManagers() {
+        return Arrays.asList(CallbackManager.confined(TestCallback.class, TestEmitter.resolver()),
+                             CallbackManager.singleThreaded(TestCallback.class, TestEmitter.resolver(), new NoThreadEnforcer()),
+                             givenManager(),
+                             CallbackManager.sharded(TestCallback.class, TestEmitter.resolver(), new NoThreadEnforcer()));
+    }
+    //endregion
+
+
+    @Test
+    public void testReference_nested_dereferencedByLastDereference() {
+        CallbackManager<TestCallback> manager = givenManager();
+        TestEmitter emitter = new TestEmitter("emitter");
+        manager.manage(emitter);
+        TestEmitter.InnerCallback callback = emitter.newCallback();
+        CallbackContainer<TestCallback> container = manager.wrap(callback);
+
+        assertThat(container.referenceEmitter(true), equalTo(true));
+        assertThat(container.referenceEmitter(true), equalTo(true));
+        container.dereferenceEmitter();
+        assertThat(callback.emitter(), sameInstance((Object) emitter));
+        container.dereferenceEmitter();
+        assertThat(callback.emitter(), nullValue());
+    }
+
+    @Test
+    public void testReference_confined_dereferencedByLastDereference() {
+        CallbackManager<TestCallback> manager = CallbackManager.confined(TestCallback.class, TestEmitter.resolver());
+        TestEmitter emitter = new TestEmitter("emitter");
+        manager.manage(emitter);
+        TestEmitter.InnerCallback callback = emitter.newCallback();
+        CallbackContainer<TestCallback> container = manager.wrap(callback);
+        TestEmitter.InnerCallback.NestedCallback nestedCallback = callback.newNestedCallback();
+        CallbackContainer<TestCallback> nestedContainer = manager.wrap(nestedCallback);
+
+        container.dereferenceEmitter();
+        assertThat(container.referenceEmitter(true), equalTo(true));
+        assertThat(nestedContainer.referenceEmitter(true), equalTo(true));
+        assertThat(nestedCallback.parentEmitter(), sameInstance((Object) emitter));
+        nestedContainer.dereferenceEmitter();
+        assertThat(callback.emitter(), sameInstance((Object) emitter));
+        container.dereferenceEmitter();
+        assertThat(callback.emitter(), nullValue());
+
+        manager.unmanage(emitter);
+        assertThat(nestedContainer.referenceEmitter(true), equalTo(false));
+        assertThat(nestedCallback.emitter(), nullValue());
+        manager.manage(emitter);
+        assertThat(nestedContainer.referenceEmitter(true), equalTo(true));
+        assertThat(nestedCallback.parentEmitter(), sameInstance((Object) emitter));
+        nestedContainer.dereferenceEmitter();
+        assertThat(callback.emitter(), nullValue());
+    }
+
+    @Test
+    public void testDereference_notReferenced_ignored() {
+        CallbackManager<TestCallback> manager = givenManager();
+        TestEmitter emitter = new TestEmitter("emitter");
+        manager.manage(emitter);
+        TestEmitter.InnerCallback callback = emitter.newCallback();
+        CallbackContainer<TestCallback> container = manager.wrap(callback);
+
+        container.dereferenceEmitter();
+        // Counter must not go below 0: next referencing still writes fields.
+        assertThat(container.referenceEmitter(true), equalTo(true));
+        assertThat(callback.emitter(), sameInstance((Object) emitter));
+        container.dereferenceEmitter();
+        assertThat(callback.emitter(), nullValue());
+    }
+
+    @Test
+    public void testReference_failed_counterReleased() {
+        CallbackManager<TestCallback> manager = givenManager();
+        TestEmitter emitter = new TestEmitter("emitter");
+        manager.manage(emitter);
+        TestEmitter.InnerCallback callback = emitter.newCallback();
+        CallbackContainer<TestCallback> container = manager.wrap(callback);
+
+        manager.unmanage(emitter);
+        assertThat(container.referenceEmitter(true), equalTo(false));
+        // A failed referencing leaves the container in its initial state, not in transition.
+        manager.manage(emitter);
+        assertThat(container.referenceEmitter(true), equalTo(true));
+        assertThat(callback.emitter(), sameInstance((Object) emitter));
+        container.dereferenceEmitter();
+        assertThat(callback.emitter(), nullValue());
+    }
+
+    @Test
+    public void testReference_nestedCallback_parentCountedOncePerChild() {
+        CallbackManager<TestCallback> manager = givenManager();
+        TestEmitter emitter = new TestEmitter("emitter");
+        manager.manage(emitter);
+        TestEmitter.InnerCallback callback = emitter.newCallback();
+        CallbackContainer<TestCallback> container = manager.wrap(callback);
+        TestEmitter.InnerCallback.NestedCallback nestedCallback = callback.newNestedCallback();
+        CallbackContainer<TestCallback> nestedContainer = manager.wrap(nestedCallback);
+
+        assertThat(container.referenceEmitter(true), equalTo(true));
+        assertThat(nestedContainer.referenceEmitter(true), equalTo(true));
+        assertThat(nestedCallback.parentEmitter(), sameInstance((Object) emitter));
+        // Parent is still referenced by its own callback once nested callback is done.
+        nestedContainer.dereferenceEmitter();
+        assertThat(nestedCallback.emitter(), nullValue());
+        assertThat(callback.emitter(), sameInstance((Object) emitter));
+        container.dereferenceEmitter();
+        assertThat(callback.emitter(), nullValue());
+    }
+
+    @Test
+    public void testReference_partial_missingEmitterCleared() {
+        CallbackManager<TestCallback> manager = givenManager();
+        TestEmitter emitter = new TestEmitter("emitter");
+        manager.manage(emitter);
+        TestEmitter.InnerCallback callback = emitter.newCallback();
+        CallbackContainer<TestCallback> container = manager.wrap(callback);
+
+        manager.unmanage(emitter);
+        assertThat(container.referenceEmitter(false), equalTo(true));
+        assertThat(callback.emitter(), nullValue());
+        container.dereferenceEmitter();
+    }
+
+    @Test
+    public void testIsStale_emitterReplacedWhileReferenced() {
+        CallbackManager<TestCallback> manager = givenManager();
+        TestEmitter emitter = new TestEmitter("emitter");
+        manager.manage(emitter);
+        TestEmitter.InnerCallback callback = emitter.newCallback();
+        CallbackContainer<TestCallback> container = manager.wrap(callback);
+
+        assertThat(container.referenceEmitter(true), equalTo(true));
+        assertThat(container.isStale(), equalTo(false));
+        TestEmitter newEmitter = new TestEmitter("emitter");
+        manager.manage(newEmitter);
+        assertThat(container.isStale(), equalTo(true));
+        assertThat(callback.emitter(), sameInstance((Object) emitter));
+
+        container.dereferenceEmitter();
+        assertThat(container.referenceEmitter(true), equalTo(true));
+        assertThat(container.isStale(), equalTo(false));
+        assertThat(callback.emitter(), sameInstance((Object) newEmitter));
+        container.dereferenceEmitter();
+    }
+
+    @Test
+    public void testReference_emitterReplacedConcurrently_consistent() throws InterruptedException {
+        final CallbackManager<TestCallback> manager = givenManager();
+        final TestEmitter[] emitters = { new TestEmitter("emitter"), new TestEmitter("emitter") };
+        manager.manage(emitters[0]);
+        TestEmitter.InnerCallback callback = emitters[0].newCallback();
+        TestEmitter.InnerCallback.NestedCallback nestedCallback = callback.newNestedCallback();
+        manager.wrap(callback);
+        CallbackContainer<TestCallback> container = manager.wrap(nestedCallback);
+
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; !stopped.get(); ++i) {
+                    manager.manage(emitters[i % 2]);
+                }
+            }
+        });
+        thread.start();
+        try {
+            for (int i = 0; i < ITERATION_COUNT; ++i) {
+                // Partial referencing: missing emitters are cleared, others are up to date when referencing returns.
+                assertThat(container.referenceEmitter(false), equalTo(true));
+                try {
+                    Object emitter = nestedCallback.parentEmitter();
+                    assertThat(emitter == emitters[0] || emitter == emitters[1], equalTo(true));
+                } finally {
+                    container.dereferenceEmitter();
+                }
+            }
+        } finally {
+            stopped.set(true);
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testReferenceAll_sharedParent_countedPerContainer() {
+        for (CallbackManager<TestCallback> manager : givenManagers()) {
+            TestEmitter emitter = new TestEmitter("emitter");
+            manager.manage(emitter);
+            TestEmitter.InnerCallback callback = emitter.newCallback();
+            TestEmitter.InnerCallback.NestedCallback nestedCallback1 = callback.newNestedCallback();
+            TestEmitter.InnerCallback.NestedCallback nestedCallback2 = callback.newNestedCallback();
+            // Nested callbacks are wrapped in the same batch as their parent.
+            List<CallbackContainer<TestCallback>> containers = manager.wrapAll(
+                    Arrays.<TestCallback>asList(callback, nestedCallback1, nestedCallback2));
+
+            assertThat(CallbackContainer.referenceAll(containers, true), equalTo(true));
+            assertThat(nestedCallback1.parentEmitter(), sameInstance((Object) emitter));
+            assertThat(nestedCallback2.parentEmitter(), sameInstance((Object) emitter));
+            // Parent stays referenced while one of the containers still references it.
+            assertThat(containers.get(1).referenceEmitter(true), equalTo(true));
+            CallbackContainer.dereferenceAll(containers);
+            assertThat(callback.emitter(), sameInstance((Object) emitter));
+            containers.get(1).dereferenceEmitter();
+            assertThat(callback.emitter(), nullValue());
+            assertThat(nestedCallback1.emitter(), nullValue());
+            assertThat(nestedCallback2.emitter(), nullValue());
+        }
+    }
+
+    @Test
+    public void testReferenceAll_failure_rolledBack() {
+        for (CallbackManager<TestCallback> manager : givenManagers()) {
+            TestEmitter emitter = new TestEmitter("emitter");
+            TestEmitter otherEmitter = new TestEmitter("other");
+            manager.manage(emitter);
+            manager.manage(otherEmitter);
+            TestEmitter.InnerCallback callback = emitter.newCallback();
+            TestEmitter.InnerCallback otherCallback = otherEmitter.newCallback();
+            List<CallbackContainer<TestCallback>> containers = manager.wrapAll(
+                    Arrays.<TestCallback>asList(callback, otherCallback));
+            // First container is already referenced and just counts a reference during the batch.
+            assertThat(containers.get(0).referenceEmitter(true), equalTo(true));
+
+            manager.unmanage(otherEmitter);
+            assertThat(CallbackContainer.referenceAll(containers, true), equalTo(false));
+            assertThat(otherCallback.emitter(), nullValue());
+            containers.get(0).dereferenceEmitter();
+            assertThat(callback.emitter(), nullValue());
+        }
+    }
+
+    @Test
+    public void testReference_concurrent_balanced() throws InterruptedException {
+        CallbackManager<TestCallback> manager = givenManager();
+        final TestEmitter emitter = new TestEmitter("emitter");
+        manager.manage(emitter);
+        final TestEmitter.InnerCallback callback = emitter.newCallback();
+        final CallbackContainer<TestCallback> container = manager.wrap(callback);
+
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[THREAD_COUNT];
+        for (int i = 0; i < THREAD_COUNT; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        for (int j = 0; j < ITERATION_COUNT; ++j) {
+                            if (!container.referenceEmitter(true)) throw new AssertionError("Referencing failed");
+                            try {
+                                // Emitter is never dereferenced while a thread holds a reference.
+                                if (callback.emitter() != emitter) throw new AssertionError("Emitter not referenced");
+                            } finally {
+                                container.dereferenceEmitter();
+                            }
+                        }
+                    } catch (Throwable eThrowable) {
+                        failure.compareAndSet(null, eThrowable);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(failure.get(), nullValue());
+        assertThat(callback.emitter(), nullValue());
+    }
+
+    @Test
+    public void testInvoke_allArities_runWhileReferenced() {
+        CallbackManager<TestCallback> manager = givenManager();
+        TestEmitter emitter = new TestEmitter("emitter");
+        manager.manage(emitter);
+        CallbackContainer<TestCallback> container = manager.wrap(emitter.newCallback());
+        final List<Object> calls = new ArrayList<>();
+
+        assertThat(container.invoke(new CallbackAction<TestCallback>() {
+            @Override
+            public void run(TestCallback pCallback) {
+                calls.add(pCallback.emitter());
+            }
+        }), equalTo(true));
+        assertThat(container.invoke(new CallbackAction1<TestCallback, String>() {
+            @Override
+            public void run(TestCallback pCallback, String pArg) {
+                calls.add(pArg);
+            }
+        }, "arg"), equalTo(true));
+        assertThat(container.invoke(new CallbackAction2<TestCallback, String, String>() {
+            @Override
+            public void run(TestCallback pCallback, String pArg1, String pArg2) {
+                calls.add(pArg1 + pArg2);
+            }
+        }, "arg1", "arg2"), equalTo(true));
+        assertThat(container.invokeInt(new CallbackIntAction<TestCallback>() {
+            @Override
+            public void run(TestCallback pCallback, int pArg) {
+                calls.add(pArg);
+            }
+        }, 42), equalTo(true));
+        assertThat(container.invokeLong(new CallbackLongAction<TestCallback>() {
+            @Override
+            public void run(TestCallback pCallback, long pArg) {
+                calls.add(pArg);
+            }
+        }, 42L), equalTo(true));
+        assertThat(calls, equalTo(Arrays.<Object>asList(emitter, "arg", "arg1arg2", 42, 42L)));
+        assertThat(container.callback().emitter(), nullValue());
+    }
+
+    @Test
+    public void testCall_allArities_resultReturned() {
+        CallbackManager<TestCallback> manager = givenManager();
+        TestEmitter emitter = new TestEmitter("emitter");
+        manager.manage(emitter);
+        CallbackContainer<TestCallback> container = manager.wrap(emitter.newCallback());
+
+        assertThat(container.call(new CallbackFunction<TestCallback, Object>() {
+            @Override
+            public Object apply(TestCallback pCallback) {
+                return pCallback.emitter();
+            }
+        }, null), sameInstance((Object) emitter));
+        assertThat(container.call(new CallbackFunction1<TestCallback, String, String>() {
+            @Override
+            public String apply(TestCallback pCallback, String pArg) {
+                return pArg + "!";
+            }
+        }, "arg", "default"), equalTo("arg!"));
+        assertThat(container.call(new CallbackFunction2<TestCallback, String, String, String>() {
+            @Override
+            public String apply(TestCallback pCallback, String pArg1, String pArg2) {
+                return pArg1 + pArg2;
+            }
+        }, "arg1", "arg2", "default"), equalTo("arg1arg2"));
+    }
+
+    @Test
+    public void testInvokeAndCall_emittersUnavailable_notRun() {
+        CallbackManager<TestCallback> manager = givenManager();
+        TestEmitter emitter = new TestEmitter("emitter");
+        manager.manage(emitter);
+        CallbackContainer<TestCallback> container = manager.wrap(emitter.newCallback());
+        manager.unmanage(emitter);
+
+        assertThat(container.invokeInt(new CallbackIntAction<TestCallback>() {
+            @Override
+            public void run(TestCallback pCallback, int pArg) {
+                throw new AssertionError("Action run");
+            }
+        }, 42), equalTo(false));
+        assertThat(container.call(new CallbackFunction1<TestCallback, String, String>() {
+            @Override
+            public String apply(TestCallback pCallback, String pArg) {
+                throw new AssertionError("Function applied");
+            }
+        }, "arg", "default"), equalTo("default"));
+    }
+
+    @Test
+    public void testStickyReferencing_burst_dereferencedAtIdle() {
+        for (CallbackManager<TestCallback> manager : givenManagers()) {
+            TestEmitter emitter = new TestEmitter("emitter");
+            manager.manage(emitter);
+            TestEmitter.InnerCallback callback = emitter.newCallback();
+            CallbackContainer<TestCallback> container = manager.wrap(callback);
+            FlushIdleHook idleHook = new FlushIdleHook();
+            container.setStickyReferencing(idleHook);
+            RecordEmitter recordEmitter = new RecordEmitter();
+
+            for (int i = 0; i < 3; ++i) {
+                assertThat(container.invoke(recordEmitter), equalTo(true));
+                // Emitters stay referenced between invocations of the same burst.
+                assertThat(callback.emitter(), sameInstance((Object) emitter));
+            }
+            idleHook.flush();
+            assertThat(callback.emitter(), nullValue());
+
+            // Next burst references emitters again.
+            assertThat(container.invoke(recordEmitter), equalTo(true));
+            assertThat(callback.emitter(), sameInstance((Object) emitter));
+            idleHook.flush();
+            assertThat(callback.emitter(), nullValue());
+            assertThat(recordEmitter.mEmitters, equalTo(Arrays.<Object>asList(emitter, emitter, emitter, emitter)));
+        }
+    }
+
+    @Test
+    public void testStickyReferencing_disabledDuringBurst_dereferencedAtIdle() {
+        for (CallbackManager<TestCallback> manager : givenManagers()) {
+            TestEmitter emitter = new TestEmitter("emitter");
+            manager.manage(emitter);
+            TestEmitter.InnerCallback callback = emitter.newCallback();
+            CallbackContainer<TestCallback> container = manager.wrap(callback);
+            FlushIdleHook idleHook = new FlushIdleHook();
+            container.setStickyReferencing(idleHook);
+
+            assertThat(container.invoke(new RecordEmitter()), equalTo(true));
+            container.setStickyReferencing(null);
+            assertThat(container.invoke(new RecordEmitter()), equalTo(true));
+            assertThat(callback.emitter(), sameInstance((Object) emitter));
+            idleHook.flush();
+            assertThat(callback.emitter(), nullValue());
+
+            // Not sticky anymore.
+            assertThat(container.invoke(new RecordEmitter()), equalTo(true));
+            assertThat(callback.emitter(), nullValue());
+        }
+    }
+
+    @Test
+    public void testStickyReferencing_emitterReplacedMidBurst_refreshed() {
+        for (CallbackManager<TestCallback> manager : givenManagers()) {
+            TestEmitter emitter = new TestEmitter("emitter");
+            manager.manage(emitter);
+            TestEmitter.InnerCallback callback = emitter.newCallback();
+            CallbackContainer<TestCallback> container = manager.wrap(callback);
+            FlushIdleHook idleHook = new FlushIdleHook();
+            container.setStickyReferencing(idleHook);
+            RecordEmitter recordEmitter = new RecordEmitter();
+
+            assertThat(container.invoke(recordEmitter), equalTo(true));
+            TestEmitter newEmitter = new TestEmitter("emitter");
+            manager.manage(newEmitter);
+            assertThat(container.invoke(recordEmitter), equalTo(true));
+            assertThat(container.isStale(), equalTo(false));
+            assertThat(recordEmitter.mEmitters, equalTo(Arrays.<Object>asList(emitter, newEmitter)));
+
+            idleHook.flush();
+            assertThat(callback.emitter(), nullValue());
+        }
+    }
+
+    @Test
+    public void testStickyReferencing_emitterReplacedInNestedInvocation_refreshed() {
+        for (final CallbackManager<TestCallback> manager : givenManagers()) {
+            TestEmitter emitter = new TestEmitter("emitter");
+            manager.manage(emitter);
+            TestEmitter.InnerCallback callback = emitter.newCallback();
+            final CallbackContainer<TestCallback> container = manager.wrap(callback);
+            FlushIdleHook idleHook = new FlushIdleHook();
+            container.setStickyReferencing(idleHook);
+            final TestEmitter newEmitter = new TestEmitter("emitter");
+            final RecordEmitter recordEmitter = new RecordEmitter();
+
+            assertThat(container.invoke(new CallbackAction<TestCallback>() {
+                @Override
+                public void run(TestCallback pCallback) {
+                    manager.manage(newEmitter);
+                    // Outer invocation still holds a reference: emitter is written again in place.
+                    assertThat(container.invoke(recordEmitter), equalTo(true));
+                }
+            }), equalTo(true));
+            assertThat(container.isStale(), equalTo(false));
+            assertThat(callback.emitter(), sameInstance((Object) newEmitter));
+            assertThat(recordEmitter.mEmitters, equalTo(Arrays.<Object>asList(newEmitter)));
+
+            idleHook.flush();
+            assertThat(callback.emitter(), nullValue());
+        }
+    }
+
+    @Test
+    public void testStickyReferencing_emitterUnmanagedMidBurst_released() {
+        for (CallbackManager<TestCallback> manager : givenManagers()) {
+            TestEmitter emitter = new TestEmitter("emitter");
+            manager.manage(emitter);
+            TestEmitter.InnerCallback callback = emitter.newCallback();
+            CallbackContainer<TestCallback> container = manager.wrap(callback);
+            FlushIdleHook idleHook = new FlushIdleHook();
+            container.setStickyReferencing(idleHook);
+
+            assertThat(container.invoke(new RecordEmitter()), equalTo(true));
+            manager.unmanage(emitter);
+            assertThat(container.invoke(new RecordEmitter()), equalTo(false));
+            assertThat(callback.emitter(), nullValue());
+            idleHook.flush();
+            assertThat(callback.emitter(), nullValue());
+        }
+    }
+
+
+    private static class RecordEmitter implements CallbackAction<TestCallback> {
+        final List<Object> mEmitters = new ArrayList<>();
+
+        @Override
+        public void run(TestCallback pCallback) {
+            mEmitters.add(pCallback.emitter());
+        }
+    }
+}
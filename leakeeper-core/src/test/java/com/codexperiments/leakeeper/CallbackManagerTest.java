@@ -0,0 +1,170 @@
+package com.codexperiments.leakeeper;
+
+import com.codexperiments.leakeeper.action.CallbackAction;
+import com.codexperiments.leakeeper.common.GarbageCollector;
+import com.codexperiments.leakeeper.common.TestCallback;
+import com.codexperiments.leakeeper.common.TestEmitter;
+import com.codexperiments.leakeeper.config.enforcer.NoThreadEnforcer;
+import com.codexperiments.leakeeper.config.resolver.IntEmitterResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test CallbackManager lifecycle.
+ */
+public class CallbackManagerTest {
+    private static final CallbackAction<TestCallback> NO_ACTION = new CallbackAction<TestCallback>() {
+        @Override
+        public void run(TestCallback pCallback) {
+        }
+    };
+
+    private CallbackManager<TestCallback> mManager;
+
+    @Before
+    public void setUp() {
+        mManager = CallbackManager.singleThreaded(TestCallback.class, TestEmitter.resolver(), new NoThreadEnforcer());
+    }
+
+
+    @Test
+    public void testWrap_managedEmitter_dereferencedUntilInvoked() {
+        TestEmitter emitter = new TestEmitter("emitter");
+        mManager.manage(emitter);
+        TestEmitter.InnerCallback callback = emitter.newCallback();
+
+        CallbackContainer<TestCallback> container = mManager.wrap(callback);
+        assertThat(callback.emitter(), nullValue());
+        assertThat(container.referenceEmitter(true), equalTo(true));
+        assertThat(callback.emitter(), sameInstance((Object) emitter));
+        container.dereferenceEmitter();
+        assertThat(callback.emitter(), nullValue());
+    }
+
+    @Test
+    public void testWrap_emitterRecreated_newEmitterReferenced() {
+        TestEmitter emitter = new TestEmitter("emitter");
+        mManager.manage(emitter);
+        TestEmitter.InnerCallback callback = emitter.newCallback();
+        CallbackContainer<TestCallback> container = mManager.wrap(callback);
+
+        mManager.unmanage(emitter);
+        assertThat(container.referenceEmitter(true), equalTo(false));
+        TestEmitter newEmitter = new TestEmitter("emitter");
+        mManager.manage(newEmitter);
+        assertThat(container.referenceEmitter(true), equalTo(true));
+        assertThat(callback.emitter(), sameInstance((Object) newEmitter));
+    }
+
+    @Test
+    public void testWrap_intEmitterResolver_intIdPreferred() {
+        CallbackManager<TestCallback> manager = CallbackManager.singleThreaded(TestCallback.class, new IntEmitterResolver() {
+            @Override
+            public int resolveEmitterIntId(Object pEmitter) {
+                return (pEmitter instanceof TestEmitter) ? 42 : NO_INT_ID;
+            }
+
+            @Override
+            public Object resolveEmitterId(Object pEmitter) {
+                throw new AssertionError("Int Id should be used");
+            }
+        }, new NoThreadEnforcer());
+        TestEmitter emitter = new TestEmitter("emitter");
+        manager.manage(emitter);
+        TestEmitter.InnerCallback callback = emitter.newCallback();
+
+        CallbackContainer<TestCallback> container = manager.wrap(callback);
+        assertThat(manager.emitterRegistry().find(TestEmitter.class, Integer.valueOf(42)).get(), sameInstance((Object) emitter));
+        assertThat(container.referenceEmitter(true), equalTo(true));
+        assertThat(callback.emitter(), sameInstance((Object) emitter));
+        container.dereferenceEmitter();
+        manager.unmanage(emitter);
+        assertThat(container.referenceEmitter(true), equalTo(false));
+    }
+
+    @Test
+    public void testWrap_emitterUnmanagedAndPurged_notReferenced() throws InterruptedException {
+        final TestEmitter emitter = new TestEmitter("emitter");
+        mManager.manage(emitter);
+        mManager.unmanage(emitter);
+        // Emitter reference is purged once unused, which must not make it look like it was never managed.
+        final TestEmitter triggerEmitter = new TestEmitter("trigger");
+        boolean purged = GarbageCollector.collectUntil(new GarbageCollector.Condition() {
+            @Override
+            public boolean isMet() {
+                mManager.manage(triggerEmitter);
+                return mManager.emitterRegistry().purgedCount() > 0;
+            }
+        });
+        assertThat(purged, equalTo(true));
+
+        CallbackContainer<TestCallback> container = mManager.wrap(emitter.newCallback());
+        assertThat(container.referenceEmitter(true), equalTo(false));
+        mManager.manage(emitter);
+        assertThat(container.referenceEmitter(true), equalTo(true));
+    }
+
+    @Test(expected = CallbackException.class)
+    public void testWrap_emitterNotManaged() {
+        mManager.wrap(new TestEmitter("emitter").newCallback());
+    }
+
+    @Test
+    public void testClose_twice() {
+        mManager.close();
+        mManager.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClose_thenManage() {
+        mManager.close();
+        mManager.manage(new TestEmitter("emitter"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClose_thenUnmanage() {
+        TestEmitter emitter = new TestEmitter("emitter");
+        mManager.manage(emitter);
+        mManager.close();
+        mManager.unmanage(emitter);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClose_thenWrap() {
+        TestEmitter emitter = new TestEmitter("emitter");
+        mManager.manage(emitter);
+        TestEmitter.InnerCallback callback = emitter.newCallback();
+        mManager.close();
+        mManager.wrap(callback);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClose_thenWrapAll() {
+        TestEmitter emitter = new TestEmitter("emitter");
+        mManager.manage(emitter);
+        TestEmitter.InnerCallback callback = emitter.newCallback();
+        mManager.close();
+        mManager.wrapAll(Arrays.asList(callback));
+    }
+
+    @Test
+    public void testClose_pendingInvocationsCancelled() {
+        TestEmitter emitter = new TestEmitter("emitter");
+        mManager.manage(emitter);
+        CallbackContainer<TestCallback> container = mManager.wrap(emitter.newCallback());
+        mManager.unmanage(emitter);
+        PendingInvocation pendingInvocation = container.invokeWhenAvailable(NO_ACTION);
+
+        mManager.close();
+        assertThat(pendingInvocation.isCancelled(), equalTo(true));
+        // Invocations started after close cannot wait either.
+        assertThat(container.invokeWhenAvailable(NO_ACTION).isCancelled(), equalTo(true));
+    }
+}
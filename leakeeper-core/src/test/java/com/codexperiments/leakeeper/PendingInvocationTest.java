@@ -0,0 +1,118 @@
+package com.codexperiments.leakeeper;
+
+import com.codexperiments.leakeeper.action.CallbackAction;
+import com.codexperiments.leakeeper.action.CallbackAction1;
+import com.codexperiments.leakeeper.common.TestCallback;
+import com.codexperiments.leakeeper.common.TestEmitter;
+import com.codexperiments.leakeeper.config.enforcer.NoThreadEnforcer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test invocations waiting for their emitters with CallbackContainer.invokeWhenAvailable().
+ */
+public class PendingInvocationTest {
+    private static final CallbackAction<TestCallback> FAIL = new CallbackAction<TestCallback>() {
+        @Override
+        public void run(TestCallback pCallback) {
+            throw new IllegalStateException("Action failed");
+        }
+    };
+
+    private CallbackManager<TestCallback> mManager;
+    private TestEmitter mEmitter;
+    private CallbackContainer<TestCallback> mContainer;
+    private List<Object> mInvokedEmitters;
+    private CallbackAction1<TestCallback, String> mRecord;
+
+    @Before
+    public void setUp() {
+        mManager = CallbackManager.singleThreaded(TestCallback.class, TestEmitter.resolver(), new NoThreadEnforcer());
+        mEmitter = new TestEmitter("emitter");
+        mManager.manage(mEmitter);
+        mContainer = mManager.wrap(mEmitter.newCallback());
+        mInvokedEmitters = new ArrayList<>();
+        mRecord = new CallbackAction1<TestCallback, String>() {
+            @Override
+            public void run(TestCallback pCallback, String pArg) {
+                mInvokedEmitters.add(pCallback.emitter());
+            }
+        };
+    }
+
+
+    @Test
+    public void testInvoke_emittersAvailable_runImmediately() throws InterruptedException {
+        PendingInvocation pendingInvocation = mContainer.invokeWhenAvailable(mRecord, "arg");
+
+        assertThat(pendingInvocation.isDone(), equalTo(true));
+        assertThat(pendingInvocation.await(), equalTo(true));
+        assertThat(mInvokedEmitters, equalTo(Arrays.<Object>asList(mEmitter)));
+    }
+
+    @Test
+    public void testInvoke_emittersUnavailable_runOnceManaged() throws InterruptedException {
+        mManager.unmanage(mEmitter);
+        PendingInvocation pendingInvocation = mContainer.invokeWhenAvailable(mRecord, "arg");
+        assertThat(pendingInvocation.isDone(), equalTo(false));
+        assertThat(pendingInvocation.await(1, TimeUnit.MILLISECONDS), equalTo(false));
+
+        TestEmitter newEmitter = new TestEmitter("emitter");
+        mManager.manage(newEmitter);
+        assertThat(pendingInvocation.isDone(), equalTo(true));
+        assertThat(mInvokedEmitters, equalTo(Arrays.<Object>asList(newEmitter)));
+    }
+
+    @Test
+    public void testInvoke_otherEmitterManaged_stillWaiting() {
+        mManager.unmanage(mEmitter);
+        PendingInvocation pendingInvocation = mContainer.invokeWhenAvailable(mRecord, "arg");
+
+        mManager.manage(new TestEmitter("other"));
+        assertThat(pendingInvocation.isDone(), equalTo(false));
+        mManager.manage(mEmitter);
+        assertThat(pendingInvocation.isDone(), equalTo(true));
+    }
+
+    @Test
+    public void testCancel_notRunOnceManaged() {
+        mManager.unmanage(mEmitter);
+        PendingInvocation pendingInvocation = mContainer.invokeWhenAvailable(mRecord, "arg");
+
+        assertThat(pendingInvocation.cancel(), equalTo(true));
+        assertThat(pendingInvocation.cancel(), equalTo(false));
+        mManager.manage(mEmitter);
+        assertThat(pendingInvocation.isCancelled(), equalTo(true));
+        assertThat(mInvokedEmitters.isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testManage_waiterFails_otherWaitersRun() {
+        mManager.unmanage(mEmitter);
+        PendingInvocation failingInvocation = mContainer.invokeWhenAvailable(FAIL);
+        PendingInvocation pendingInvocation = mContainer.invokeWhenAvailable(mRecord, "arg");
+        PendingInvocation otherFailingInvocation = mContainer.invokeWhenAvailable(FAIL);
+
+        try {
+            mManager.manage(mEmitter);
+            fail();
+        } catch (IllegalStateException eIllegalStateException) {
+            assertThat(eIllegalStateException.getMessage(), equalTo("Action failed"));
+        }
+        // Failed actions have been run too.
+        assertThat(failingInvocation.isDone(), equalTo(true));
+        assertThat(pendingInvocation.isDone(), equalTo(true));
+        assertThat(otherFailingInvocation.isDone(), equalTo(true));
+        assertThat(mInvokedEmitters.get(0), sameInstance((Object) mEmitter));
+    }
+}
@@ -0,0 +1,29 @@
+package com.codexperiments.leakeeper.common;
+
+/**
+ * Helps waiting for weak references to be cleared.
+ */
+public final class GarbageCollector {
+    private static final int MAX_ATTEMPTS = 50;
+
+    private GarbageCollector() {
+    }
+
+    public interface Condition {
+        boolean isMet();
+    }
+
+    /**
+     * Run the garbage collector until condition is met.
+     *
+     * @return True if condition has been met, false if it still isn't after several collections.
+     */
+    public static boolean collectUntil(Condition pCondition) throws InterruptedException {
+        for (int i = 0; i < MAX_ATTEMPTS; ++i) {
+            if (pCondition.isMet()) return true;
+            System.gc();
+            Thread.sleep(10);
+        }
+        return pCondition.isMet();
+    }
+}
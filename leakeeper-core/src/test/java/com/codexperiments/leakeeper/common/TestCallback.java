@@ -0,0 +1,11 @@
+package com.codexperiments.leakeeper.common;
+
+/**
+ * Callback type handled by managers in tests.
+ */
+public interface TestCallback {
+    /**
+     * @return Outer emitter of the callback as currently seen by the callback, i.e. null if it is dereferenced.
+     */
+    Object emitter();
+}
@@ -0,0 +1,62 @@
+package com.codexperiments.leakeeper.common;
+
+import com.codexperiments.leakeeper.config.resolver.EmitterResolver;
+
+/**
+ * Emitter identified by a String Id, like a fragment tag, which creates inner callbacks.
+ */
+public class TestEmitter {
+    private final String mId;
+
+    public TestEmitter(String pId) {
+        mId = pId;
+    }
+
+    /**
+     * @return Resolver giving the Id of TestEmitters. Other objects are not managed.
+     */
+    public static EmitterResolver resolver() {
+        return new EmitterResolver() {
+            @Override
+            public Object resolveEmitterId(Object pEmitter) {
+                return (pEmitter instanceof TestEmitter) ? ((TestEmitter) pEmitter).mId : null;
+            }
+        };
+    }
+
+    public InnerCallback newCallback() {
+        return new InnerCallback();
+    }
+
+    @Override
+    public String toString() {
+        return "TestEmitter [mId=" + mId + "]";
+    }
+
+
+    public class InnerCallback implements TestCallback {
+        @Override
+        public Object emitter() {
+            return TestEmitter.this;
+        }
+
+        public NestedCallback newNestedCallback() {
+            return new NestedCallback();
+        }
+
+        public class NestedCallback implements TestCallback {
+            @Override
+            public Object emitter() {
+                return InnerCallback.this;
+            }
+
+            /**
+             * @return Emitter of the parent callback, i.e. null if parent callback is dereferenced.
+             */
+            public Object parentEmitter() {
+                InnerCallback parent = InnerCallback.this;
+                return (parent != null) ? parent.emitter() : null;
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.codexperiments.leakeeper.config.factory;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test lock assignment of StripedLockFactory.
+ */
+public class StripedLockFactoryTest {
+    @Test
+    public void testStripeCount_roundedUpToPowerOf2() {
+        assertThat(new StripedLockFactory(1).stripeCount(), equalTo(1));
+        assertThat(new StripedLockFactory(2).stripeCount(), equalTo(2));
+        assertThat(new StripedLockFactory(3).stripeCount(), equalTo(4));
+        assertThat(new StripedLockFactory(17).stripeCount(), equalTo(32));
+    }
+
+    @Test
+    public void testStripeCount_clamped() {
+        assertThat(new StripedLockFactory(StripedLockFactory.MAX_STRIPE_COUNT + 1).stripeCount(),
+                   equalTo(StripedLockFactory.MAX_STRIPE_COUNT));
+        assertThat(new StripedLockFactory(Integer.MAX_VALUE).stripeCount(), equalTo(StripedLockFactory.MAX_STRIPE_COUNT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStripeCount_invalid() {
+        new StripedLockFactory(0);
+    }
+
+    @Test
+    public void testCreate_sameOwner_sameLock() {
+        StripedLockFactory lockFactory = new StripedLockFactory(16);
+        Object owner = new Object();
+
+        assertThat(lockFactory.create(owner), sameInstance(lockFactory.create(owner)));
+    }
+
+    @Test
+    public void testCreate_manyOwners_locksFromPool() {
+        StripedLockFactory lockFactory = new StripedLockFactory(4);
+        Set<Lock> locks = Collections.newSetFromMap(new IdentityHashMap<Lock, Boolean>());
+        for (int i = 0; i < 1000; ++i) {
+            locks.add(lockFactory.create(new Object()));
+        }
+
+        // Bounded by the pool whatever the number of owners. Identity hashes spread owners over all the stripes.
+        assertThat(locks.size(), equalTo(4));
+    }
+
+    @Test
+    public void testCreate_locksAreReentrant() {
+        Lock lock = new StripedLockFactory(1).create(new Object());
+
+        lock.lock();
+        try {
+            assertThat(lock.tryLock(), equalTo(true));
+            lock.unlock();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.codexperiments.leakeeper.dispatcher;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.action.CallbackAction;
+import com.codexperiments.leakeeper.action.CallbackAction1;
+import com.codexperiments.leakeeper.config.enforcer.NoThreadEnforcer;
+import com.codexperiments.leakeeper.config.resolver.EmitterResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test CallbackDispatcher batching, ordering and drops.
+ */
+public class CallbackDispatcherTest {
+    private static final CallbackAction1<Screen.ScreenCallback, String> DELIVER = new CallbackAction1<Screen.ScreenCallback, String>() {
+        @Override
+        public void run(Screen.ScreenCallback pCallback, String pValue) {
+            pCallback.deliver(pValue);
+        }
+    };
+    private static final CallbackAction<Screen.ScreenCallback> PING = new CallbackAction<Screen.ScreenCallback>() {
+        @Override
+        public void run(Screen.ScreenCallback pCallback) {
+            pCallback.deliver("ping");
+        }
+    };
+
+    private CallbackManager<Screen.ScreenCallback> mManager;
+    private QueueEventLoop mEventLoop;
+    private List<Object> mDropped;
+    private CallbackDispatcher mDispatcher;
+    private Screen mScreen;
+    private Screen.ScreenCallback mCallback;
+    private CallbackContainer<Screen.ScreenCallback> mContainer;
+
+    @Before
+    public void setUp() {
+        mManager = CallbackManager.multiThreaded(Screen.ScreenCallback.class, Screen.resolver(), new NoThreadEnforcer());
+        mEventLoop = new QueueEventLoop();
+        mDropped = new ArrayList<>();
+        mDispatcher = new CallbackDispatcher(mEventLoop, new DropListener() {
+            @Override
+            public void onDropped(CallbackContainer<?> pContainer, Object pArg) {
+                mDropped.add(pArg);
+            }
+        });
+        mScreen = new Screen("screen");
+        mManager.manage(mScreen);
+        mCallback = mScreen.newCallback();
+        mContainer = mManager.wrap(mCallback);
+    }
+
+
+    @Test
+    public void testDispatch_batchedAndOrdered() {
+        mDispatcher.dispatch(mContainer, DELIVER, "a");
+        mDispatcher.dispatch(mContainer, PING);
+        mDispatcher.dispatch(mContainer, DELIVER, "b");
+        // A single flush is posted for the whole batch.
+        assertThat(mEventLoop.mTasks.size(), equalTo(1));
+
+        mEventLoop.runAll();
+        assertThat(mCallback.mValues, equalTo(Arrays.asList("a", "ping", "b")));
+        assertThat(mDropped.isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testDispatch_emittersUnavailable_dropsReported() {
+        mDispatcher.dispatch(mContainer, DELIVER, "a");
+        mDispatcher.dispatch(mContainer, PING);
+
+        mManager.unmanage(mScreen);
+        mEventLoop.runAll();
+        assertThat(mCallback.mValues.isEmpty(), equalTo(true));
+        assertThat(mDropped, equalTo(Arrays.<Object>asList("a", null)));
+    }
+
+    @Test
+    public void testDispatch_afterFlush_newBatchPosted() {
+        mDispatcher.dispatch(mContainer, DELIVER, "a");
+        mEventLoop.runAll();
+
+        mDispatcher.dispatch(mContainer, DELIVER, "b");
+        assertThat(mEventLoop.mTasks.size(), equalTo(1));
+        mEventLoop.runAll();
+        assertThat(mCallback.mValues, equalTo(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void testDispatch_withoutDropListener_dropsIgnored() {
+        CallbackDispatcher dispatcher = new CallbackDispatcher(mEventLoop);
+        dispatcher.dispatch(mContainer, DELIVER, "a");
+
+        mManager.unmanage(mScreen);
+        mEventLoop.runAll();
+        assertThat(mCallback.mValues.isEmpty(), equalTo(true));
+    }
+
+
+    /**
+     * Runs posted tasks when runAll() is called, including those posted meanwhile.
+     */
+    private static class QueueEventLoop implements EventLoop {
+        final List<Runnable> mTasks = new ArrayList<>();
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+
+        @Override
+        public void post(Runnable pTask) {
+            mTasks.add(pTask);
+        }
+    }
+
+    private static class Screen {
+        private final String mId;
+
+        Screen(String pId) {
+            mId = pId;
+        }
+
+        static EmitterResolver resolver() {
+            return new EmitterResolver() {
+                @Override
+                public Object resolveEmitterId(Object pEmitter) {
+                    return (pEmitter instanceof Screen) ? ((Screen) pEmitter).mId : null;
+                }
+            };
+        }
+
+        ScreenCallback newCallback() {
+            return new ScreenCallback();
+        }
+
+        /**
+         * Records delivered values. Fails if called while its screen is dereferenced.
+         */
+        class ScreenCallback {
+            final List<String> mValues = new ArrayList<>();
+
+            void deliver(String pValue) {
+                if (Screen.this == null) throw new AssertionError("Screen not referenced");
+                mValues.add(pValue);
+            }
+        }
+    }
+}
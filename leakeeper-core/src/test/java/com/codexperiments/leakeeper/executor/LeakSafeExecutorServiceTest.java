@@ -0,0 +1,239 @@
+package com.codexperiments.leakeeper.executor;
+
+import com.codexperiments.leakeeper.CallbackException;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.config.enforcer.NoThreadEnforcer;
+import com.codexperiments.leakeeper.config.resolver.EmitterResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test LeakSafeExecutorService task referencing, and how tasks and callbacks are skipped when emitters are not available.
+ */
+public class LeakSafeExecutorServiceTest {
+    private CallbackManager<TaskMarker> mManager;
+    private Screen mScreen;
+    private QueueExecutorService mQueue;
+    private LeakSafeExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mManager = CallbackManager.multiThreaded(TaskMarker.class, Screen.resolver(), new NoThreadEnforcer());
+        mScreen = new Screen("screen");
+        mManager.manage(mScreen);
+        mQueue = new QueueExecutorService();
+        mExecutor = new LeakSafeExecutorService(mManager, mQueue);
+    }
+
+
+    @Test
+    public void testSubmit_emittersAvailable_referencedWhileRunning() throws Exception {
+        Future<String> future = mExecutor.submit(mScreen.newReferencedTask());
+
+        mQueue.runAll();
+        assertThat(future.get(), equalTo("screen"));
+    }
+
+    @Test
+    public void testSubmit_emittersUnavailable_futureFails() throws Exception {
+        Future<String> future = mExecutor.submit(mScreen.newReferencedTask());
+
+        mManager.unmanage(mScreen);
+        mQueue.runAll();
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException eExecutionException) {
+            assertThat(eExecutionException.getCause(), instanceOf(CallbackException.class));
+        }
+        assertThat(mScreen.mCalls, equalTo(0));
+    }
+
+    @Test
+    public void testExecute_emittersUnavailable_failsOnExecutorThread() {
+        mExecutor.execute(mScreen.newRunnable());
+
+        mManager.unmanage(mScreen);
+        try {
+            mQueue.runAll();
+            fail();
+        } catch (CallbackException eCallbackException) {
+            assertThat(mScreen.mCalls, equalTo(0));
+        }
+    }
+
+    @Test
+    public void testSubmitWithCallback_taskDereferenced_callbackReferenced() throws Exception {
+        Screen.ScreenCallback callback = mScreen.newCallback();
+        Future<String> future = mExecutor.submit(mScreen.newDereferencedTask(), callback);
+
+        mQueue.runAll();
+        assertThat(future.get(), equalTo("result"));
+        assertThat(callback.mResult, equalTo("screen:result"));
+    }
+
+    @Test
+    public void testSubmitWithCallback_emittersUnavailable_callbackDropped() throws Exception {
+        Screen.ScreenCallback callback = mScreen.newCallback();
+        Future<String> future = mExecutor.submit(mScreen.newDereferencedTask(), callback);
+
+        mManager.unmanage(mScreen);
+        mQueue.runAll();
+        // Result is available even though callback is dropped.
+        assertThat(future.get(), equalTo("result"));
+        assertThat(callback.mResult, nullValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNew_singleThreadedManager_rejected() {
+        CallbackManager<TaskMarker> manager = CallbackManager.singleThreaded(TaskMarker.class, Screen.resolver(),
+                                                                             new NoThreadEnforcer());
+        new LeakSafeExecutorService(manager, new QueueExecutorService());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNew_objectCallbackClass_rejected() {
+        // Emitters would be instances of the callback class, i.e. mistaken for parent tasks not wrapped yet.
+        CallbackManager<Object> manager = CallbackManager.multiThreaded(Object.class, Screen.resolver(), new NoThreadEnforcer());
+        new LeakSafeExecutorService(manager, new QueueExecutorService());
+    }
+
+    /**
+     * Dedicated callback class of the manager. Screens are not tasks, hence are dereferenced.
+     */
+    private interface TaskMarker {
+    }
+
+    /**
+     * Queues tasks until runAll() is called, to unmanage emitters in-between.
+     */
+    private static class QueueExecutorService extends AbstractExecutorService {
+        private final List<Runnable> mTasks = new ArrayList<>();
+
+        void runAll() {
+            for (Runnable task : mTasks) {
+                task.run();
+            }
+            mTasks.clear();
+        }
+
+        @Override
+        public void execute(Runnable pTask) {
+            mTasks.add(pTask);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long pTimeout, TimeUnit pUnit) {
+            return true;
+        }
+    }
+
+    private static class Screen {
+        private final String mId;
+        int mCalls;
+
+        Screen(String pId) {
+            mId = pId;
+        }
+
+        static EmitterResolver resolver() {
+            return new EmitterResolver() {
+                @Override
+                public Object resolveEmitterId(Object pEmitter) {
+                    return (pEmitter instanceof Screen) ? ((Screen) pEmitter).mId : null;
+                }
+            };
+        }
+
+        /**
+         * Returns the screen Id. Fails if run while its screen is dereferenced.
+         */
+        Callable<String> newReferencedTask() {
+            return new Callable<String>() {
+                @Override
+                public String call() {
+                    ++Screen.this.mCalls;
+                    return Screen.this.mId;
+                }
+            };
+        }
+
+        Runnable newRunnable() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    ++Screen.this.mCalls;
+                }
+            };
+        }
+
+        /**
+         * Fails if run while its screen is referenced.
+         */
+        Callable<String> newDereferencedTask() {
+            return new Callable<String>() {
+                @Override
+                public String call() {
+                    if (Screen.this != null) throw new AssertionError("Screen referenced");
+                    return "result";
+                }
+            };
+        }
+
+        ScreenCallback newCallback() {
+            return new ScreenCallback();
+        }
+
+        /**
+         * Records the result prefixed with the screen Id. Fails if called while its screen is dereferenced.
+         */
+        class ScreenCallback implements TaskCallback<String> {
+            String mResult;
+
+            @Override
+            public void onFinish(String pResult) {
+                mResult = Screen.this.mId + ":" + pResult;
+            }
+
+            @Override
+            public void onFail(Throwable pThrowable) {
+                throw new AssertionError(pThrowable);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.codexperiments.leakeeper.internal;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test outer field discovery and caching.
+ */
+public class CallbackClassTest {
+    //region Fixtures
+    static class StaticCallback implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
+    class InnerCallback implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
+    class InnerCallbackChild extends InnerCallback {
+    }
+
+    class InnerCallbackParent {
+        class NestedCallback extends InnerCallback {
+        }
+    }
+    //endregion
+
+
+    @Test
+    public void testOf_staticClass_noOuterField() {
+        assertThat(CallbackClass.of(StaticCallback.class).outerFields().length, equalTo(0));
+    }
+
+    @Test
+    public void testOf_innerClass_oneOuterField() {
+        OuterField[] outerFields = CallbackClass.of(InnerCallback.class).outerFields();
+
+        assertThat(outerFields.length, equalTo(1));
+        assertThat(outerFields[0].type(), equalTo((Object) CallbackClassTest.class));
+    }
+
+    @Test
+    public void testOf_anonymousClass_oneOuterField() {
+        Runnable callback = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        OuterField[] outerFields = CallbackClass.of(callback.getClass()).outerFields();
+        assertThat(outerFields.length, equalTo(1));
+        assertThat(outerFields[0].get(callback), equalTo((Object) this));
+    }
+
+    @Test
+    public void testOf_innerClassHierarchy_outerFieldsFromClassToSuperClasses() {
+        OuterField[] outerFields = CallbackClass.of(InnerCallbackParent.NestedCallback.class).outerFields();
+
+        assertThat(outerFields.length, equalTo(2));
+        assertThat(outerFields[0].type(), equalTo((Object) InnerCallbackParent.class));
+        assertThat(outerFields[1].type(), equalTo((Object) CallbackClassTest.class));
+    }
+
+    @Test
+    public void testOf_sameClass_cached() {
+        assertThat(CallbackClass.of(InnerCallbackChild.class), sameInstance(CallbackClass.of(InnerCallbackChild.class)));
+    }
+
+    @Test
+    public void testOuterField_setAndGet() {
+        InnerCallback callback = new InnerCallback();
+        OuterField outerField = CallbackClass.of(InnerCallback.class).outerFields()[0];
+
+        outerField.set(callback, null);
+        assertThat(outerField.get(callback), nullValue());
+        outerField.set(callback, this);
+        assertThat(outerField.get(callback), equalTo((Object) this));
+    }
+
+    @Test
+    public void testIsCallback_alternatingCallbackClasses() {
+        OuterField outerField = CallbackClass.of(InnerCallbackParent.NestedCallback.class).outerFields()[0];
+
+        for (int i = 0; i < 3; ++i) {
+            assertThat(outerField.isCallback(Runnable.class), equalTo(false));
+            assertThat(outerField.isCallback(InnerCallbackParent.class), equalTo(true));
+            assertThat(outerField.isCallback(Object.class), equalTo(true));
+        }
+    }
+}
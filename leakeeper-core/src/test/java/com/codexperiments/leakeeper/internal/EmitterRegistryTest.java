@@ -0,0 +1,299 @@
+package com.codexperiments.leakeeper.internal;
+
+import com.codexperiments.leakeeper.common.GarbageCollector;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test EmitterRegistry registration, lookups and cleaning.
+ */
+public class EmitterRegistryTest {
+    //region Given
+    /**
+     * Register an emitter, unregister it and wait until its reference, not used anymore, is purged. Purge is triggered by
+     * registering another emitter.
+     */
+    private static void givenPurgedEntry(final EmitterRegistry pRegistry, Object pEmitterId) throws InterruptedException {
+        Emitter emitter = new Emitter();
+        pRegistry.register(Emitter.class, pEmitterId, emitter);
+        pRegistry.unregister(Emitter.class, pEmitterId, emitter);
+
+        final Emitter triggerEmitter = new Emitter();
+        final long purgedCount = pRegistry.purgedCount();
+        boolean purged = GarbageCollector.collectUntil(new GarbageCollector.Condition() {
+            @Override
+            public boolean isMet() {
+                pRegistry.register(Emitter.class, "trigger", triggerEmitter);
+                return pRegistry.purgedCount() > purgedCount;
+            }
+        });
+        assertThat(purged, equalTo(true));
+    }
+    //endregion
+
+
+    @Test
+    public void testFind_notRegistered_null() {
+        EmitterRegistry registry = EmitterRegistry.singleThreaded(8);
+
+        assertThat(registry.find(Emitter.class, "id"), nullValue());
+    }
+
+    @Test
+    public void testRegister_found() {
+        EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        Emitter emitter = new Emitter();
+
+        registry.register(Emitter.class, "id", emitter);
+        EmitterRef emitterRef = registry.find(Emitter.class, "id");
+        assertThat(emitterRef.get(), sameInstance((Object) emitter));
+        assertThat(emitterRef.emitterId(), equalTo(new EmitterId(Emitter.class, "id")));
+        // Lookups use equals() on Ids, not identity.
+        assertThat(registry.find(Emitter.class, new String("id")), sameInstance(emitterRef));
+        assertThat(registry.size(), equalTo(1));
+    }
+
+    @Test
+    public void testRegister_sameIdTwice_referenceReused() {
+        EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        Emitter emitter = new Emitter();
+        Emitter newEmitter = new Emitter();
+
+        registry.register(Emitter.class, "id", emitter);
+        EmitterRef emitterRef = registry.find(Emitter.class, "id");
+        registry.register(Emitter.class, "id", newEmitter);
+        assertThat(registry.find(Emitter.class, "id"), sameInstance(emitterRef));
+        assertThat(emitterRef.get(), sameInstance((Object) newEmitter));
+        assertThat(registry.size(), equalTo(1));
+    }
+
+    @Test
+    public void testRegister_sameIdDifferentClasses_distinctReferences() {
+        EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        Emitter emitter = new Emitter();
+        OtherEmitter otherEmitter = new OtherEmitter();
+
+        registry.register(Emitter.class, "id", emitter);
+        registry.register(OtherEmitter.class, "id", otherEmitter);
+        assertThat(registry.find(Emitter.class, "id").get(), sameInstance((Object) emitter));
+        assertThat(registry.find(OtherEmitter.class, "id").get(), sameInstance((Object) otherEmitter));
+        assertThat(registry.find(Emitter.class, "id"), not(sameInstance(registry.find(OtherEmitter.class, "id"))));
+    }
+
+    @Test
+    public void testRegister_classId() {
+        EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        Emitter emitter = new Emitter();
+
+        registry.register(Emitter.class, Emitter.class, emitter);
+        assertThat(registry.find(Emitter.class, Emitter.class).get(), sameInstance((Object) emitter));
+        assertThat(registry.find(OtherEmitter.class, OtherEmitter.class), nullValue());
+    }
+
+    @Test
+    public void testFind_intId_sameAsInteger() {
+        EmitterRegistry registry = EmitterRegistry.sharded(64, 4);
+        Emitter emitter = new Emitter();
+        Emitter otherEmitter = new Emitter();
+
+        registry.register(Emitter.class, 0x7f0a0001, emitter);
+        registry.register(Emitter.class, 0x7f0a0002, otherEmitter);
+        EmitterRef emitterRef = registry.find(Emitter.class, 0x7f0a0001);
+        assertThat(emitterRef.get(), sameInstance((Object) emitter));
+        assertThat(registry.find(Emitter.class, Integer.valueOf(0x7f0a0001)), sameInstance(emitterRef));
+        assertThat(registry.find(Emitter.class, 0x7f0a0002).get(), sameInstance((Object) otherEmitter));
+        assertThat(registry.find(Emitter.class, 0x7f0a0003), nullValue());
+        assertThat(registry.find(OtherEmitter.class, 0x7f0a0001), nullValue());
+    }
+
+    @Test
+    public void testUnregister_cleared() {
+        EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        Emitter emitter = new Emitter();
+        registry.register(Emitter.class, "id", emitter);
+        EmitterRef emitterRef = registry.find(Emitter.class, "id");
+
+        registry.unregister(Emitter.class, "id", emitter);
+        assertThat(emitterRef.get(), nullValue());
+    }
+
+    @Test
+    public void testUnregister_otherEmitter_ignored() {
+        EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        Emitter emitter = new Emitter();
+        Emitter newEmitter = new Emitter();
+        registry.register(Emitter.class, "id", emitter);
+        registry.register(Emitter.class, "id", newEmitter);
+
+        // Old emitter is unregistered after the new one has been registered.
+        registry.unregister(Emitter.class, "id", emitter);
+        assertThat(registry.find(Emitter.class, "id").get(), sameInstance((Object) newEmitter));
+    }
+
+    @Test
+    public void testRegister_sharded() {
+        EmitterRegistry registry = EmitterRegistry.sharded(64, 4);
+        Emitter[] emitters = new Emitter[64];
+        for (int i = 0; i < emitters.length; ++i) {
+            emitters[i] = new Emitter();
+            registry.register(Emitter.class, "id" + i, emitters[i]);
+        }
+
+        for (int i = 0; i < emitters.length; ++i) {
+            assertThat(registry.find(Emitter.class, "id" + i).get(), sameInstance((Object) emitters[i]));
+        }
+        assertThat(registry.size(), equalTo(emitters.length));
+    }
+
+    @Test
+    public void testClear() {
+        EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        Emitter emitter = new Emitter();
+        registry.register(Emitter.class, "id", emitter);
+        EmitterRef emitterRef = registry.find(Emitter.class, "id");
+
+        registry.clear();
+        assertThat(emitterRef.get(), nullValue());
+        assertThat(registry.find(Emitter.class, "id"), nullValue());
+        assertThat(registry.size(), equalTo(0));
+    }
+
+    @Test
+    public void testUnregister_referenceUsed_notPurged() throws InterruptedException {
+        final EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        Emitter emitter = new Emitter();
+        registry.register(Emitter.class, "id", emitter);
+        // Like a container, keep the reference of the emitter.
+        EmitterRef emitterRef = registry.find(Emitter.class, "id");
+        registry.unregister(Emitter.class, "id", emitter);
+
+        final Emitter triggerEmitter = new Emitter();
+        GarbageCollector.collectUntil(new GarbageCollector.Condition() {
+            @Override
+            public boolean isMet() {
+                registry.register(Emitter.class, "trigger", triggerEmitter);
+                return registry.purgedCount() > 0;
+            }
+        });
+        assertThat(registry.purgedCount(), equalTo(0L));
+        assertThat(registry.find(Emitter.class, "id"), sameInstance(emitterRef));
+        // Reference is reused once emitter is registered again.
+        registry.register(Emitter.class, "id", emitter);
+        assertThat(emitterRef.get(), sameInstance((Object) emitter));
+    }
+
+    @Test
+    public void testResolve_purged_emptyReference() throws InterruptedException {
+        EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        givenPurgedEntry(registry, "id");
+
+        assertThat(registry.find(Emitter.class, "id"), nullValue());
+        EmitterRef emitterRef = registry.resolve(Emitter.class, "id");
+        assertThat(emitterRef.get(), nullValue());
+        assertThat(registry.resolve(Emitter.class, "id"), sameInstance(emitterRef));
+        // Restored reference is reused once emitter is registered again.
+        Emitter emitter = new Emitter();
+        registry.register(Emitter.class, "id", emitter);
+        assertThat(emitterRef.get(), sameInstance((Object) emitter));
+    }
+
+    @Test
+    public void testResolve_purgedIntId_emptyReference() throws InterruptedException {
+        EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        givenPurgedEntry(registry, 0x7f0a0001);
+
+        assertThat(registry.find(Emitter.class, 0x7f0a0001), nullValue());
+        assertThat(registry.resolve(Emitter.class, 0x7f0a0001).get(), nullValue());
+    }
+
+    @Test
+    public void testResolve_neverRegistered_null() {
+        EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+
+        assertThat(registry.resolve(Emitter.class, "id"), nullValue());
+        assertThat(registry.resolve(Emitter.class, 0x7f0a0001), nullValue());
+    }
+
+    @Test
+    public void testSetMaxSize_demotedEntriesEvicted() throws InterruptedException {
+        EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        Emitter emitter = new Emitter();
+        registry.register(Emitter.class, "live", emitter);
+        Emitter unregisteredEmitter = new Emitter();
+        registry.register(Emitter.class, "unregistered", unregisteredEmitter);
+        registry.unregister(Emitter.class, "unregistered", unregisteredEmitter);
+        givenPurgedEntry(registry, "purged");
+
+        // Live entries are "live" and "trigger", used to purge entries. They are never evicted.
+        assertThat(registry.size(), equalTo(4));
+        registry.setMaxSize(1);
+        assertThat(registry.size(), equalTo(2));
+        assertThat(registry.evictedCount(), equalTo(2L));
+        assertThat(registry.find(Emitter.class, "live").get(), sameInstance((Object) emitter));
+        assertThat(registry.resolve(Emitter.class, "purged"), nullValue());
+    }
+
+    @Test
+    public void testRegister_collectedEmitterSwept() throws InterruptedException {
+        final EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        Emitter emitter = new Emitter();
+        final WeakReference<Emitter> emitterRef = new WeakReference<>(emitter);
+        registry.register(Emitter.class, "collected", emitter);
+        registry.setMaxSize(1);
+        emitter = null;
+
+        // Emitter is collected without being unregistered. Sweep demotes its entry, which can then be evicted.
+        assertThat(GarbageCollector.collectUntil(new GarbageCollector.Condition() {
+            @Override
+            public boolean isMet() {
+                return emitterRef.get() == null;
+            }
+        }), equalTo(true));
+        Emitter newEmitter = new Emitter();
+        registry.register(Emitter.class, "new", newEmitter);
+        assertThat(registry.size(), equalTo(1));
+        assertThat(registry.find(Emitter.class, "new").get(), sameInstance((Object) newEmitter));
+    }
+
+    @Test
+    public void testPurge_manyIds_tombstonesBounded() throws InterruptedException {
+        final EmitterRegistry registry = EmitterRegistry.multiThreaded(8);
+        final int idCount = EmitterRegistry.MAX_TOMBSTONES * 2;
+        for (int i = 0; i < idCount; ++i) {
+            Emitter emitter = new Emitter();
+            registry.register(Emitter.class, "id" + i, emitter);
+            registry.unregister(Emitter.class, "id" + i, emitter);
+        }
+
+        final Emitter triggerEmitter = new Emitter();
+        assertThat(GarbageCollector.collectUntil(new GarbageCollector.Condition() {
+            @Override
+            public boolean isMet() {
+                registry.register(Emitter.class, "trigger", triggerEmitter);
+                return registry.purgedCount() == idCount;
+            }
+        }), equalTo(true));
+        // Oldest tombstones (in purge order) are dropped. Live entry "trigger" is kept.
+        assertThat(registry.size(), equalTo(EmitterRegistry.MAX_TOMBSTONES + 1));
+        assertThat(registry.evictedCount(), equalTo(0L));
+        int resolvedCount = 0;
+        for (int i = 0; i < idCount; ++i) {
+            if (registry.resolve(Emitter.class, "id" + i) != null) ++resolvedCount;
+        }
+        assertThat(resolvedCount, equalTo(EmitterRegistry.MAX_TOMBSTONES));
+    }
+
+
+    private static class Emitter {
+    }
+
+    private static class OtherEmitter {
+    }
+}
@@ -0,0 +1,84 @@
+package com.codexperiments.leakeeper.internal;
+
+import com.codexperiments.leakeeper.CallbackException;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test field accessors used to reference and dereference emitters. Each backend is checked, whatever the one selected.
+ */
+public class FieldAccessorsTest {
+    class InnerCallback {
+    }
+
+    private Field givenOuterField() throws NoSuchFieldException {
+        return InnerCallback.class.getDeclaredField("this$0");
+    }
+
+    private List<FieldAccessor> givenOuterFieldAccessors() throws Exception {
+        return Arrays.asList(new ReflectionFieldAccessor(givenOuterField()), new MethodHandleFieldAccessor(givenOuterField()));
+    }
+
+
+    @Test
+    public void testCreate_methodHandlesAvailable() throws Exception {
+        assertThat(FieldAccessors.create(givenOuterField()), instanceOf(MethodHandleFieldAccessor.class));
+    }
+
+    @Test
+    public void testAccessor_setAndGet() throws Exception {
+        for (FieldAccessor accessor : givenOuterFieldAccessors()) {
+            InnerCallback callback = new InnerCallback();
+
+            accessor.set(callback, null);
+            assertThat(accessor.get(callback), nullValue());
+            accessor.set(callback, this);
+            assertThat(accessor.get(callback), equalTo((Object) this));
+        }
+    }
+
+    @Test
+    public void testAccessor_set_wrongValueType() throws Exception {
+        for (FieldAccessor accessor : givenOuterFieldAccessors()) {
+            try {
+                accessor.set(new InnerCallback(), "Not an outer object");
+                fail(accessor.toString());
+            } catch (CallbackException exception) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testAccessor_get_wrongInstanceType() throws Exception {
+        for (FieldAccessor accessor : givenOuterFieldAccessors()) {
+            try {
+                accessor.get("Not a callback");
+                fail(accessor.toString());
+            } catch (CallbackException exception) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testAccessor_get_nullInstance() throws Exception {
+        for (FieldAccessor accessor : givenOuterFieldAccessors()) {
+            try {
+                accessor.get(null);
+                fail(accessor.toString());
+            } catch (CallbackException exception) {
+                // Expected.
+            }
+        }
+    }
+}
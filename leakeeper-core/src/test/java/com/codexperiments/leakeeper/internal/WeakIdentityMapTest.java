@@ -0,0 +1,251 @@
+package com.codexperiments.leakeeper.internal;
+
+import com.codexperiments.leakeeper.common.GarbageCollector;
+import com.codexperiments.leakeeper.config.factory.LockFactory;
+import com.codexperiments.leakeeper.config.factory.MultiThreadLockFactory;
+import com.codexperiments.leakeeper.config.factory.SingleThreadLockFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test WeakIdentityMap lookups, insertions and removal of collected values.
+ */
+public class WeakIdentityMapTest {
+    //region Given
+    private static WeakIdentityMap<Key, Value> givenMap(int pShardCount, LockFactory pLockFactory) {
+        return new WeakIdentityMap<Key, Value>(8, pShardCount, pLockFactory) {
+            @Override
+            protected Key keyOf(Value pValue) {
+                return pValue.mKey;
+            }
+        };
+    }
+
+    /**
+     * @return Values inserted in the map. Keys are referenced by values only.
+     */
+    private static Value[] givenValues(WeakIdentityMap<Key, Value> pMap, int pCount) {
+        Value[] values = new Value[pCount];
+        for (int i = 0; i < pCount; ++i) {
+            values[i] = new Value(new Key(i));
+            pMap.put(values[i].mKey, values[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Make every other value unreachable and wait until map has expunged them (which happens on modifications). Values are
+     * re-inserted with putAll() to modify all the shards.
+     */
+    private static void givenEveryOtherValueCollected(final WeakIdentityMap<Key, Value> pMap, Value[] pValues)
+            throws InterruptedException {
+        int liveCount = 0;
+        for (int i = 0; i < pValues.length; ++i) {
+            if (i % 2 == 0) pValues[i] = null;
+            else ++liveCount;
+        }
+
+        final int expectedSize = liveCount + 1;
+        final List<Value> trigger = Collections.singletonList(new Value(new Key(-1)));
+        boolean expunged = GarbageCollector.collectUntil(new GarbageCollector.Condition() {
+            @Override
+            public boolean isMet() {
+                pMap.putAll(trigger);
+                return pMap.size() == expectedSize;
+            }
+        });
+        assertThat("Values not collected", expunged, equalTo(true));
+    }
+    //endregion
+
+
+    @Test
+    public void testPutAndGet_keysComparedByIdentity() {
+        WeakIdentityMap<Key, Value> map = givenMap(1, new SingleThreadLockFactory());
+        Value value = new Value(new Key(1));
+        Value equalValue = new Value(new Key(1));
+
+        map.put(value.mKey, value);
+        assertThat(map.get(value.mKey), sameInstance(value));
+        assertThat(map.get(equalValue.mKey), nullValue());
+        assertThat(map.size(), equalTo(1));
+    }
+
+    @Test
+    public void testPut_replaceExistingKey() {
+        WeakIdentityMap<Key, Value> map = givenMap(1, new SingleThreadLockFactory());
+        Key key = new Key(1);
+        Value value = new Value(key);
+        Value newValue = new Value(key);
+
+        map.put(key, value);
+        map.put(key, newValue);
+        assertThat(map.get(key), sameInstance(newValue));
+        assertThat(map.size(), equalTo(1));
+    }
+
+    @Test
+    public void testPutIfAbsent_keepExistingValue() {
+        WeakIdentityMap<Key, Value> map = givenMap(1, new SingleThreadLockFactory());
+        Key key = new Key(1);
+        Value value = new Value(key);
+
+        assertThat(map.putIfAbsent(key, value), sameInstance(value));
+        assertThat(map.putIfAbsent(key, new Value(key)), sameInstance(value));
+        assertThat(map.get(key), sameInstance(value));
+    }
+
+    @Test
+    public void testPut_manyValues_resized() {
+        WeakIdentityMap<Key, Value> map = givenMap(1, new SingleThreadLockFactory());
+        Value[] values = givenValues(map, 1000);
+
+        assertThat(map.size(), equalTo(1000));
+        for (Value value : values) {
+            assertThat(map.get(value.mKey), sameInstance(value));
+        }
+    }
+
+    @Test
+    public void testPutAll_sharded() {
+        WeakIdentityMap<Key, Value> map = givenMap(4, new MultiThreadLockFactory());
+        List<Value> values = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            values.add(new Value(new Key(i)));
+        }
+
+        map.putAll(values);
+        assertThat(map.size(), equalTo(100));
+        for (Value value : values) {
+            assertThat(map.get(value.mKey), sameInstance(value));
+        }
+    }
+
+    @Test
+    public void testClear() {
+        WeakIdentityMap<Key, Value> map = givenMap(2, new MultiThreadLockFactory());
+        Value[] values = givenValues(map, 10);
+
+        map.clear();
+        assertThat(map.size(), equalTo(0));
+        assertThat(map.get(values[0].mKey), nullValue());
+    }
+
+    /**
+     * Removing collected entries shifts back following entries of the same probe sequence. Remaining keys must still be
+     * reachable from their ideal slot, including in sequences wrapping around the end of the table.
+     */
+    @Test
+    public void testExpunge_collectedValuesRemoved_otherValuesStillFound() throws InterruptedException {
+        WeakIdentityMap<Key, Value> map = givenMap(1, new SingleThreadLockFactory());
+        Value[] values = givenValues(map, 2000);
+
+        givenEveryOtherValueCollected(map, values);
+        for (Value value : values) {
+            if (value != null) assertThat(map.get(value.mKey), sameInstance(value));
+        }
+    }
+
+    @Test
+    public void testExpunge_sharded() throws InterruptedException {
+        WeakIdentityMap<Key, Value> map = givenMap(8, new MultiThreadLockFactory());
+        Value[] values = givenValues(map, 2000);
+
+        givenEveryOtherValueCollected(map, values);
+        for (Value value : values) {
+            if (value != null) assertThat(map.get(value.mKey), sameInstance(value));
+        }
+    }
+
+    /**
+     * Lookups without lock must never miss a present key, even while collected entries are removed and entries shifted back.
+     */
+    @Test
+    public void testGet_concurrentRemovals_presentKeysFound() throws Exception {
+        final WeakIdentityMap<Key, Value> map = givenMap(1, new MultiThreadLockFactory());
+        final Value[] liveValues = givenValues(map, 256);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicInteger lookups = new AtomicInteger();
+        final long end = System.currentTimeMillis() + 1000;
+
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (System.currentTimeMillis() < end) {
+                        for (Value value : liveValues) {
+                            if (map.get(value.mKey) != value) throw new AssertionError("Key not found " + value.mKey);
+                            lookups.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable throwable) {
+                    failure.set(throwable);
+                }
+            }
+        };
+        reader.start();
+        // Insert garbage values so that entries are continuously collected, expunged and shifted.
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < 1000; ++i) {
+                Value garbage = new Value(new Key(i));
+                map.put(garbage.mKey, garbage);
+            }
+            System.gc();
+        }
+        reader.join();
+
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        assertThat(lookups.get() > 0, equalTo(true));
+    }
+
+    @Test
+    public void testShardCount_clamped() {
+        WeakIdentityMap<Key, Value> map = givenMap(Integer.MAX_VALUE, new SingleThreadLockFactory());
+        Value[] values = givenValues(map, 10);
+
+        assertThat(map.get(values[9].mKey), sameInstance(values[9]));
+    }
+
+
+    private static final class Key {
+        private final int mId;
+
+        Key(int pId) {
+            mId = pId;
+        }
+
+        // Equal keys must not be confused by the map.
+        @Override
+        public boolean equals(Object pOther) {
+            return (pOther instanceof Key) && (((Key) pOther).mId == mId);
+        }
+
+        @Override
+        public int hashCode() {
+            return mId;
+        }
+
+        @Override
+        public String toString() {
+            return "Key [mId=" + mId + "]";
+        }
+    }
+
+    private static final class Value {
+        private final Key mKey;
+
+        Value(Key pKey) {
+            mKey = pKey;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.codexperiments.leakeeper.reactivestreams;
+
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.common.GarbageCollector;
+import com.codexperiments.leakeeper.config.enforcer.NoThreadEnforcer;
+import com.codexperiments.leakeeper.config.resolver.EmitterResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test LeakSafeSubscriber delivery, and its policy when emitters are not available.
+ */
+public class LeakSafeSubscriberTest {
+    private CallbackManager<Subscriber<?>> mManager;
+    private Screen mScreen;
+    private Screen.ScreenSubscriber mSubscriber;
+    private Upstream mUpstream;
+    private Subscriber<String> mLeakSafeSubscriber;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        Class<Subscriber<?>> callbackClass = (Class<Subscriber<?>>) (Class<?>) Subscriber.class;
+        mManager = CallbackManager.singleThreaded(callbackClass, Screen.resolver(), new NoThreadEnforcer());
+        mScreen = new Screen("screen");
+        mManager.manage(mScreen);
+        mSubscriber = mScreen.newSubscriber();
+        mUpstream = new Upstream();
+        mLeakSafeSubscriber = LeakSafeSubscriber.wrap(mSubscriber, mManager);
+    }
+
+
+    @Test
+    public void testDeliver_emittersAvailable() {
+        mLeakSafeSubscriber.onSubscribe(mUpstream);
+        assertThat(mSubscriber.mSubscription, sameInstance((Subscription) mUpstream));
+        mSubscriber.mSubscription.request(2);
+        mLeakSafeSubscriber.onNext("a");
+        mLeakSafeSubscriber.onNext("b");
+        mLeakSafeSubscriber.onComplete();
+
+        assertThat(mSubscriber.mItems, equalTo(Arrays.asList("a", "b")));
+        assertThat(mSubscriber.mCompleted, equalTo(true));
+        assertThat(mUpstream.mRequested, equalTo(2L));
+    }
+
+    @Test
+    public void testDrop_emittersUnavailable_itemsRequestedAgain() {
+        mLeakSafeSubscriber.onSubscribe(mUpstream);
+        mSubscriber.mSubscription.request(1);
+
+        mManager.unmanage(mScreen);
+        mLeakSafeSubscriber.onNext("dropped");
+        // Dropped item is replaced so that the wrapped subscriber still gets what it requested.
+        assertThat(mUpstream.mRequested, equalTo(2L));
+        assertThat(mUpstream.mCancelled, equalTo(false));
+
+        mManager.manage(mScreen);
+        mLeakSafeSubscriber.onNext("delivered");
+        assertThat(mSubscriber.mItems, equalTo(Arrays.asList("delivered")));
+    }
+
+    @Test
+    public void testDrop_terminalSignal_laterItemsIgnored() {
+        mLeakSafeSubscriber.onSubscribe(mUpstream);
+        mSubscriber.mSubscription.request(2);
+
+        mManager.unmanage(mScreen);
+        mLeakSafeSubscriber.onError(new Exception());
+        mManager.manage(mScreen);
+        // Late item from a non-compliant publisher.
+        mLeakSafeSubscriber.onNext("ignored");
+        mLeakSafeSubscriber.onComplete();
+
+        assertThat(mSubscriber.mItems.isEmpty(), equalTo(true));
+        assertThat(mSubscriber.mError, nullValue());
+        assertThat(mSubscriber.mCompleted, equalTo(false));
+        assertThat(mUpstream.mRequested, equalTo(2L));
+    }
+
+    @Test
+    public void testSubscribe_emittersUnavailable_deliveredOnceManaged() {
+        mManager.unmanage(mScreen);
+        mLeakSafeSubscriber.onSubscribe(mUpstream);
+        assertThat(mSubscriber.mSubscription, nullValue());
+
+        mManager.manage(mScreen);
+        assertThat(mSubscriber.mSubscription, sameInstance((Subscription) mUpstream));
+    }
+
+
+    @Test
+    public void testDrop_managerClosed_subscriptionCancelled() {
+        mLeakSafeSubscriber.onSubscribe(mUpstream);
+        mSubscriber.mSubscription.request(1);
+
+        mManager.unmanage(mScreen);
+        mManager.close();
+        mLeakSafeSubscriber.onNext("dropped");
+        // Emitters never come back, so dropped items are not requested again.
+        assertThat(mUpstream.mRequested, equalTo(1L));
+        assertThat(mUpstream.mCancelled, equalTo(true));
+
+        mLeakSafeSubscriber.onNext("ignored");
+        assertThat(mUpstream.mRequested, equalTo(1L));
+        assertThat(mSubscriber.mItems.isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testSubscribe_managerClosed_subscriptionCancelled() {
+        mManager.unmanage(mScreen);
+        mManager.close();
+        mLeakSafeSubscriber.onSubscribe(mUpstream);
+
+        assertThat(mSubscriber.mSubscription, nullValue());
+        assertThat(mUpstream.mCancelled, equalTo(true));
+    }
+
+    @Test
+    public void testSubscribe_unmanagedEmitterCollected_subscriptionCancelled() throws InterruptedException {
+        final WeakReference<Screen> screenRef = new WeakReference<>(new Screen(null)); // No Id: unmanaged.
+        Subscriber<String> leakSafeSubscriber = LeakSafeSubscriber.wrap(screenRef.get().newSubscriber(), mManager);
+        boolean collected = GarbageCollector.collectUntil(new GarbageCollector.Condition() {
+            @Override
+            public boolean isMet() {
+                return screenRef.get() == null;
+            }
+        });
+        assertThat(collected, equalTo(true));
+
+        leakSafeSubscriber.onSubscribe(mUpstream);
+        assertThat(mUpstream.mRequested, equalTo(0L));
+        assertThat(mUpstream.mCancelled, equalTo(true));
+    }
+
+
+    private static class Upstream implements Subscription {
+        long mRequested;
+        boolean mCancelled;
+
+        @Override
+        public void request(long pCount) {
+            mRequested += pCount;
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+        }
+    }
+
+    private static class Screen {
+        private final String mId;
+
+        Screen(String pId) {
+            mId = pId;
+        }
+
+        static EmitterResolver resolver() {
+            return new EmitterResolver() {
+                @Override
+                public Object resolveEmitterId(Object pEmitter) {
+                    return (pEmitter instanceof Screen) ? ((Screen) pEmitter).mId : null;
+                }
+            };
+        }
+
+        ScreenSubscriber newSubscriber() {
+            return new ScreenSubscriber();
+        }
+
+        /**
+         * Records signals. Fails if a signal is received while its screen is dereferenced.
+         */
+        class ScreenSubscriber implements Subscriber<String> {
+            final List<String> mItems = new ArrayList<>();
+            Subscription mSubscription;
+            Throwable mError;
+            boolean mCompleted;
+
+            @Override
+            public void onSubscribe(Subscription pSubscription) {
+                checkReferenced();
+                mSubscription = pSubscription;
+            }
+
+            @Override
+            public void onNext(String pItem) {
+                checkReferenced();
+                mItems.add(pItem);
+            }
+
+            @Override
+            public void onError(Throwable pError) {
+                checkReferenced();
+                mError = pError;
+            }
+
+            @Override
+            public void onComplete() {
+                checkReferenced();
+                mCompleted = true;
+            }
+
+            private void checkReferenced() {
+                if (Screen.this == null) throw new AssertionError("Screen not referenced");
+            }
+        }
+    }
+}
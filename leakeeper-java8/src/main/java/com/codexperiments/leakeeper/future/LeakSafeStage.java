@@ -0,0 +1,316 @@
+package com.codexperiments.leakeeper.future;
+
+import com.codexperiments.leakeeper.CallbackContainer;
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.action.CallbackAction;
+import com.codexperiments.leakeeper.action.CallbackAction1;
+import com.codexperiments.leakeeper.action.CallbackAction2;
+import com.codexperiments.leakeeper.action.CallbackFunction1;
+import com.codexperiments.leakeeper.action.CallbackFunction2;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * CompletionStage whose dependent stage functions are wrapped by a CallbackManager: outer references of a function (e.g. the
+ * screen or service which created it) are dereferenced as soon as the stage is created, while the asynchronous work runs, and
+ * referenced only while the function executes. If emitters are not available anymore, the function is skipped and its stage
+ * completes exceptionally with StageSkippedException, so that following stages are skipped too. whenComplete() actions are
+ * an exception: since they don't transform the result, a skipped action lets the original result or exception through.
+ * Stages created from a LeakSafeStage are LeakSafeStages too.
+ * <p/>
+ * Functions run on any thread completing a stage, hence the manager must be multi-threaded. Functions must be anonymous or
+ * inner classes. Lambdas and method references are run but not dereferenced, since captured values are not stored in outer
+ * fields. The manager should be dedicated to stage functions: its callback class is used to recognize functions nested in
+ * other functions, hence must not be implemented by emitters, which would be mistaken for parent functions. Object is rejected
+ * for this reason.
+ */
+public class LeakSafeStage<T> implements CompletionStage<T> {
+    private static final Object SKIPPED = new Object();
+    private static final CallbackAction<Object> RUN = (pRunnable) -> ((Runnable) pRunnable).run();
+    @SuppressWarnings("unchecked")
+    private static final CallbackAction1<Object, Object> ACCEPT = (pConsumer, pValue) -> ((Consumer<Object>) pConsumer).accept(pValue);
+    @SuppressWarnings("unchecked")
+    private static final CallbackAction2<Object, Object, Object> ACCEPT_BOTH
+            = (pConsumer, pValue1, pValue2) -> ((BiConsumer<Object, Object>) pConsumer).accept(pValue1, pValue2);
+    @SuppressWarnings("unchecked")
+    private static final CallbackFunction1<Object, Object, Object> APPLY
+            = (pFunction, pValue) -> ((Function<Object, Object>) pFunction).apply(pValue);
+    @SuppressWarnings("unchecked")
+    private static final CallbackFunction2<Object, Object, Object, Object> APPLY_BOTH
+            = (pFunction, pValue1, pValue2) -> ((BiFunction<Object, Object, Object>) pFunction).apply(pValue1, pValue2);
+
+    private final CompletionStage<T> mStage;
+    private final CallbackManager<Object> mManager;
+
+    /**
+     * @param pManager Manager wrapping stage functions. Must be multi-threaded. Its callback class must not be implemented by
+     *                 emitters, but functions are not required to implement it.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> LeakSafeStage<T> wrap(CompletionStage<T> pStage, CallbackManager<?> pManager) {
+        if (!pManager.isMultiThreaded()) throw new IllegalArgumentException("Stage functions require a multi-threaded manager");
+        if (pManager.callbackClass() == Object.class) throw new IllegalArgumentException("Callback class must not be Object");
+        return new LeakSafeStage<>(pStage, (CallbackManager<Object>) pManager);
+    }
+
+    private LeakSafeStage(CompletionStage<T> pStage, CallbackManager<Object> pManager) {
+        mStage = pStage;
+        mManager = pManager;
+    }
+
+    private <U> LeakSafeStage<U> next(CompletionStage<U> pStage) {
+        return new LeakSafeStage<>(pStage, mManager);
+    }
+
+    //region Function wrappers
+    private Runnable leakSafeRun(Runnable pAction) {
+        CallbackContainer<Object> container = mManager.wrap(pAction);
+        return () -> {
+            if (!container.invoke(RUN)) throw new StageSkippedException();
+        };
+    }
+
+    private <V> Consumer<V> leakSafeAccept(Consumer<? super V> pAction) {
+        CallbackContainer<Object> container = mManager.wrap(pAction);
+        return (pValue) -> {
+            if (!container.invoke(ACCEPT, pValue)) throw new StageSkippedException();
+        };
+    }
+
+    private <V1, V2> BiConsumer<V1, V2> leakSafeAcceptBoth(BiConsumer<? super V1, ? super V2> pAction) {
+        CallbackContainer<Object> container = mManager.wrap(pAction);
+        return (pValue1, pValue2) -> {
+            if (!container.invoke(ACCEPT_BOTH, pValue1, pValue2)) throw new StageSkippedException();
+        };
+    }
+
+    /**
+     * Unlike leakSafeAcceptBoth(), a skipped action does not fail, so that the stage completes like the previous one.
+     */
+    private <V1, V2> BiConsumer<V1, V2> leakSafeWhenComplete(BiConsumer<? super V1, ? super V2> pAction) {
+        CallbackContainer<Object> container = mManager.wrap(pAction);
+        return (pValue1, pValue2) -> container.invoke(ACCEPT_BOTH, pValue1, pValue2);
+    }
+
+    private <V, U> Function<V, U> leakSafeApply(Function<? super V, ? extends U> pFunction) {
+        CallbackContainer<Object> container = mManager.wrap(pFunction);
+        return (pValue) -> checkSkipped(container.call(APPLY, pValue, SKIPPED));
+    }
+
+    private <V1, V2, U> BiFunction<V1, V2, U> leakSafeApplyBoth(BiFunction<? super V1, ? super V2, ? extends U> pFunction) {
+        CallbackContainer<Object> container = mManager.wrap(pFunction);
+        return (pValue1, pValue2) -> checkSkipped(container.call(APPLY_BOTH, pValue1, pValue2, SKIPPED));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <U> U checkSkipped(Object pResult) {
+        if (pResult == SKIPPED) throw new StageSkippedException();
+        return (U) pResult;
+    }
+    //endregion
+
+    //region CompletionStage
+    @Override
+    public <U> LeakSafeStage<U> thenApply(Function<? super T, ? extends U> pFunction) {
+        return next(mStage.thenApply(this.<T, U>leakSafeApply(pFunction)));
+    }
+
+    @Override
+    public <U> LeakSafeStage<U> thenApplyAsync(Function<? super T, ? extends U> pFunction) {
+        return next(mStage.thenApplyAsync(this.<T, U>leakSafeApply(pFunction)));
+    }
+
+    @Override
+    public <U> LeakSafeStage<U> thenApplyAsync(Function<? super T, ? extends U> pFunction, Executor pExecutor) {
+        return next(mStage.thenApplyAsync(this.<T, U>leakSafeApply(pFunction), pExecutor));
+    }
+
+    @Override
+    public LeakSafeStage<Void> thenAccept(Consumer<? super T> pAction) {
+        return next(mStage.thenAccept(this.<T>leakSafeAccept(pAction)));
+    }
+
+    @Override
+    public LeakSafeStage<Void> thenAcceptAsync(Consumer<? super T> pAction) {
+        return next(mStage.thenAcceptAsync(this.<T>leakSafeAccept(pAction)));
+    }
+
+    @Override
+    public LeakSafeStage<Void> thenAcceptAsync(Consumer<? super T> pAction, Executor pExecutor) {
+        return next(mStage.thenAcceptAsync(this.<T>leakSafeAccept(pAction), pExecutor));
+    }
+
+    @Override
+    public LeakSafeStage<Void> thenRun(Runnable pAction) {
+        return next(mStage.thenRun(leakSafeRun(pAction)));
+    }
+
+    @Override
+    public LeakSafeStage<Void> thenRunAsync(Runnable pAction) {
+        return next(mStage.thenRunAsync(leakSafeRun(pAction)));
+    }
+
+    @Override
+    public LeakSafeStage<Void> thenRunAsync(Runnable pAction, Executor pExecutor) {
+        return next(mStage.thenRunAsync(leakSafeRun(pAction), pExecutor));
+    }
+
+    @Override
+    public <U, V> LeakSafeStage<V> thenCombine(CompletionStage<? extends U> pOther,
+                                               BiFunction<? super T, ? super U, ? extends V> pFunction) {
+        return next(mStage.thenCombine(pOther, this.<T, U, V>leakSafeApplyBoth(pFunction)));
+    }
+
+    @Override
+    public <U, V> LeakSafeStage<V> thenCombineAsync(CompletionStage<? extends U> pOther,
+                                                    BiFunction<? super T, ? super U, ? extends V> pFunction) {
+        return next(mStage.thenCombineAsync(pOther, this.<T, U, V>leakSafeApplyBoth(pFunction)));
+    }
+
+    @Override
+    public <U, V> LeakSafeStage<V> thenCombineAsync(CompletionStage<? extends U> pOther,
+                                                    BiFunction<? super T, ? super U, ? extends V> pFunction, Executor pExecutor) {
+        return next(mStage.thenCombineAsync(pOther, this.<T, U, V>leakSafeApplyBoth(pFunction), pExecutor));
+    }
+
+    @Override
+    public <U> LeakSafeStage<Void> thenAcceptBoth(CompletionStage<? extends U> pOther, BiConsumer<? super T, ? super U> pAction) {
+        return next(mStage.thenAcceptBoth(pOther, this.<T, U>leakSafeAcceptBoth(pAction)));
+    }
+
+    @Override
+    public <U> LeakSafeStage<Void> thenAcceptBothAsync(CompletionStage<? extends U> pOther,
+                                                       BiConsumer<? super T, ? super U> pAction) {
+        return next(mStage.thenAcceptBothAsync(pOther, this.<T, U>leakSafeAcceptBoth(pAction)));
+    }
+
+    @Override
+    public <U> LeakSafeStage<Void> thenAcceptBothAsync(CompletionStage<? extends U> pOther,
+                                                       BiConsumer<? super T, ? super U> pAction, Executor pExecutor) {
+        return next(mStage.thenAcceptBothAsync(pOther, this.<T, U>leakSafeAcceptBoth(pAction), pExecutor));
+    }
+
+    @Override
+    public LeakSafeStage<Void> runAfterBoth(CompletionStage<?> pOther, Runnable pAction) {
+        return next(mStage.runAfterBoth(pOther, leakSafeRun(pAction)));
+    }
+
+    @Override
+    public LeakSafeStage<Void> runAfterBothAsync(CompletionStage<?> pOther, Runnable pAction) {
+        return next(mStage.runAfterBothAsync(pOther, leakSafeRun(pAction)));
+    }
+
+    @Override
+    public LeakSafeStage<Void> runAfterBothAsync(CompletionStage<?> pOther, Runnable pAction, Executor pExecutor) {
+        return next(mStage.runAfterBothAsync(pOther, leakSafeRun(pAction), pExecutor));
+    }
+
+    @Override
+    public <U> LeakSafeStage<U> applyToEither(CompletionStage<? extends T> pOther, Function<? super T, U> pFunction) {
+        return next(mStage.applyToEither(pOther, this.<T, U>leakSafeApply(pFunction)));
+    }
+
+    @Override
+    public <U> LeakSafeStage<U> applyToEitherAsync(CompletionStage<? extends T> pOther, Function<? super T, U> pFunction) {
+        return next(mStage.applyToEitherAsync(pOther, this.<T, U>leakSafeApply(pFunction)));
+    }
+
+    @Override
+    public <U> LeakSafeStage<U> applyToEitherAsync(CompletionStage<? extends T> pOther, Function<? super T, U> pFunction,
+                                                   Executor pExecutor) {
+        return next(mStage.applyToEitherAsync(pOther, this.<T, U>leakSafeApply(pFunction), pExecutor));
+    }
+
+    @Override
+    public LeakSafeStage<Void> acceptEither(CompletionStage<? extends T> pOther, Consumer<? super T> pAction) {
+        return next(mStage.acceptEither(pOther, this.<T>leakSafeAccept(pAction)));
+    }
+
+    @Override
+    public LeakSafeStage<Void> acceptEitherAsync(CompletionStage<? extends T> pOther, Consumer<? super T> pAction) {
+        return next(mStage.acceptEitherAsync(pOther, this.<T>leakSafeAccept(pAction)));
+    }
+
+    @Override
+    public LeakSafeStage<Void> acceptEitherAsync(CompletionStage<? extends T> pOther, Consumer<? super T> pAction,
+                                                 Executor pExecutor) {
+        return next(mStage.acceptEitherAsync(pOther, this.<T>leakSafeAccept(pAction), pExecutor));
+    }
+
+    @Override
+    public LeakSafeStage<Void> runAfterEither(CompletionStage<?> pOther, Runnable pAction) {
+        return next(mStage.runAfterEither(pOther, leakSafeRun(pAction)));
+    }
+
+    @Override
+    public LeakSafeStage<Void> runAfterEitherAsync(CompletionStage<?> pOther, Runnable pAction) {
+        return next(mStage.runAfterEitherAsync(pOther, leakSafeRun(pAction)));
+    }
+
+    @Override
+    public LeakSafeStage<Void> runAfterEitherAsync(CompletionStage<?> pOther, Runnable pAction, Executor pExecutor) {
+        return next(mStage.runAfterEitherAsync(pOther, leakSafeRun(pAction), pExecutor));
+    }
+
+    @Override
+    public <U> LeakSafeStage<U> thenCompose(Function<? super T, ? extends CompletionStage<U>> pFunction) {
+        return next(mStage.thenCompose(this.<T, CompletionStage<U>>leakSafeApply(pFunction)));
+    }
+
+    @Override
+    public <U> LeakSafeStage<U> thenComposeAsync(Function<? super T, ? extends CompletionStage<U>> pFunction) {
+        return next(mStage.thenComposeAsync(this.<T, CompletionStage<U>>leakSafeApply(pFunction)));
+    }
+
+    @Override
+    public <U> LeakSafeStage<U> thenComposeAsync(Function<? super T, ? extends CompletionStage<U>> pFunction, Executor pExecutor) {
+        return next(mStage.thenComposeAsync(this.<T, CompletionStage<U>>leakSafeApply(pFunction), pExecutor));
+    }
+
+    @Override
+    public LeakSafeStage<T> exceptionally(Function<Throwable, ? extends T> pFunction) {
+        return next(mStage.exceptionally(this.<Throwable, T>leakSafeApply(pFunction)));
+    }
+
+    @Override
+    public LeakSafeStage<T> whenComplete(BiConsumer<? super T, ? super Throwable> pAction) {
+        return next(mStage.whenComplete(this.<T, Throwable>leakSafeWhenComplete(pAction)));
+    }
+
+    @Override
+    public LeakSafeStage<T> whenCompleteAsync(BiConsumer<? super T, ? super Throwable> pAction) {
+        return next(mStage.whenCompleteAsync(this.<T, Throwable>leakSafeWhenComplete(pAction)));
+    }
+
+    @Override
+    public LeakSafeStage<T> whenCompleteAsync(BiConsumer<? super T, ? super Throwable> pAction, Executor pExecutor) {
+        return next(mStage.whenCompleteAsync(this.<T, Throwable>leakSafeWhenComplete(pAction), pExecutor));
+    }
+
+    @Override
+    public <U> LeakSafeStage<U> handle(BiFunction<? super T, Throwable, ? extends U> pFunction) {
+        return next(mStage.handle(this.<T, Throwable, U>leakSafeApplyBoth(pFunction)));
+    }
+
+    @Override
+    public <U> LeakSafeStage<U> handleAsync(BiFunction<? super T, Throwable, ? extends U> pFunction) {
+        return next(mStage.handleAsync(this.<T, Throwable, U>leakSafeApplyBoth(pFunction)));
+    }
+
+    @Override
+    public <U> LeakSafeStage<U> handleAsync(BiFunction<? super T, Throwable, ? extends U> pFunction, Executor pExecutor) {
+        return next(mStage.handleAsync(this.<T, Throwable, U>leakSafeApplyBoth(pFunction), pExecutor));
+    }
+
+    @Override
+    public CompletableFuture<T> toCompletableFuture() {
+        return mStage.toCompletableFuture();
+    }
+    //endregion
+}
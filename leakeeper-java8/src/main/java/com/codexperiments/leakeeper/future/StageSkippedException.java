@@ -0,0 +1,21 @@
+package com.codexperiments.leakeeper.future;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Completes a LeakSafeStage whose function has been skipped because its emitters were not available anymore. Dependent stages
+ * are skipped too, as with any exceptional completion. Instances have no stack trace, to make skipping cheap, but are not
+ * shared since callers may add suppressed exceptions to them.
+ */
+public final class StageSkippedException extends CancellationException {
+    private static final long serialVersionUID = 1L;
+
+    StageSkippedException() {
+        super("Stage skipped since its emitters are not available anymore");
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,60 @@
+package com.codexperiments.leakeeper;
+
+import com.codexperiments.leakeeper.config.enforcer.NoThreadEnforcer;
+import com.codexperiments.leakeeper.config.resolver.EmitterResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test that invoke() and call() can be given lambdas, i.e. that their overloads are not ambiguous.
+ */
+public class CallbackContainerLambdaTest {
+    private CallbackContainer<Screen.ScreenCallback> mContainer;
+    private List<Object> mCalls;
+
+    @Before
+    public void setUp() {
+        EmitterResolver resolver = (pEmitter) -> (pEmitter instanceof Screen) ? "screen" : null;
+        CallbackManager<Screen.ScreenCallback> manager = CallbackManager.multiThreaded(Screen.ScreenCallback.class, resolver,
+                                                                                       new NoThreadEnforcer());
+        Screen screen = new Screen();
+        manager.manage(screen);
+        mContainer = manager.wrap(screen.newCallback());
+        mCalls = new ArrayList<>();
+    }
+
+
+    @Test
+    public void testInvoke_lambdas() {
+        assertThat(mContainer.invoke((pCallback) -> mCalls.add("none")), equalTo(true));
+        assertThat(mContainer.invoke((pCallback, pArg) -> mCalls.add(pArg), "arg"), equalTo(true));
+        assertThat(mContainer.invoke((pCallback, pArg1, pArg2) -> mCalls.add(pArg1 + pArg2), "arg1", "arg2"), equalTo(true));
+        assertThat(mContainer.invokeInt((pCallback, pArg) -> mCalls.add(pArg), 5), equalTo(true));
+        assertThat(mContainer.invokeLong((pCallback, pArg) -> mCalls.add(pArg), 5L), equalTo(true));
+        assertThat(mCalls, equalTo(Arrays.<Object>asList("none", "arg", "arg1arg2", 5, 5L)));
+    }
+
+    @Test
+    public void testCall_lambdas() {
+        assertThat(mContainer.call((pCallback) -> "none", "default"), equalTo("none"));
+        assertThat(mContainer.call((pCallback, pArg) -> pArg + 1, 5, 0), equalTo(6));
+        assertThat(mContainer.call((pCallback, pArg1, pArg2) -> pArg1 + pArg2, "arg1", "arg2", "default"), equalTo("arg1arg2"));
+    }
+
+
+    private static class Screen {
+        ScreenCallback newCallback() {
+            return new ScreenCallback();
+        }
+
+        class ScreenCallback {
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.codexperiments.leakeeper.future;
+
+import com.codexperiments.leakeeper.CallbackManager;
+import com.codexperiments.leakeeper.config.enforcer.NoThreadEnforcer;
+import com.codexperiments.leakeeper.config.resolver.EmitterResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test LeakSafeStage function wrapping, and how stages complete when emitters are not available.
+ */
+public class LeakSafeStageTest {
+    private CallbackManager<StageCallback> mManager;
+    private Screen mScreen;
+    private CompletableFuture<String> mFuture;
+    private LeakSafeStage<String> mStage;
+
+    @Before
+    public void setUp() {
+        mManager = CallbackManager.multiThreaded(StageCallback.class, Screen.resolver(), new NoThreadEnforcer());
+        mScreen = new Screen("screen");
+        mManager.manage(mScreen);
+        mFuture = new CompletableFuture<>();
+        mStage = LeakSafeStage.wrap(mFuture, mManager);
+    }
+
+    //region Given
+    private static Throwable causeOf(CompletableFuture<?> pFuture) throws InterruptedException {
+        try {
+            pFuture.get();
+            throw new AssertionError("Future completed normally");
+        } catch (ExecutionException eExecutionException) {
+            return eExecutionException.getCause();
+        }
+    }
+    //endregion
+
+
+    @Test
+    public void testThenApply_emittersAvailable() throws Exception {
+        CompletableFuture<String> result = mStage.thenApply(mScreen.newFunction()).toCompletableFuture();
+
+        mFuture.complete("value");
+        assertThat(result.get(), equalTo("screen:value"));
+    }
+
+    @Test
+    public void testThenApply_emittersUnavailable_followingStagesSkipped() throws Exception {
+        LeakSafeStage<String> skipped = mStage.thenApply(mScreen.newFunction());
+        CompletableFuture<String> following = skipped.thenApply(mScreen.newFunction()).toCompletableFuture();
+
+        mManager.unmanage(mScreen);
+        mFuture.complete("value");
+        assertThat(causeOf(skipped.toCompletableFuture()), instanceOf(StageSkippedException.class));
+        assertThat(causeOf(following), instanceOf(StageSkippedException.class));
+        assertThat(mScreen.mCalls, equalTo(0));
+    }
+
+    @Test
+    public void testWhenComplete_emittersUnavailable_resultPassedThrough() throws Exception {
+        CompletableFuture<String> result = mStage.whenComplete(mScreen.newAction()).toCompletableFuture();
+
+        mManager.unmanage(mScreen);
+        mFuture.complete("value");
+        assertThat(result.get(), equalTo("value"));
+        assertThat(mScreen.mCalls, equalTo(0));
+    }
+
+    @Test
+    public void testWhenComplete_emittersUnavailable_exceptionPassedThrough() throws Exception {
+        CompletableFuture<String> result = mStage.whenComplete(mScreen.newAction()).toCompletableFuture();
+        Exception exception = new Exception();
+
+        mManager.unmanage(mScreen);
+        mFuture.completeExceptionally(exception);
+        assertThat(causeOf(result), sameInstance((Throwable) exception));
+    }
+
+    @Test
+    public void testSkip_exceptionsNotShared() throws Exception {
+        CompletableFuture<String> skipped1 = mStage.thenApply(mScreen.newFunction()).toCompletableFuture();
+        CompletableFuture<String> skipped2 = mStage.thenApply(mScreen.newFunction()).toCompletableFuture();
+
+        mManager.unmanage(mScreen);
+        mFuture.complete("value");
+        Throwable skippedException1 = causeOf(skipped1);
+        Throwable skippedException2 = causeOf(skipped2);
+        assertThat(skippedException1, not(sameInstance(skippedException2)));
+        // Suppressed exceptions added by a caller don't leak to other skipped stages.
+        skippedException1.addSuppressed(new Exception());
+        assertThat(skippedException2.getSuppressed().length, equalTo(0));
+    }
+
+    @Test
+    public void testJoin_skipped_cancellation() {
+        CompletableFuture<String> skipped = mStage.thenApply(mScreen.newFunction()).toCompletableFuture();
+
+        mManager.unmanage(mScreen);
+        mFuture.complete("value");
+        try {
+            skipped.join();
+            fail();
+        } catch (CompletionException eCompletionException) {
+            assertThat(eCompletionException.getCause(), instanceOf(StageSkippedException.class));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrap_singleThreadedManager_rejected() {
+        CallbackManager<StageCallback> manager = CallbackManager.singleThreaded(StageCallback.class, Screen.resolver(), new NoThreadEnforcer());
+        LeakSafeStage.wrap(mFuture, manager);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrap_objectCallbackClass_rejected() {
+        // Emitters would be instances of the callback class, i.e. mistaken for parent functions not wrapped yet.
+        CallbackManager<Object> manager = CallbackManager.multiThreaded(Object.class, Screen.resolver(), new NoThreadEnforcer());
+        LeakSafeStage.wrap(mFuture, manager);
+    }
+
+    /**
+     * Dedicated callback class of the manager. Screens are not callbacks, hence are dereferenced.
+     */
+    private interface StageCallback {
+    }
+
+    private static class Screen {
+        private final String mId;
+        volatile int mCalls;
+
+        Screen(String pId) {
+            mId = pId;
+        }
+
+        static EmitterResolver resolver() {
+            return new EmitterResolver() {
+                @Override
+                public Object resolveEmitterId(Object pEmitter) {
+                    return (pEmitter instanceof Screen) ? ((Screen) pEmitter).mId : null;
+                }
+            };
+        }
+
+        /**
+         * Prefixes its value with the screen Id. Fails if called while its screen is dereferenced.
+         */
+        Function<String, String> newFunction() {
+            return new Function<String, String>() {
+                @Override
+                public String apply(String pValue) {
+                    ++Screen.this.mCalls;
+                    return Screen.this.mId + ":" + pValue;
+                }
+            };
+        }
+
+        BiConsumer<String, Throwable> newAction() {
+            return new BiConsumer<String, Throwable>() {
+                @Override
+                public void accept(String pValue, Throwable pThrowable) {
+                    ++Screen.this.mCalls;
+                }
+            };
+        }
+    }
+}